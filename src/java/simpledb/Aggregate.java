@@ -97,8 +97,9 @@ public class Aggregate extends Operator {
     public void open() throws NoSuchElementException, DbException,
 	    TransactionAbortedException {
         child.open();super.open();
-        while(child.hasNext())
-            aggregator.mergeTupleIntoGroup(child.next());
+        TupleBatch batch;
+        while((batch=child.nextBatch())!=null)
+            aggregator.mergeBatchIntoGroups(batch);
         it.open();
     }
 
@@ -115,6 +116,14 @@ public class Aggregate extends Operator {
         return null;
     }
 
+    /**
+     * Returns the next batch of the aggregate's results. The child is read
+     * a batch at a time when the aggregate is opened.
+     */
+    public TupleBatch nextBatch() throws TransactionAbortedException, DbException {
+        return it.nextBatch();
+    }
+
     public void rewind() throws DbException, TransactionAbortedException {
         it.rewind();
         child.rewind();
@@ -76,6 +76,17 @@ public interface Aggregator extends Serializable {
      */
     public void mergeTupleIntoGroup(Tuple tup);
 
+    /**
+     * Merge every row of a batch into the aggregate. This default merges
+     * them one Tuple at a time.
+     *
+     * @param batch the rows, each with an aggregate field and a group-by field
+     */
+    public default void mergeBatchIntoGroups(TupleBatch batch) {
+        for (int i = 0; i < batch.size(); i++)
+            mergeTupleIntoGroup(batch.getTuple(i));
+    }
+
     /**
      * Create a OpIterator over group aggregate results.
      * @see simpledb.TupleIterator for a possible helper
@@ -1,6 +1,8 @@
 package simpledb;
 
 import java.io.*;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
 import java.util.*;
 
 import simpledb.Predicate.Op;
@@ -83,63 +85,21 @@ public class BTreeFile implements DbFile {
 	 */
 	public Page readPage(PageId pid) {
 		BTreePageId id = (BTreePageId) pid;
-		BufferedInputStream bis = null;
-
 		try {
-			bis = new BufferedInputStream(new FileInputStream(f));
-			if(id.pgcateg() == BTreePageId.ROOT_PTR) {
-				byte pageBuf[] = new byte[BTreeRootPtrPage.getPageSize()];
-				int retval = bis.read(pageBuf, 0, BTreeRootPtrPage.getPageSize());
-				if (retval == -1) {
-					throw new IllegalArgumentException("Read past end of table");
-				}
-				if (retval < BTreeRootPtrPage.getPageSize()) {
-					throw new IllegalArgumentException("Unable to read "
-							+ BTreeRootPtrPage.getPageSize() + " bytes from BTreeFile");
-				}
-				Debug.log(1, "BTreeFile.readPage: read page %d", id.getPageNumber());
-				BTreeRootPtrPage p = new BTreeRootPtrPage(id, pageBuf);
-				return p;
+			int length = pageLength(id);
+			ByteBuffer buf = ByteBuffer.allocate(length);
+			int retval = Database.getChannelCache().withChannel(f, ch -> readFully(ch, buf, pageOffset(id)));
+			if (retval <= 0) {
+				throw new IllegalArgumentException("Read past end of table");
 			}
-			else {
-				byte pageBuf[] = new byte[BufferPool.getPageSize()];
-				if (bis.skip(BTreeRootPtrPage.getPageSize() + (id.getPageNumber()-1) * BufferPool.getPageSize()) !=
-						BTreeRootPtrPage.getPageSize() + (id.getPageNumber()-1) * BufferPool.getPageSize()) {
-					throw new IllegalArgumentException(
-							"Unable to seek to correct place in BTreeFile");
-				}
-				int retval = bis.read(pageBuf, 0, BufferPool.getPageSize());
-				if (retval == -1) {
-					throw new IllegalArgumentException("Read past end of table");
-				}
-				if (retval < BufferPool.getPageSize()) {
-					throw new IllegalArgumentException("Unable to read "
-							+ BufferPool.getPageSize() + " bytes from BTreeFile");
-				}
-				Debug.log(1, "BTreeFile.readPage: read page %d", id.getPageNumber());
-				if(id.pgcateg() == BTreePageId.INTERNAL) {
-					BTreeInternalPage p = new BTreeInternalPage(id, pageBuf, keyField);
-					return p;
-				}
-				else if(id.pgcateg() == BTreePageId.LEAF) {
-					BTreeLeafPage p = new BTreeLeafPage(id, pageBuf, keyField);
-					return p;
-				}
-				else { // id.pgcateg() == BTreePageId.HEADER
-					BTreeHeaderPage p = new BTreeHeaderPage(id, pageBuf);
-					return p;
-				}
+			if (retval < length) {
+				throw new IllegalArgumentException("Unable to read "
+						+ length + " bytes from BTreeFile");
 			}
+			Debug.log(1, "BTreeFile.readPage: read page %d", id.getPageNumber());
+			return decodePage(id, buf.array());
 		} catch (IOException e) {
 			throw new RuntimeException(e);
-		} finally {
-			// Close the file on success or error
-			try {
-				if (bis != null)
-					bis.close();
-			} catch (IOException ioe) {
-				// Ignore failures closing the file
-			}
 		}
 	}
 
@@ -150,21 +110,88 @@ public class BTreeFile implements DbFile {
 	 * @param page - the page to write to disk
 	 */
 	public void writePage(Page page) throws IOException {
-		BTreePageId id = (BTreePageId) page.getId();
-		
-		byte[] data = page.getPageData();
-		RandomAccessFile rf = new RandomAccessFile(f, "rw");
-		if(id.pgcateg() == BTreePageId.ROOT_PTR) {
-			rf.write(data);
-			rf.close();
+		writePageData(page.getId(), ByteBuffer.wrap(page.getPageData()));
+	}
+	
+	/**
+	 * @return the offset in the file at which the specified page starts
+	 */
+	private long pageOffset(BTreePageId id) {
+		if(id.pgcateg() == BTreePageId.ROOT_PTR)
+			return 0;
+		return BTreeRootPtrPage.getPageSize() + (long) (id.getPageNumber()-1) * BufferPool.getPageSize();
+	}
+
+	/**
+	 * @return the size in bytes of the specified page
+	 */
+	private int pageLength(BTreePageId id) {
+		if(id.pgcateg() == BTreePageId.ROOT_PTR)
+			return BTreeRootPtrPage.getPageSize();
+		return BufferPool.getPageSize();
+	}
+
+	// see DbFile.java for javadocs
+	public void readPageData(PageId pid, ByteBuffer dst) throws IOException {
+		BTreePageId id = (BTreePageId) pid;
+		dst.limit(dst.position() + pageLength(id));
+		Database.getChannelCache().withChannel(f, ch -> readFully(ch, dst, pageOffset(id)));
+		while (dst.hasRemaining())
+			dst.put((byte) 0);
+	}
+
+	// see DbFile.java for javadocs
+	public void writePageData(PageId pid, ByteBuffer src) throws IOException {
+		BTreePageId id = (BTreePageId) pid;
+		// never let a short root pointer page spill into page 1
+		src.limit(Math.min(src.limit(), src.position() + pageLength(id)));
+		writeAt(src, pageOffset(id));
+	}
+
+	/**
+	 * Read from the given offset until dst is full or the file ends.
+	 * 
+	 * @return the number of bytes read
+	 */
+	private static int readFully(FileChannel ch, ByteBuffer dst, long pos) throws IOException {
+		int total = 0;
+		while (dst.hasRemaining()) {
+			int n = ch.read(dst, pos + total);
+			if (n < 0)
+				break;
+			total += n;
 		}
-		else {
-			rf.seek(BTreeRootPtrPage.getPageSize() + (page.getId().getPageNumber()-1) * BufferPool.getPageSize());
-			rf.write(data);
-			rf.close();
+		return total;
+	}
+
+	/**
+	 * Write all of src at the given offset, or at the end of the file if the
+	 * offset is negative.
+	 */
+	private void writeAt(ByteBuffer src, long offset) throws IOException {
+		Database.getChannelCache().withChannel(f, ch -> {
+			long pos = offset < 0 ? ch.size() : offset;
+			while (src.hasRemaining())
+				pos += ch.write(src, pos);
+			return null;
+		});
+	}
+
+	// see DbFile.java for javadocs
+	public Page decodePage(PageId pid, byte[] data) throws IOException {
+		BTreePageId id = (BTreePageId) pid;
+		switch (id.pgcateg()) {
+		case BTreePageId.ROOT_PTR:
+			return new BTreeRootPtrPage(id, data);
+		case BTreePageId.INTERNAL:
+			return new BTreeInternalPage(id, data, keyField);
+		case BTreePageId.LEAF:
+			return new BTreeLeafPage(id, data, keyField);
+		default:
+			return new BTreeHeaderPage(id, data);
 		}
 	}
-	
+
 	/**
 	 * Returns the number of pages in this BTreeFile.
 	 */
@@ -186,21 +213,37 @@ public class BTreeFile implements DbFile {
 	 * nodes along the path to the leaf node with READ_ONLY permission, and locks the 
 	 * leaf node with permission perm.
 	 * 
+	 * The internal nodes are locked only while they are needed to find the way down
+	 * (latch coupling): once a node's child is locked, the read lock on the node is given
+	 * back, as is the read lock on the root pointer page once the root is locked. So
+	 * transactions working in different leaves only share read locks for a moment, and
+	 * a split needs to wait only for the transactions using the leaf it splits.
+	 * 
 	 * If f is null, it finds the left-most leaf page -- used for the iterator
 	 * 
 	 * @param tid - the transaction id
 	 * @param dirtypages - the list of dirty pages which should be updated with all new dirty pages
+	 * @param taken - the pages this descent locked that the transaction did not hold before,
+	 * such as the root pointer page; only these are given back
 	 * @param pid - the current page being searched
 	 * @param perm - the permissions with which to lock the leaf page
 	 * @param f - the field to search for
 	 * @return the left-most leaf page possibly containing the key field f
 	 * 
 	 */
-	private BTreeLeafPage findLeafPage(TransactionId tid, HashMap<PageId, Page> dirtypages, BTreePageId pid, Permissions perm,
-			Field f) 
+	private BTreeLeafPage findLeafPage(TransactionId tid, HashMap<PageId, Page> dirtypages, Set<PageId> taken,
+			BTreePageId pid, Permissions perm, Field f)
 					throws DbException, TransactionAbortedException {
+		return findLeafPage(tid, dirtypages, taken, BTreeRootPtrPage.getId(tableid), pid, perm, f);
+	}
 
-		Page page=getPage(tid, dirtypages, pid, perm);
+	private BTreeLeafPage findLeafPage(TransactionId tid, HashMap<PageId, Page> dirtypages, Set<PageId> taken,
+			BTreePageId parent, BTreePageId pid, Permissions perm, Field f)
+					throws DbException, TransactionAbortedException {
+
+		Page page=couple(tid, dirtypages, taken, parent, pid, perm);
+		if(page==null)
+			return findLeafPage(tid,dirtypages,taken,perm,f);
 		if(pid.pgcateg()==BTreePageId.LEAF)
 			return (BTreeLeafPage)page;
 		BTreeInternalPage pip=(BTreeInternalPage)page;
@@ -210,22 +253,41 @@ public class BTreeFile implements DbFile {
 		if(f==null){
 			entry=(BTreeEntry) it.next();
 			pid1=entry.getLeftChild();
-			return findLeafPage(tid,dirtypages,pid1,perm,null);
+			return findLeafPage(tid,dirtypages,taken,pid,pid1,perm,null);
 		}
 		else while(it.hasNext()){
 			entry=(BTreeEntry) it.next();
 			pid1=entry.getLeftChild();
 			if(entry.getKey().compare(Op.GREATER_THAN_OR_EQ,f))
-				return findLeafPage(tid,dirtypages,pid1,perm,f);
+				return findLeafPage(tid,dirtypages,taken,pid,pid1,perm,f);
 		}
-		return findLeafPage(tid,dirtypages,entry.getRightChild(),perm,f);
+		return findLeafPage(tid,dirtypages,taken,pid,entry.getRightChild(),perm,f);
+	}
+
+	// start a descent from the root pointer, again if the root may have changed
+	private BTreeLeafPage findLeafPage(TransactionId tid, HashMap<PageId, Page> dirtypages, Set<PageId> taken,
+			Permissions perm, Field f)
+			throws DbException, TransactionAbortedException {
+		BTreePageId rootPtrId=BTreeRootPtrPage.getId(tableid);
+		BTreeRootPtrPage rootPtr=(BTreeRootPtrPage)take(tid, dirtypages, taken, rootPtrId, READ_ONLY);
+		return findLeafPage(tid, dirtypages, taken, rootPtrId, rootPtr.getRootId(), perm, f);
+	}
+
+	private BTreeLeafPage findReverseLeafPage(TransactionId tid, HashMap<PageId, Page> dirtypages, Set<PageId> taken,
+			Permissions perm, Field f)
+			throws DbException, TransactionAbortedException {
+		BTreePageId rootPtrId=BTreeRootPtrPage.getId(tableid);
+		BTreeRootPtrPage rootPtr=(BTreeRootPtrPage)take(tid, dirtypages, taken, rootPtrId, READ_ONLY);
+		return findReverseLeafPage(tid, dirtypages, taken, rootPtrId, rootPtr.getRootId(), perm, f);
 	}
 
-	private BTreeLeafPage findReverseLeafPage(TransactionId tid, HashMap<PageId, Page> dirtypages, BTreePageId pid, Permissions perm,
-									   Field f)
+	private BTreeLeafPage findReverseLeafPage(TransactionId tid, HashMap<PageId, Page> dirtypages, Set<PageId> taken,
+			BTreePageId parent, BTreePageId pid, Permissions perm, Field f)
 			throws DbException, TransactionAbortedException {
 
-		Page page=getPage(tid, dirtypages, pid, perm);
+		Page page=couple(tid, dirtypages, taken, parent, pid, perm);
+		if(page==null)
+			return findReverseLeafPage(tid, dirtypages, taken, perm, f);
 		if(pid.pgcateg()==BTreePageId.LEAF)
 			return (BTreeLeafPage)page;
 		BTreeInternalPage pip=(BTreeInternalPage)page;
@@ -235,38 +297,99 @@ public class BTreeFile implements DbFile {
 		if(f==null){
 			entry=(BTreeEntry) it.next();
 			pid1=entry.getRightChild();
-			return findLeafPage(tid,dirtypages,pid1,perm,null);
+			return findLeafPage(tid,dirtypages,taken,pid,pid1,perm,null);
 		}
 		else while(it.hasNext()){
 			entry=(BTreeEntry) it.next();
 			pid1=entry.getRightChild();
 			if(entry.getKey().compare(Op.LESS_THAN_OR_EQ,f))
-				return findLeafPage(tid,dirtypages,pid1,perm,f);
+				return findLeafPage(tid,dirtypages,taken,pid,pid1,perm,f);
 		}
-		return findLeafPage(tid,dirtypages,entry.getLeftChild(),perm,f);
+		return findLeafPage(tid,dirtypages,taken,pid,entry.getLeftChild(),perm,f);
 	}
 
-	BTreeLeafPage findReverseLeafPage(TransactionId tid, BTreePageId pid, Permissions perm,
-							   Field f)
+	/**
+	 * Lock and fetch the next page on the way down from its parent, and give back the
+	 * read lock on the parent. Internal pages are locked READ_ONLY, leaf pages with perm.
+	 * 
+	 * The transaction never waits for the child while it holds the parent, since whoever
+	 * holds the child may be splitting it and need the parent. If the child is busy, the
+	 * parent is given back first, and once the child is free the descent has to start
+	 * again from the root: the child may no longer be the right page.
+	 * 
+	 * Only a plain read lock on the parent that this descent took itself is given back,
+	 * so locks the transaction held before it began are kept until it ends. A parent the
+	 * transaction has changed stays locked, and with no lock of its own (a snapshot
+	 * transaction, or a table with row locking) nothing is given back.
+	 * 
+	 * @param taken - the pages this descent has locked that the transaction did not
+	 * hold before; the child is added if it is one
+	 * @return the child page, or null if the descent must start again from the root
+	 */
+	private Page couple(TransactionId tid, HashMap<PageId, Page> dirtypages, Set<PageId> taken,
+			BTreePageId parent, BTreePageId pid, Permissions perm)
 			throws DbException, TransactionAbortedException {
-		return findReverseLeafPage(tid, new HashMap<PageId, Page>(), pid, perm, f);
+		Permissions p = pid.pgcateg() == BTreePageId.LEAF ? perm : READ_ONLY;
+		BufferPool bp = Database.getBufferPool();
+		LockManager lm = bp.getLockManager();
+		if(!taken.contains(parent) || !readOnly(tid, dirtypages, parent))
+			return take(tid, dirtypages, taken, pid, p);
+		LockManager.Mode mode = LockManager.Mode.of(p);
+		boolean held = lm.holdsLock(tid, pid);
+		if(!lm.tryAcquire(tid, pid, mode)) {
+			release(tid, taken, parent);
+			lm.acquire(tid, pid, mode);
+			if(!held)
+				bp.releasePage(tid, pid);
+			return null;
+		}
+		if(!held)
+			taken.add(pid);
+		Page page = getPage(tid, dirtypages, pid, p);
+		release(tid, taken, parent);
+		return page;
+	}
+
+	// getPage, noting in taken whether the descent is the first to lock the page
+	private Page take(TransactionId tid, HashMap<PageId, Page> dirtypages, Set<PageId> taken, BTreePageId pid,
+			Permissions perm) throws DbException, TransactionAbortedException {
+		LockManager lm = Database.getBufferPool().getLockManager();
+		boolean held = lm.holdsLock(tid, pid);
+		Page page = getPage(tid, dirtypages, pid, perm);
+		if(!held && lm.holdsLock(tid, pid))
+			taken.add(pid);
+		return page;
+	}
+
+	private void release(TransactionId tid, Set<PageId> taken, PageId pid) {
+		taken.remove(pid);
+		Database.getBufferPool().releasePage(tid, pid);
+	}
+
+	// true if the transaction holds just a read lock on the page and has not changed it
+	private boolean readOnly(TransactionId tid, HashMap<PageId, Page> dirtypages, BTreePageId pid) {
+		return !dirtypages.containsKey(pid)
+				&& Database.getBufferPool().getLockManager().heldMode(tid, pid) == LockManager.Mode.S;
+	}
+
+	BTreeLeafPage findReverseLeafPage(TransactionId tid, Permissions perm, Field f)
+			throws DbException, TransactionAbortedException {
+		return findReverseLeafPage(tid, new HashMap<PageId, Page>(), new HashSet<PageId>(), perm, f);
 	}
 	/**
-	 * Convenience method to find a leaf page when there is no dirtypages HashMap.
-	 * Used by the BTreeFile iterator.
-	 * @see #findLeafPage(TransactionId, HashMap, BTreePageId, Permissions, Field)
+	 * Convenience method to find a leaf page when there is no dirtypages HashMap,
+	 * starting from the root pointer page. Used by the BTreeFile iterator.
+	 * @see #findLeafPage(TransactionId, HashMap, Set, BTreePageId, Permissions, Field)
 	 * 
 	 * @param tid - the transaction id
-	 * @param pid - the current page being searched
 	 * @param perm - the permissions with which to lock the leaf page
 	 * @param f - the field to search for
 	 * @return the left-most leaf page possibly containing the key field f
 	 * 
 	 */
-	BTreeLeafPage findLeafPage(TransactionId tid, BTreePageId pid, Permissions perm,
-			Field f) 
+	BTreeLeafPage findLeafPage(TransactionId tid, Permissions perm, Field f)
 					throws DbException, TransactionAbortedException {
-		return findLeafPage(tid, new HashMap<PageId, Page>(), pid, perm, f);
+		return findLeafPage(tid, new HashMap<PageId, Page>(), new HashSet<PageId>(), perm, f);
 	}
 
 	/**
@@ -547,7 +670,11 @@ public class BTreeFile implements DbFile {
 		HashMap<PageId, Page> dirtypages = new HashMap<PageId, Page>();
 
 		// get a read lock on the root pointer page and use it to locate the root page
+		Set<PageId> taken = new HashSet<PageId>();
+		boolean held = Database.getBufferPool().holdsLock(tid, BTreeRootPtrPage.getId(tableid));
 		BTreeRootPtrPage rootPtr = getRootPtrPage(tid, dirtypages);
+		if(!held)
+			taken.add(rootPtr.getId());
 		BTreePageId rootId = rootPtr.getRootId();
 
 		if(rootId == null) { // the root has just been created, so set the root pointer to point to it		
@@ -558,7 +685,7 @@ public class BTreeFile implements DbFile {
 
 		// find and lock the left-most leaf page corresponding to the key field,
 		// and split the leaf page if there are no more slots available
-		BTreeLeafPage leafPage = findLeafPage(tid, dirtypages, rootId, READ_WRITE, t.getField(keyField));
+		BTreeLeafPage leafPage = findLeafPage(tid, dirtypages, taken, rootId, READ_WRITE, t.getField(keyField));
 		if(leafPage.getNumEmptySlots() == 0) {
 			leafPage = splitLeafPage(tid, dirtypages, leafPage, t.getField(keyField));	
 		}
@@ -1047,13 +1174,10 @@ public class BTreeFile implements DbFile {
 		synchronized(this) {
 			if(f.length() == 0) {
 				// create the root pointer page and the root page
-				BufferedOutputStream bw = new BufferedOutputStream(
-						new FileOutputStream(f, true));
 				byte[] emptyRootPtrData = BTreeRootPtrPage.createEmptyPageData();
 				byte[] emptyLeafData = BTreeLeafPage.createEmptyPageData();
-				bw.write(emptyRootPtrData);
-				bw.write(emptyLeafData);
-				bw.close();
+				writeAt(ByteBuffer.wrap(emptyRootPtrData), -1);
+				writeAt(ByteBuffer.wrap(emptyLeafData), -1);
 			}
 		}
 
@@ -1076,9 +1200,13 @@ public class BTreeFile implements DbFile {
 	protected int getEmptyPageNo(TransactionId tid, HashMap<PageId, Page> dirtypages) 
 			throws DbException, IOException, TransactionAbortedException {
 		// get a read lock on the root pointer page and use it to locate the first header page
+		boolean held = Database.getBufferPool().holdsLock(tid, BTreeRootPtrPage.getId(tableid));
 		BTreeRootPtrPage rootPtr = getRootPtrPage(tid, dirtypages);
 		BTreePageId headerId = rootPtr.getHeaderId();
 		int emptyPageNo = 0;
+		// the read lock is only needed to find the header pages, unless it was held already
+		if(!held && readOnly(tid, dirtypages, rootPtr.getId()))
+			Database.getBufferPool().releasePage(tid, rootPtr.getId());
 
 		if(headerId != null) {
 			BTreeHeaderPage headerPage = (BTreeHeaderPage) getPage(tid, dirtypages, headerId, READ_ONLY);
@@ -1109,11 +1237,8 @@ public class BTreeFile implements DbFile {
 		if(headerId == null) {		
 			synchronized(this) {
 				// create the new page
-				BufferedOutputStream bw = new BufferedOutputStream(
-						new FileOutputStream(f, true));
 				byte[] emptyData = BTreeInternalPage.createEmptyPageData();
-				bw.write(emptyData);
-				bw.close();
+				writeAt(ByteBuffer.wrap(emptyData), -1);
 				emptyPageNo = numPages();
 			}
 		}
@@ -1144,10 +1269,7 @@ public class BTreeFile implements DbFile {
 		BTreePageId newPageId = new BTreePageId(tableid, emptyPageNo, pgcateg);
 		
 		// write empty page to disk
-		RandomAccessFile rf = new RandomAccessFile(f, "rw");
-		rf.seek(BTreeRootPtrPage.getPageSize() + (emptyPageNo-1) * BufferPool.getPageSize());
-		rf.write(BTreePage.createEmptyPageData());
-		rf.close();
+		writeAt(ByteBuffer.wrap(BTreePage.createEmptyPageData()), pageOffset(newPageId));
 		
 		// make sure the page is not in the buffer pool	or in the local cache		
 		Database.getBufferPool().discardPage(newPageId);
@@ -1301,10 +1423,7 @@ class BTreeFileIterator extends AbstractDbFileIterator {
 	 * Open this iterator by getting an iterator on the first leaf page
 	 */
 	public void open() throws DbException, TransactionAbortedException {
-		BTreeRootPtrPage rootPtr = (BTreeRootPtrPage) Database.getBufferPool().getPage(
-				tid, BTreeRootPtrPage.getId(f.getId()), READ_ONLY);
-		BTreePageId root = rootPtr.getRootId();
-		curp = f.findLeafPage(tid, root, READ_ONLY, null);
+		curp = f.findLeafPage(tid, READ_ONLY, null);
 		it = curp.iterator();
 	}
 
@@ -1386,15 +1505,12 @@ class BTreeSearchIterator extends AbstractDbFileIterator {
 	 * for the given predicate operation
 	 */
 	public void open() throws DbException, TransactionAbortedException {
-		BTreeRootPtrPage rootPtr = (BTreeRootPtrPage) Database.getBufferPool().getPage(
-				tid, BTreeRootPtrPage.getId(f.getId()), READ_ONLY);
-		BTreePageId root = rootPtr.getRootId();
 		if(ipred.getOp() == Op.EQUALS || ipred.getOp() == Op.GREATER_THAN 
 				|| ipred.getOp() == Op.GREATER_THAN_OR_EQ) {
-			curp = f.findLeafPage(tid, root, READ_ONLY, ipred.getField());
+			curp = f.findLeafPage(tid, READ_ONLY, ipred.getField());
 		}
 		else {
-			curp = f.findLeafPage(tid, root, READ_ONLY, null);
+			curp = f.findLeafPage(tid, READ_ONLY, null);
 		}
 		it = curp.iterator();
 	}
@@ -1482,10 +1598,7 @@ class BTreeFileReverseIterator extends AbstractDbFileIterator {
 	 * Open this iterator by getting an iterator on the first leaf page
 	 */
 	public void open() throws DbException, TransactionAbortedException {
-		BTreeRootPtrPage rootPtr = (BTreeRootPtrPage) Database.getBufferPool().getPage(
-				tid, BTreeRootPtrPage.getId(f.getId()), READ_ONLY);
-		BTreePageId root = rootPtr.getRootId();
-		curp = f.findReverseLeafPage(tid, root, READ_ONLY, null);
+		curp = f.findReverseLeafPage(tid, READ_ONLY, null);
 		it = curp.reverseIterator();
 	}
 
@@ -1563,15 +1676,12 @@ class BTreeReverseSearchIterator extends AbstractDbFileIterator {
 	 * for the given predicate operation
 	 */
 	public void open() throws DbException, TransactionAbortedException {
-		BTreeRootPtrPage rootPtr = (BTreeRootPtrPage) Database.getBufferPool().getPage(
-				tid, BTreeRootPtrPage.getId(f.getId()), READ_ONLY);
-		BTreePageId root = rootPtr.getRootId();
 		if(ipred.getOp() == Op.EQUALS || ipred.getOp() == Op.LESS_THAN
 				|| ipred.getOp() == Op.LESS_THAN_OR_EQ) {
-			curp = f.findReverseLeafPage(tid, root, READ_ONLY, ipred.getField());
+			curp = f.findReverseLeafPage(tid, READ_ONLY, ipred.getField());
 		}
 		else {
-			curp = f.findReverseLeafPage(tid, root, READ_ONLY, null);
+			curp = f.findReverseLeafPage(tid, READ_ONLY, null);
 		}
 		it = curp.reverseIterator();
 	}
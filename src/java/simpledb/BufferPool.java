@@ -1,9 +1,20 @@
 package simpledb;
 
 import java.io.*;
+import java.nio.ByteBuffer;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
 
 import java.util.*;
+import java.util.concurrent.CompletableFuture;
 import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicReference;
 
 /**
  * BufferPool manages the reading and writing of pages into memory from
@@ -17,144 +28,276 @@ import java.util.concurrent.ConcurrentHashMap;
  * @Threadsafe, all fields are final
  */
 public class BufferPool {
-    private ConcurrentHashMap<PageId,Page> findPage;
-    private int numPages;
-    private ConcurrentHashMap<PageId,Integer> pages;
-    int age;
-    public class Lock{
-        TransactionId tid;
-        int type;
-        Lock(){}
-        Lock(TransactionId tid,int type){
-            this.tid=tid;this.type=type;
-        }
-        public boolean equals(Object p){
-            if(!(p instanceof Lock))return false;
-            Lock q=(Lock)p;
-            return q.tid.equals(tid);
-        }
-    }
-    public class node{
-        TransactionId tid;
-        Vector<node> dep;
-        ConcurrentHashMap<node,PageId>depPage;
-        node(){}
-        node(TransactionId t){
-            tid=t;dep=new Vector<>();depPage=new ConcurrentHashMap<>();
-        }
-
-        public boolean equals(Object p){
-            if(!(p instanceof node))return false;
-            node q=(node)p;
-            return q.tid.equals(tid);
-        }
-    }
-    public class LockManager{
-        final ConcurrentHashMap<PageId, Vector<Lock>> lockMap;
-        final Vector<node> g=new Vector<>();
-        LockManager(){
-            lockMap=new ConcurrentHashMap<>(numPages);
-        }
-        public synchronized node findNode(TransactionId tid){
-            node p=new node(tid);
-                for(node n:g)
-                    if(n.tid.equals(tid))return n;
-            return p;
+    /**
+     * A slot of the page table. The frame is installed before its page is
+     * read, so threads that miss on the same page all wait on one load
+     * instead of each reading the page. A frame is pinned while a thread is
+     * loading or waiting for it, and pinned frames are never evicted.
+     * <p>
+     * In a pool built on a FrameArena, slot is the arena frame holding the
+     * page's bytes as they are on disk. The decoded page may then be dropped
+     * while nobody uses it, and is rebuilt from those bytes on the next hit.
+     */
+    private static class Frame {
+        final CompletableFuture<Void> load=new CompletableFuture<>();
+        final AtomicInteger pins=new AtomicInteger();
+        volatile Page page;
+        int slot=-1;
+        int length;
+        // guarded by the frame: bumped on every change while the PageWriter
+        // runs, and the version last written to disk
+        long version;
+        long writtenVersion;
+        // written to disk while dirty, so the disk holds uncommitted data
+        boolean stolen;
+        // installed by read-ahead rather than by a reader that needs it
+        boolean speculative;
+        // the scan ring that owns the frame; such frames are unknown to the
+        // replacement policy until handed over to the shared pool
+        volatile BufferRing ring;
+        // how many pages of the pool's page size the frame takes up
+        int weight=1;
+        // the partition the frame is charged to
+        Partition part;
+
+        Frame(){}
+        Frame(Page page){
+            this.page=page;
+            load.complete(null);
         }
-        public synchronized boolean acquireLock(TransactionId tid,PageId pid,int type){
-            if(lockMap.containsKey(pid)){
-                Vector<Lock> locks = lockMap.get(pid);
-                for (Lock lock : locks) {
-                    if (lock.tid.equals(tid)) {
-                        if(lock.type==type||lock.type==1)return true;
-                        if(locks.size()==1) {
-                            lock.type = 1;return true;
-                        }
-                        else {
-                            node p=findNode(tid);
-                            if(!g.contains(p))g.add(p);
-                            for(Lock lock2:locks){
-                                if(!lock2.tid.equals(tid)){
-                                    node tmp=findNode(lock2.tid);
-                                    if(!g.contains(tmp))g.add(tmp);
-                                    if(!p.dep.contains(tmp)){
-                                        p.dep.add(tmp);
-                                        p.depPage.put(tmp,pid);
-                                    }
-                                    else p.depPage.replace(tmp,pid);
-                                }
-                            }
-                            return false;
-                        }
-                    }
-                    if (lock.type == 1 || type == 1) {
-                        node p=findNode(tid);
-                        node q=findNode(lock.tid);
-                        if(!g.contains(p))g.add(p);
-                        if(!g.contains(q))g.add(q);
-                        if(!p.dep.contains(q)) {
-                            p.dep.add(q);
-                            p.depPage.put(q,pid);
-                        }
-                        else p.depPage.replace(q,pid);
-                        return false;
-                    }
-                }
-                locks.add(new Lock(tid, type));
-                return true;
+
+        /**
+         * Pin the frame for a reader, unless it has been claimed for
+         * eviction, which sets the pin count to -1 for good.
+         */
+        boolean pin(){
+            while(true){
+                int n=pins.get();
+                if(n<0)
+                    return false;
+                if(pins.compareAndSet(n,n+1))
+                    return true;
             }
-            lockMap.put(pid, new Vector<>());
-            lockMap.get(pid).add(new Lock(tid, type));
-            return true;
         }
-        public synchronized boolean det_cir(){
-            Map<node,Integer> inDegree=new ConcurrentHashMap<>(g.size());
-            for(node n:g){
-                inDegree.put(n,0);
+
+        /** Claim an unpinned frame for eviction, so no reader can pin it again. */
+        boolean claimForEviction(){
+            return pins.compareAndSet(0,-1);
+        }
+
+        /** Wait for the page to be read, and return it. */
+        Page await() throws DbException {
+            try{
+                load.get();
+            }catch (InterruptedException e){
+                Thread.currentThread().interrupt();
+                throw new DbException("interrupted while waiting for a page");
+            }catch (ExecutionException e){
+                if(e.getCause() instanceof DbException)
+                    throw (DbException)e.getCause();
+                throw new DbException("unable to read page: "+e.getCause());
             }
-            for(node n:g){
-                for(node p:n.dep){
-                    int num=inDegree.get(p);
-                    inDegree.replace(p,num+1);
-                }
+            return page;
+        }
+    }
+
+    private final ConcurrentHashMap<PageId,Frame> pageTable;
+    private int numPages;
+    // total weight of the frames in the page table, checked against numPages
+    private final AtomicInteger used=new AtomicInteger();
+    private final BufferPoolStats stats=new BufferPoolStats();
+    private final FrameArena arena;
+    private volatile PageWriter writer;
+
+    /** Threads that read pages ahead of sequential scans. */
+    private static final ExecutorService readAhead=Executors.newCachedThreadPool(r->{
+        Thread t=new Thread(r,"read-ahead");
+        t.setDaemon(true);
+        return t;
+    });
+
+    /** A page image waiting for the PageWriter. */
+    private static class PendingWrite {
+        final TransactionId tid;
+        final Page page;
+        final byte[] data;
+        final long version;
+
+        PendingWrite(TransactionId tid,Page page,byte[] data,long version){
+            this.tid=tid;this.page=page;this.data=data;this.version=version;
+        }
+    }
+
+    /**
+     * Background writer that trickles dirty pages out to disk ahead of
+     * commit, so that committing transactions only have to write pages
+     * changed since the writer last ran.
+     * <p>
+     * Each change made through insertTuple/deleteTuple queues an image of the
+     * page, taken on the changing thread so it is consistent. Periodically
+     * the queue is drained, grouped by table and sorted by page number, and
+     * each table's pages are written by one of the pool threads. Writing a
+     * dirty page before commit steals it, so the write-ahead rule applies:
+     * an UPDATE record with the page's before and after images is logged and
+     * the log forced before the page itself is written.
+     * <p>
+     * A write that fails is queued again, unless a newer image of the page
+     * is, counted as a FLUSH_ERROR, and reported by the next flushAllPages.
+     */
+    private class PageWriter implements Runnable {
+        private final ScheduledExecutorService executor;
+        private final ConcurrentHashMap<PageId,PendingWrite> pending=new ConcurrentHashMap<>();
+        // the first failure since flushAllPages last reported one
+        private final AtomicReference<Exception> failure=new AtomicReference<>();
+
+        PageWriter(int threads,long intervalMillis){
+            executor=Executors.newScheduledThreadPool(threads,r->{
+                Thread t=new Thread(r,"page-writer");
+                t.setDaemon(true);
+                return t;
+            });
+            executor.scheduleWithFixedDelay(this,intervalMillis,intervalMillis,TimeUnit.MILLISECONDS);
+        }
+
+        /** Queue the current image of a page just changed by tid. */
+        void schedule(TransactionId tid,Page page){
+            PageId pid=page.getId();
+            Frame frame=pageTable.get(pid);
+            if(frame==null)
+                return;
+            synchronized (frame){
+                frame.version++;
+                pending.put(pid,new PendingWrite(tid,page,page.getPageData(),frame.version));
             }
-            Queue<node> queue=new LinkedList<>();
-            for(node e:inDegree.keySet()){
-                if(inDegree.get(e)==0){
-                    queue.add(e);inDegree.remove(e);
-                }
+        }
+
+        void cancel(PageId pid){
+            pending.remove(pid);
+        }
+
+        public void run(){
+            TreeMap<Integer,TreeMap<Integer,PendingWrite>> groups=new TreeMap<>();
+            for(PageId pid:pending.keySet()){
+                PendingWrite w=pending.remove(pid);
+                if(w!=null)
+                    groups.computeIfAbsent(pid.getTableId(),k->new TreeMap<>()).put(pid.getPageNumber(),w);
             }
-            while(!queue.isEmpty()){
-                node e=queue.poll();
-                for(node n:e.dep){
-                    int num=inDegree.get(n);
-                    inDegree.replace(n,num-1);
-                    if(num==1){queue.add(n);inDegree.remove(n);}
+            for(TreeMap<Integer,PendingWrite> group:groups.values())
+                executor.execute(()->writeGroup(group.values()));
+        }
+
+        /** Log, then write, the pages of one table in page order. */
+        private void writeGroup(Collection<PendingWrite> writes){
+            try{
+                LogFile log=Database.getLogFile();
+                DbFile dbFile=null;
+                for(PendingWrite w:writes){
+                    PageId pid=w.page.getId();
+                    dbFile=Database.getCatalog().getDatabaseFile(pid.getTableId());
+                    log.logWrite(w.tid,w.page.getBeforeImage(),dbFile.decodePage(pid,w.data));
                 }
-            }
-            return inDegree.size() != 0;
-        }
-        public synchronized void updateGraph(TransactionId tid){
-            node n=findNode(tid);
-            if(!g.contains(n))return;
-            for(node p:g){
-                p.dep.remove(n);
-                p.depPage.remove(n);
-            }
-            g.remove(n);
-        }
-        public synchronized void removeLock(TransactionId tid,PageId pid){
-            for(Lock lock:lockManager.lockMap.get(pid)){
-                if(lock.tid.equals(tid)){
-                    if(lockManager.lockMap.get(pid).size()==1)
-                        lockManager.lockMap.remove(pid);
-                    else lockManager.lockMap.get(pid).remove(lock);
-                    break;
+                log.force();
+                for(PendingWrite w:writes){
+                    PageId pid=w.page.getId();
+                    Frame frame=pageTable.get(pid);
+                    if(frame==null)
+                        continue;
+                    synchronized (frame){
+                        // a newer image is queued, or the transaction has completed
+                        if(frame.page!=w.page||frame.version!=w.version||w.page.isDirty()==null)
+                            continue;
+                        long start=System.nanoTime();
+                        dbFile.writePageData(pid,ByteBuffer.wrap(w.data));
+                        toArena(frame,w.data);
+                        stats.record(BufferPoolStats.Event.FLUSH,pid,start);
+                        frame.writtenVersion=w.version;
+                        frame.stolen=true;
+                    }
+                }
+            }catch (IOException|RuntimeException e){
+                // the pages are still dirty; try again with those not written
+                for(PendingWrite w:writes){
+                    PageId pid=w.page.getId();
+                    Frame frame=pageTable.get(pid);
+                    if(frame==null)
+                        continue;
+                    synchronized (frame){
+                        if(frame.writtenVersion==w.version||w.page.isDirty()==null)
+                            continue;
+                    }
+                    pending.putIfAbsent(pid,w);
+                    stats.record(BufferPoolStats.Event.FLUSH_ERROR,pid);
                 }
+                failure.compareAndSet(null,e);
             }
         }
+
+        /** @return the first failure since the last call, or null if there was none */
+        Exception takeFailure(){
+            return failure.getAndSet(null);
+        }
+
+        void shutdown(){
+            executor.shutdownNow();
+        }
+    }
+    /**
+     * A share of the pool for a group of tables, with its own replacement
+     * policy. Pages of tables in no other partition go to the shared one.
+     */
+    private static class Partition {
+        final String name;
+        final int minPages;
+        final int maxPages;
+        final ReplacementPolicy policy;
+        final AtomicInteger used=new AtomicInteger();
+
+        Partition(String name, int minPages, int maxPages, ReplacementPolicy policy){
+            this.name=name;this.minPages=minPages;this.maxPages=maxPages;this.policy=policy;
+        }
+
+        boolean overMax(){
+            return maxPages>0&&used.get()>maxPages;
+        }
     }
+
+    private final Partition shared;
+    private final ConcurrentHashMap<String,Partition> partitions=new ConcurrentHashMap<>();
+    private final ConcurrentHashMap<Integer,Partition> tablePartitions=new ConcurrentHashMap<>();
     private final LockManager lockManager;
+    // pages each running transaction has dirtied through insertTuple and deleteTuple
+    private final ConcurrentHashMap<TransactionId,Set<PageId>> dirtied=new ConcurrentHashMap<>();
+    // tables whose rows are locked one by one, rather than whole pages at a time
+    private final Set<Integer> rowLocked=ConcurrentHashMap.newKeySet();
+    // row locks each running transaction holds, per table
+    private final ConcurrentHashMap<TransactionId,ConcurrentHashMap<Integer,Integer>> rowLocks=new ConcurrentHashMap<>();
+    // how to undo each running transaction's changes to row-locked tables, oldest first
+    private final ConcurrentHashMap<TransactionId,List<RowUndo>> undo=new ConcurrentHashMap<>();
+    private volatile int escalationThreshold=DEFAULT_ESCALATION_THRESHOLD;
+    // older committed page images for snapshot transactions
+    private final VersionStore versions=new VersionStore();
+    // pages each running transaction has appended with bulkInsert, written straight to disk
+    private final ConcurrentHashMap<TransactionId,List<PageId>> appended=new ConcurrentHashMap<>();
+    // all of those pages, which snapshots see as empty until their transaction commits
+    private final Set<PageId> appendedPages=ConcurrentHashMap.newKeySet();
+
+    /** Pages a bulk insert fills in memory before appending them to the table. */
+    public static final int BULK_BATCH_PAGES=16;
+
+    /** Default number of row locks a transaction may hold on one table before locking the table instead. */
+    public static final int DEFAULT_ESCALATION_THRESHOLD=1000;
+
+    /** A row a transaction inserted, or a tuple it deleted. */
+    private static class RowUndo {
+        final RecordId rid;
+        // the deleted tuple, or null if the row was inserted
+        final Tuple deleted;
+
+        RowUndo(RecordId rid, Tuple deleted){
+            this.rid=rid;
+            this.deleted=deleted;
+        }
+    }
     /** Bytes per page, including header. */
     private static final int DEFAULT_PAGE_SIZE = 4096;
 
@@ -166,16 +309,178 @@ public class BufferPool {
     public static final int DEFAULT_PAGES = 50;
 
     /**
-     * Creates a BufferPool that caches up to numPages pages.
+     * Creates a BufferPool that caches up to numPages pages, replacing them
+     * with the CLOCK policy.
      *
      * @param numPages maximum number of pages in this buffer pool.
      */
     public BufferPool(int numPages) {
-        findPage=new ConcurrentHashMap<>(numPages);
+        this(numPages,new ClockPolicy(numPages));
+    }
+
+    /**
+     * Creates a BufferPool that caches up to numPages pages.
+     *
+     * @param numPages maximum number of pages in this buffer pool.
+     * @param policy decides which page to evict when the pool is full.
+     */
+    public BufferPool(int numPages, ReplacementPolicy policy) {
+        this(numPages,policy,null);
+    }
+
+    /**
+     * Creates a BufferPool that keeps page bytes in an off-heap arena. The
+     * pool holds as many pages as the arena has frames, so its capacity is
+     * set in bytes when the arena is created. Page objects are decoded from
+     * their frames when used, and dropped again once no transaction holds a
+     * lock on them.
+     *
+     * @param arena the frames to keep pages in
+     * @param policy decides which page to evict when the pool is full.
+     */
+    public BufferPool(FrameArena arena, ReplacementPolicy policy) {
+        this(arena.numFrames(),policy,arena);
+    }
+
+    private BufferPool(int numPages, ReplacementPolicy policy, FrameArena arena) {
+        pageTable=new ConcurrentHashMap<>(numPages);
         this.numPages=numPages;
-        lockManager=new LockManager();
-        pages=new ConcurrentHashMap<>(numPages);
-        age=0;
+        lockManager=new LockManager(stats);
+        this.shared=new Partition("shared",0,0,policy);
+        partitions.put(shared.name,shared);
+        this.arena=arena;
+    }
+
+    /**
+     * Create a partition of the pool, to which tables can then be assigned.
+     * A partition keeps at least minPages of its pages cached however
+     * busy other tables are, and never holds more than maxPages. When the
+     * pool is full, pages are taken from the partition furthest above its
+     * minimum; each partition picks its own victims with its own policy.
+     *
+     * @param name the name of the partition
+     * @param minPages pages the partition keeps against other tables
+     * @param maxPages the most pages the partition may hold, or 0 for no limit
+     * @param policy replacement policy for the partition's pages alone
+     * @throws IllegalArgumentException if the quotas are inconsistent, or
+     *     the minimums of all partitions add up to more than the pool
+     */
+    public synchronized void addPartition(String name, int minPages, int maxPages, ReplacementPolicy policy) {
+        if(minPages<0||maxPages<0||(maxPages>0&&maxPages<minPages))
+            throw new IllegalArgumentException("bad quota for partition "+name);
+        int reserved=minPages;
+        for(Partition p:partitions.values())
+            reserved+=p.name.equals(name)?0:p.minPages;
+        if(reserved>numPages)
+            throw new IllegalArgumentException("minimum quotas exceed the pool");
+        if(partitions.containsKey(name))
+            throw new IllegalArgumentException("partition "+name+" exists");
+        partitions.put(name,new Partition(name,minPages,maxPages,policy));
+    }
+
+    /**
+     * Charge a table's pages to a partition. Pages already cached stay
+     * charged to the partition they were read into.
+     *
+     * @param tableId the table
+     * @param partition a partition made by addPartition, or null to go back
+     *     to the shared partition
+     */
+    public void assignTable(int tableId, String partition) {
+        if(partition==null){
+            tablePartitions.remove(tableId);
+            return;
+        }
+        Partition p=partitions.get(partition);
+        if(p==null)
+            throw new NoSuchElementException("no partition "+partition);
+        tablePartitions.put(tableId,p);
+    }
+
+    /**
+     * @return the number of pages, in pages of the pool's page size, held
+     *     by a partition
+     */
+    public int getPartitionPages(String partition) {
+        Partition p=partitions.get(partition);
+        if(p==null)
+            throw new NoSuchElementException("no partition "+partition);
+        return p.used.get();
+    }
+
+    /**
+     * Choose whether a heap table locks rows one at a time. A transaction
+     * then takes a shared or exclusive lock on each row it reads or
+     * changes, with intention locks (IS or IX) on the row's page and table;
+     * getPage on the table's pages only takes the intention locks. Changes
+     * to the table are undone row by row on abort, so that transactions
+     * changing different rows of a page do not undo each other's work.
+     * <p>
+     * Only switch a table's mode while no transaction is using it.
+     *
+     * @throws IllegalArgumentException if the table is not a HeapFile
+     */
+    public void setRowLocking(int tableId, boolean rows) {
+        if(!rows){
+            rowLocked.remove(tableId);
+            return;
+        }
+        if(!(Database.getCatalog().getDatabaseFile(tableId) instanceof HeapFile))
+            throw new IllegalArgumentException("only heap tables can lock rows");
+        rowLocked.add(tableId);
+    }
+
+    /** @return true if the table locks rows rather than pages */
+    public boolean isRowLocking(int tableId) {
+        return rowLocked.contains(tableId);
+    }
+
+    /**
+     * Set how many rows of one table a transaction may lock before its row
+     * locks are traded for a single lock on the whole table.
+     */
+    public void setEscalationThreshold(int rows) {
+        escalationThreshold=Math.max(1,rows);
+    }
+
+    public int getEscalationThreshold() {
+        return escalationThreshold;
+    }
+
+    private Partition partitionOf(PageId pid) {
+        return tablePartitions.getOrDefault(pid.getTableId(),shared);
+    }
+
+    /** @return the counters of this pool */
+    public BufferPoolStats getStats() {
+        return stats;
+    }
+
+    /**
+     * Start writing dirty pages in the background, ahead of commit.
+     *
+     * @param threads number of threads writing pages
+     * @param intervalMillis how often queued pages are written
+     */
+    public synchronized void startPageWriter(int threads, long intervalMillis) {
+        stopPageWriter();
+        writer=new PageWriter(threads,intervalMillis);
+    }
+
+    /** Stop the background writer; dirty pages are then written only at commit. */
+    public synchronized void stopPageWriter() {
+        if(writer!=null){
+            writer.shutdown();
+            writer=null;
+        }
+    }
+
+    /**
+     * @return the capacity of this buffer pool, in pages of the pool's page
+     *     size; a page of a table with larger pages counts as several
+     */
+    public int getNumPages() {
+        return numPages;
     }
 
     public static int getPageSize() {
@@ -202,6 +507,9 @@ public class BufferPool {
      * be added to the buffer pool and returned.  If there is insufficient
      * space in the buffer pool, a page should be evicted and the new page
      * should be added in its place.
+     * <p>
+     * A hit only reads the page table. Threads that miss on the same page
+     * share a single read from disk.
      *
      * @param tid the ID of the transaction requesting the page
      * @param pid the ID of the requested page
@@ -209,19 +517,551 @@ public class BufferPool {
      */
     public Page getPage(TransactionId tid, PageId pid, Permissions perm)
             throws TransactionAbortedException, DbException {
-        while(!lockManager.acquireLock(tid,pid,perm.permLevel)){
-            if(lockManager.det_cir())
-                throw new TransactionAbortedException();
-            try{Thread.sleep(20);}catch (Exception e){e.printStackTrace();}
+        return getPage(tid,pid,perm,null);
+    }
+
+    /**
+     * Retrieve a page for a large sequential scan. Like
+     * {@link #getPage(TransactionId, PageId, Permissions)}, but a page that
+     * has to be read goes into the given ring instead of the shared pool,
+     * and hits do not count as uses of the page for replacement.
+     *
+     * @param ring the scan's ring, or null to use the shared pool
+     */
+    public Page getPage(TransactionId tid, PageId pid, Permissions perm, BufferRing ring)
+            throws TransactionAbortedException, DbException {
+        Long snapshot=versions.snapshotOf(tid);
+        if(snapshot!=null&&!rowLocked.contains(pid.getTableId())){
+            if(perm==Permissions.READ_WRITE)
+                throw new DbException("snapshot transaction "+tid.getId()+" cannot write");
+            return snapshotPage(pid,snapshot,ring);
+        }
+        lock(tid,pid,perm);
+        return fetch(pid,ring);
+    }
+
+    /** Find a page in the pool, or read it in, without locking it. */
+    private Page fetch(PageId pid, BufferRing ring) throws DbException {
+        while(true){
+            Frame frame=pageTable.get(pid);
+            if(frame==null){
+                Frame mine=new Frame();
+                mine.pins.incrementAndGet();
+                frame=claim(pid,mine);
+                if(frame==null){
+                    long start=System.nanoTime();
+                    Page p=load(pid,mine,ring);
+                    stats.record(BufferPoolStats.Event.MISS,pid,start);
+                    return p;
+                }
+            }
+            // an evicted frame cannot be pinned, and a pinned one cannot be
+            // evicted; one pinned after leaving the table is given up
+            if(!frame.pin()){
+                Thread.onSpinWait();
+                continue;
+            }
+            if(pageTable.get(pid)!=frame){
+                frame.pins.decrementAndGet();
+                continue;
+            }
+            try{
+                Page p=frame.await();
+                if(p==null)
+                    p=decode(pid,frame);
+                if(p==null)
+                    continue;
+                if(ring==null)
+                    access(pid,frame);
+                stats.record(BufferPoolStats.Event.HIT,pid);
+                return p;
+            }catch (DbException e){
+                // a failed read-ahead is no reason to fail; read the page ourselves
+                if(!frame.speculative)
+                    throw e;
+            }finally {
+                frame.pins.decrementAndGet();
+            }
+        }
+    }
+
+    /**
+     * Return a page as a snapshot sees it: a private copy of the page as
+     * last committed before the snapshot was taken. Takes no locks.
+     */
+    private Page snapshotPage(PageId pid, long snapshot, BufferRing ring) throws DbException {
+        if(appendedPages.contains(pid))
+            return emptyPage(pid);
+        // the before image first; versions are kept before it changes
+        Page before=fetch(pid,ring).getBeforeImage();
+        byte[] older=versions.imageAt(pid,snapshot);
+        if(older==null)
+            return before;
+        try{
+            return Database.getCatalog().getDatabaseFile(pid.getTableId()).decodePage(pid,older);
+        }catch (IOException e){
+            throw new DbException("cannot decode version of page "+pid+": "+e.getMessage());
+        }
+    }
+
+    private Page emptyPage(PageId pid) throws DbException {
+        DbFile file=Database.getCatalog().getDatabaseFile(pid.getTableId());
+        try{
+            return file.decodePage(pid,HeapPage.createEmptyPageData(file.getPageSize()));
+        }catch (IOException e){
+            throw new DbException("cannot create empty page "+pid+": "+e.getMessage());
+        }
+    }
+
+    /**
+     * Start reading pages of a file into the pool, ahead of a reader that is
+     * expected to need them soon. No locks are taken; the pages are only
+     * cached. Pages are read in runs of consecutive absent pages, each with
+     * one vectored read, and readers that ask for a page while it is being
+     * read wait for it rather than reading it again.
+     *
+     * @param file the file the pages belong to
+     * @param pids the pages to read, in order
+     * @return a future completed once the pages are resident (or abandoned)
+     */
+    public CompletableFuture<Void> prefetchPages(DbFile file, List<PageId> pids) {
+        return prefetchPages(file,pids,null);
+    }
+
+    /**
+     * Read pages ahead of a large scan into the scan's ring.
+     *
+     * @param ring the ring the pages go into, or null for the shared pool
+     */
+    public CompletableFuture<Void> prefetchPages(DbFile file, List<PageId> pids, BufferRing ring) {
+        // never read ahead more than half the pool, or half the ring
+        return prefetch(file,pids,ring,ring==null?numPages/2:ring.size()/2);
+    }
+
+    private CompletableFuture<Void> prefetch(DbFile file, List<PageId> pids, BufferRing ring, int limit) {
+        return CompletableFuture.runAsync(()->{
+            List<PageId> wanted=pids.subList(0,Math.min(pids.size(),Math.max(1,limit)));
+            List<PageId> run=new ArrayList<>();
+            List<Frame> frames=new ArrayList<>();
+            for(PageId pid:wanted){
+                // a run ends at a gap in the pages
+                if(!run.isEmpty()&&pid.getPageNumber()!=run.get(run.size()-1).getPageNumber()+1){
+                    readRun(file,run,frames,ring);
+                    run=new ArrayList<>();
+                    frames=new ArrayList<>();
+                }
+                Frame f=new Frame();
+                f.speculative=true;
+                f.pins.incrementAndGet();
+                if(claim(pid,f)!=null){
+                    readRun(file,run,frames,ring);
+                    run=new ArrayList<>();
+                    frames=new ArrayList<>();
+                    continue;
+                }
+                run.add(pid);
+                frames.add(f);
+            }
+            readRun(file,run,frames,ring);
+        },readAhead);
+    }
+
+    /**
+     * Write the ids of the pages in the pool to a file, so that a pool
+     * started later can be filled with them by {@link #loadSnapshot}. The
+     * file is replaced as a whole, so a crash while saving leaves the
+     * previous snapshot.
+     *
+     * @param f the file to write
+     */
+    public void saveSnapshot(File f) throws IOException {
+        File tmp=new File(f.getPath()+".tmp");
+        try(DataOutputStream out=new DataOutputStream(new BufferedOutputStream(new FileOutputStream(tmp)))){
+            List<PageId> pids=new ArrayList<>();
+            for(Map.Entry<PageId,Frame> e:pageTable.entrySet()){
+                if(e.getValue().load.isDone()&&!e.getValue().load.isCompletedExceptionally())
+                    pids.add(e.getKey());
+            }
+            out.writeInt(pids.size());
+            for(PageId pid:pids){
+                int[] data=pid.serialize();
+                out.writeUTF(pid.getClass().getName());
+                out.writeInt(data.length);
+                for(int d:data)
+                    out.writeInt(d);
+            }
+        }
+        Files.move(tmp.toPath(),f.toPath(),StandardCopyOption.REPLACE_EXISTING,StandardCopyOption.ATOMIC_MOVE);
+    }
+
+    /**
+     * Read the pages listed in a file written by {@link #saveSnapshot} into
+     * the pool, e.g. at startup so that the database starts with the pages
+     * it was using when it stopped. The pages of each table are read in
+     * page order, with one read per run of consecutive pages, and tables
+     * are read in parallel. No locks are taken. Pages of tables that are no
+     * longer in the catalog, or past the end of their file, are skipped, as
+     * is a missing file.
+     *
+     * @param f the file to read
+     * @return a future completed once the pages are resident (or abandoned)
+     */
+    public CompletableFuture<Void> loadSnapshot(File f) throws IOException {
+        if(!f.exists())
+            return CompletableFuture.completedFuture(null);
+        Map<Integer,TreeMap<Integer,PageId>> tables=new HashMap<>();
+        try(DataInputStream in=new DataInputStream(new BufferedInputStream(new FileInputStream(f)))){
+            int n=Math.min(in.readInt(),numPages);
+            for(int i=0;i<n;i++){
+                String idClass=in.readUTF();
+                Object[] args=new Object[in.readInt()];
+                for(int j=0;j<args.length;j++)
+                    args[j]=in.readInt();
+                PageId pid;
+                try{
+                    // PageId promises a constructor taking the ints serialize returns
+                    Class<?>[] types=new Class<?>[args.length];
+                    Arrays.fill(types,int.class);
+                    pid=Class.forName(idClass).asSubclass(PageId.class).getConstructor(types).newInstance(args);
+                }catch (ReflectiveOperationException|RuntimeException e){
+                    continue;
+                }
+                tables.computeIfAbsent(pid.getTableId(),t->new TreeMap<>()).put(pid.getPageNumber(),pid);
+            }
+        }
+        List<CompletableFuture<Void>> loads=new ArrayList<>();
+        for(Map.Entry<Integer,TreeMap<Integer,PageId>> e:tables.entrySet()){
+            DbFile file;
+            try{
+                file=Database.getCatalog().getDatabaseFile(e.getKey());
+            }catch (NoSuchElementException ex){
+                continue;
+            }
+            List<PageId> pids=new ArrayList<>();
+            for(PageId pid:e.getValue().values()){
+                if(exists(file,pid))
+                    pids.add(pid);
+            }
+            if(!pids.isEmpty())
+                loads.add(prefetch(file,pids,null,numPages));
         }
-        if(findPage.containsKey(pid)) return findPage.get(pid);
-        while (findPage.size() >= numPages)
-            evictPage();
-        DbFile dbfile = Database.getCatalog().getDatabaseFile(pid.getTableId());
-        Page p = dbfile.readPage(pid);
-        findPage.put(pid, p);
-        pages.put(pid,age++);
-        return p;
+        return CompletableFuture.allOf(loads.toArray(new CompletableFuture<?>[0]));
+    }
+
+    /** @return false if the page lies past the end of its file */
+    private static boolean exists(DbFile file, PageId pid) {
+        if(file instanceof HeapFile)
+            return pid.getPageNumber()<((HeapFile)file).numPages();
+        if(file instanceof BTreeFile)
+            return pid.getPageNumber()<=((BTreeFile)file).numPages();
+        return true;
+    }
+
+    /** Fill frames installed by prefetchPages with one read. */
+    private void readRun(DbFile file, List<PageId> run, List<Frame> frames, BufferRing ring) {
+        if(run.isEmpty())
+            return;
+        try{
+            for(int i=0;i<frames.size();i++)
+                enter(run.get(i),frames.get(i),ring);
+            makeRoom(frames.get(0).part);
+            ByteBuffer[] bufs=new ByteBuffer[run.size()];
+            for(int i=0;i<bufs.length;i++){
+                Frame f=frames.get(i);
+                if(arena!=null){
+                    fitsArena(file,run.get(i));
+                    while((f.slot=arena.allocate())<0)
+                        evictPage(f.part);
+                    bufs[i]=arena.frame(f.slot);
+                }
+                else bufs[i]=ByteBuffer.allocate(file.getPageSize());
+            }
+            file.readPagesData(run,bufs);
+            for(int i=0;i<bufs.length;i++){
+                Frame f=frames.get(i);
+                f.length=bufs[i].position();
+                if(arena!=null)
+                    decode(run.get(i),f);
+                else{
+                    byte[] data=new byte[f.length];
+                    bufs[i].flip();
+                    bufs[i].get(data);
+                    f.page=file.decodePage(run.get(i),data);
+                }
+                f.load.complete(null);
+                if(ring==null)
+                    f.part.policy.pageAdded(run.get(i));
+            }
+        }catch (DbException|IOException|RuntimeException e){
+            for(int i=0;i<frames.size();i++){
+                Frame f=frames.get(i);
+                if(f.load.isDone())
+                    continue;
+                unclaim(run.get(i),f);
+                if(f.slot>=0)
+                    arena.free(f.slot);
+                f.load.completeExceptionally(new DbException("read-ahead failed: "+e));
+            }
+        }finally {
+            for(Frame f:frames)
+                f.pins.decrementAndGet();
+        }
+    }
+
+    /**
+     * Read a page into a frame this thread has just installed, making room
+     * for it first. Other threads that missed on the page are waiting on
+     * the frame, and are woken when it is loaded or fails to load.
+     */
+    private Page load(PageId pid, Frame frame, BufferRing ring) throws DbException {
+        try{
+            enter(pid,frame,ring);
+            // the new frame already counts against the pool
+            makeRoom(frame.part);
+            DbFile dbfile = Database.getCatalog().getDatabaseFile(pid.getTableId());
+            Page p;
+            if(arena==null)
+                p = dbfile.readPage(pid);
+            else{
+                fitsArena(dbfile,pid);
+                while((frame.slot=arena.allocate())<0)
+                    evictPage(frame.part);
+                ByteBuffer buf=arena.frame(frame.slot);
+                try{
+                    dbfile.readPageData(pid,buf);
+                }catch (IOException e){
+                    throw new DbException("unable to read page "+pid.getPageNumber()+" of table "+pid.getTableId()+": "+e);
+                }
+                frame.length=buf.position();
+                p = decode(pid,frame);
+            }
+            if(p==null)
+                throw new DbException("unable to read page "+pid.getPageNumber()+" of table "+pid.getTableId());
+            frame.page=p;
+            frame.load.complete(null);
+            if(ring==null)
+                frame.part.policy.pageAdded(pid);
+            return p;
+        }catch (DbException|RuntimeException e){
+            unclaim(pid,frame);
+            if(frame.slot>=0)
+                arena.free(frame.slot);
+            frame.load.completeExceptionally(e);
+            throw e;
+        }finally {
+            frame.pins.decrementAndGet();
+        }
+    }
+
+    /**
+     * Put a new frame in the page table unless the page already has one,
+     * charging its weight to the pool.
+     *
+     * @return the page's existing frame, or null if frame was added
+     */
+    private Frame claim(PageId pid, Frame frame) {
+        try{
+            int size=Database.getCatalog().getPageSize(pid.getTableId());
+            frame.weight=Math.max(1,(size+getPageSize()-1)/getPageSize());
+        }catch (NoSuchElementException e){
+            frame.weight=1;
+        }
+        frame.part=partitionOf(pid);
+        Frame old=pageTable.putIfAbsent(pid,frame);
+        if(old==null){
+            used.addAndGet(frame.weight);
+            frame.part.used.addAndGet(frame.weight);
+        }
+        return old;
+    }
+
+    /** Take a frame added by claim out of the page table again. */
+    private void unclaim(PageId pid, Frame frame) {
+        if(pageTable.remove(pid,frame)){
+            used.addAndGet(-frame.weight);
+            frame.part.used.addAndGet(-frame.weight);
+        }
+    }
+
+    /** Arena frames are all one size; larger pages cannot be kept in them. */
+    private void fitsArena(DbFile file, PageId pid) throws DbException {
+        if(file.getPageSize()>arena.frameSize())
+            throw new DbException("page "+pid.getPageNumber()+" of table "+pid.getTableId()
+                    +" is larger than the arena's frames");
+    }
+
+    /**
+     * Make a new frame part of a scan ring, recycling the page it displaces
+     * from the ring: that page leaves the pool if it is clean and unused,
+     * and is otherwise handed over to the shared pool.
+     */
+    private void enter(PageId pid, Frame frame, BufferRing ring) {
+        if(ring==null)
+            return;
+        frame.ring=ring;
+        PageId old=ring.add(pid);
+        Frame f=old==null?null:pageTable.get(old);
+        if(f==null||f.ring!=ring)
+            return;
+        if(f.load.isDone()&&evict(old,f))
+            return;
+        access(old,f);
+    }
+
+    /** Record a use of a page, moving it out of a scan ring if it was in one. */
+    private void access(PageId pid, Frame frame) {
+        if(frame.ring!=null){
+            synchronized (frame){
+                if(frame.ring!=null){
+                    frame.ring=null;
+                    if(pageTable.get(pid)==frame)
+                        frame.part.policy.pageAdded(pid);
+                    return;
+                }
+            }
+        }
+        frame.part.policy.pageAccessed(pid);
+    }
+
+    /**
+     * Rebuild the page object of a frame from the bytes in its arena slot.
+     *
+     * @return the page, or null if the frame was discarded and its slot
+     *   given back, so that the caller must look the page up again
+     */
+    private Page decode(PageId pid, Frame frame) throws DbException {
+        synchronized (frame){
+            if(frame.page!=null)
+                return frame.page;
+            if(frame.slot<0)
+                return null;
+            ByteBuffer buf=arena.frame(frame.slot);
+            byte[] data=new byte[frame.length];
+            buf.get(data);
+            try{
+                frame.page=Database.getCatalog().getDatabaseFile(pid.getTableId()).decodePage(pid,data);
+            }catch (IOException e){
+                throw new DbException("unable to decode page "+pid.getPageNumber()+" of table "+pid.getTableId()+": "+e);
+            }
+            return frame.page;
+        }
+    }
+
+    /** Take the lock getPage needs: the page's, or intention locks for a row-locked table. */
+    private void lock(TransactionId tid, PageId pid, Permissions perm) throws TransactionAbortedException {
+        if(!rowLocked.contains(pid.getTableId())){
+            lockManager.acquire(tid,pid,perm);
+            return;
+        }
+        LockManager.TableId table=new LockManager.TableId(pid.getTableId());
+        if(covers(tid,table,perm))
+            return;
+        LockManager.Mode intent=LockManager.Mode.intention(perm);
+        lockManager.acquire(tid,table,intent);
+        lockManager.acquire(tid,pid,intent);
+    }
+
+    /** @return true if the transaction holds a lock on the table good enough for perm on all of it */
+    private boolean covers(TransactionId tid, LockManager.TableId table, Permissions perm) {
+        LockManager.Mode held=lockManager.heldMode(tid,table);
+        return held!=null&&held.covers(LockManager.Mode.of(perm));
+    }
+
+    /**
+     * Lock one row of a row-locked table, along with intention locks on its
+     * page and table. Once the transaction holds more row locks on the table
+     * than the escalation threshold, it locks the whole table instead and
+     * gives its row locks on the table back.
+     *
+     * @param tid the transaction
+     * @param rid the row
+     * @param perm READ_ONLY for a shared lock, READ_WRITE for an exclusive one
+     * @see #setRowLocking(int, boolean)
+     */
+    public void lockTuple(TransactionId tid, RecordId rid, Permissions perm)
+            throws TransactionAbortedException {
+        int tableId=rid.getPageId().getTableId();
+        LockManager.TableId table=new LockManager.TableId(tableId);
+        lock(tid,rid.getPageId(),perm);
+        if(covers(tid,table,perm))
+            return;
+        boolean fresh=!lockManager.holdsLock(tid,rid);
+        if(fresh&&rowLocksOn(tid,tableId)>=escalationThreshold){
+            escalate(tid,table,perm);
+            return;
+        }
+        lockManager.acquire(tid,rid,LockManager.Mode.of(perm));
+        if(fresh)
+            rowLocks.computeIfAbsent(tid,k->new ConcurrentHashMap<>()).merge(tableId,1,Integer::sum);
+    }
+
+    /**
+     * Lock one row of a row-locked table if that can be done without
+     * waiting; never escalates.
+     *
+     * @return true if the transaction now holds the lock
+     * @see #lockTuple(TransactionId, RecordId, Permissions)
+     */
+    public boolean tryLockTuple(TransactionId tid, RecordId rid, Permissions perm)
+            throws TransactionAbortedException {
+        int tableId=rid.getPageId().getTableId();
+        lock(tid,rid.getPageId(),perm);
+        if(covers(tid,new LockManager.TableId(tableId),perm))
+            return true;
+        boolean fresh=!lockManager.holdsLock(tid,rid);
+        if(!lockManager.tryAcquire(tid,rid,LockManager.Mode.of(perm)))
+            return false;
+        if(fresh)
+            rowLocks.computeIfAbsent(tid,k->new ConcurrentHashMap<>()).merge(tableId,1,Integer::sum);
+        return true;
+    }
+
+    private int rowLocksOn(TransactionId tid, int tableId) {
+        Map<Integer,Integer> counts=rowLocks.get(tid);
+        return counts==null?0:counts.getOrDefault(tableId,0);
+    }
+
+    /** Trade a transaction's row locks on a table for a lock on the table. */
+    private void escalate(TransactionId tid, LockManager.TableId table, Permissions perm)
+            throws TransactionAbortedException {
+        lockManager.acquire(tid,table,LockManager.Mode.of(perm));
+        for(Object key:lockManager.locked(tid))
+            if(key instanceof RecordId&&((RecordId)key).getPageId().getTableId()==table.getTableId())
+                lockManager.release(tid,key);
+        Map<Integer,Integer> counts=rowLocks.get(tid);
+        if(counts!=null)
+            counts.remove(table.getTableId());
+    }
+
+    /**
+     * Drop the page object of a frame whose bytes are in the arena, if it is
+     * clean and no transaction holds a lock on it; only the bytes stay.
+     */
+    private void shed(PageId pid) {
+        Frame frame=pageTable.get(pid);
+        if(frame==null||frame.slot<0||lockManager.isLocked(pid))
+            return;
+        synchronized (frame){
+            Page page=frame.page;
+            if(page!=null&&page.isDirty()==null)
+                frame.page=null;
+        }
+    }
+
+    /** Put a page in the page table, replacing whatever version was there. */
+    private void install(Page page) {
+        PageId pid=page.getId();
+        Frame frame=pageTable.get(pid);
+        if(frame!=null){
+            frame.page=page;
+            frame.load.complete(null);
+            access(pid,frame);
+            return;
+        }
+        Frame mine=new Frame(page);
+        if(claim(pid,mine)==null)
+            mine.part.policy.pageAdded(pid);
+        else install(page);
     }
 
     /**
@@ -234,7 +1074,7 @@ public class BufferPool {
      * @param pid the ID of the page to unlock
      */
     public void releasePage(TransactionId tid, PageId pid) {
-        lockManager.removeLock(tid,pid);
+        lockManager.release(tid,pid);
     }
 
     /**
@@ -246,16 +1086,38 @@ public class BufferPool {
         transactionComplete(tid,true);
     }
 
+    /**
+     * Make a transaction a read-only snapshot transaction. From now until it
+     * completes, it reads every page as last committed before this call,
+     * without taking locks, so it neither waits for writers nor holds them
+     * up. It may not change anything: asking for a page READ_WRITE throws.
+     * Tables with row locking are the exception; they are read with row
+     * locks as usual.
+     *
+     * @param tid the transaction, which should not have changed anything yet
+     */
+    public void beginSnapshot(TransactionId tid) {
+        versions.begin(tid);
+    }
+
+    /** @return true if the transaction reads a snapshot */
+    public boolean isSnapshot(TransactionId tid) {
+        return versions.snapshotOf(tid)!=null;
+    }
+
+    /** @return the older committed page images kept for snapshot transactions */
+    public VersionStore getVersionStore() {
+        return versions;
+    }
+
+    /** @return the lock manager that keeps the page locks of transactions */
+    public LockManager getLockManager() {
+        return lockManager;
+    }
+
     /** Return true if the specified transaction has a lock on the specified page */
     public boolean holdsLock(TransactionId tid, PageId p) {
-        synchronized (lockManager.lockMap) {
-            for (Lock lock : lockManager.lockMap.get(p)) {
-                if (lock.tid.equals(tid)) {
-                    return true;
-                }
-            }
-        }
-        return false;
+        return lockManager.holdsLock(tid,p);
     }
 
     /**
@@ -271,29 +1133,119 @@ public class BufferPool {
             flushPages(tid);
         }
         else{
-            for(Map.Entry<PageId,Page> entry:findPage.entrySet()){
-                Page page=entry.getValue();
-                PageId pid=entry.getKey();
-                if(page.isDirty()!=null&&page.isDirty().equals(tid)){
-                    int tableId=pid.getTableId();
-                    DbFile dbFile=Database.getCatalog().getDatabaseFile(tableId);
-                    Page p=dbFile.readPage(pid);
-                    findPage.put(pid,p);
-                    pages.put(pid,age++);
+            undoRows(tid);
+            for(PageId pid:pagesOf(tid)){
+                if(rowLocked.contains(pid.getTableId()))
+                    continue;
+                Frame frame=pageTable.get(pid);
+                Page page=frame==null?null:frame.page;
+                if(page!=null&&page.isDirty()!=null&&page.isDirty().equals(tid)){
+                    unsteal(pid,frame,page);
+                    DbFile dbFile=Database.getCatalog().getDatabaseFile(pid.getTableId());
+                    // the tuples the transaction put there are gone, so there may be room again
+                    if(dbFile instanceof HeapFile)
+                        ((HeapFile)dbFile).getFreeSpaceMap().setFull(pid.getPageNumber(),false);
+                    if(frame.slot>=0){
+                        // the arena still holds the bytes as they are on disk
+                        synchronized (frame){
+                            frame.page=null;
+                        }
+                        continue;
+                    }
+                    install(dbFile.readPage(pid));
                 }
             }
+            unappend(tid);
+        }
+
+        for(Object key:lockManager.locked(tid)){
+            lockManager.release(tid,key);
+            if(arena!=null&&key instanceof PageId)
+                shed((PageId)key);
         }
+        dirtied.remove(tid);
+        rowLocks.remove(tid);
+        undo.remove(tid);
+        versions.end(tid);
+        lockManager.updateGraph(tid);
+    }
 
-        for(PageId pid:lockManager.lockMap.keySet()){
-            if(holdsLock(tid,pid)){
-                releasePage(tid,pid);
+    /**
+     * Take back an aborting transaction's changes to row-locked tables, last
+     * first, and write the pages it changed. Other transactions' changes to
+     * the same pages stay.
+     */
+    private void undoRows(TransactionId tid) throws IOException {
+        List<RowUndo> log=undo.remove(tid);
+        if(log==null)
+            return;
+        Set<PageId> pages=new HashSet<>();
+        try{
+            for(int i=log.size()-1;i>=0;i--){
+                RowUndo u=log.get(i);
+                HeapPage p=(HeapPage)getPage(tid,u.rid.getPageId(),Permissions.READ_WRITE);
+                int slot=u.rid.getTupleNumber();
+                synchronized (p){
+                    if(u.deleted==null){
+                        p.deleteTuple(p.getTuple(slot));
+                        DbFile f=Database.getCatalog().getDatabaseFile(p.getId().getTableId());
+                        if(f instanceof HeapFile)
+                            ((HeapFile)f).getFreeSpaceMap().setFull(p.getId().getPageNumber(),false);
+                    }
+                    else
+                        p.insertTupleAt(u.deleted,slot);
+                }
+                pages.add(p.getId());
             }
+        }catch (DbException|TransactionAbortedException e){
+            throw new IOException("unable to undo "+tid+": "+e.getMessage());
         }
-        synchronized (lockManager.g){
-            lockManager.updateGraph(tid);
+        PageWriter w=writer;
+        for(PageId pid:pages){
+            if(w!=null)
+                w.cancel(pid);
+            Frame frame=pageTable.get(pid);
+            Page page=frame==null?null:frame.page;
+            if(page==null)
+                continue;
+            // in flushPage's lock order, so the page cannot change in between
+            synchronized (this){
+                synchronized (frame){
+                    logPageWrite(tid,page);
+                    flushPage(pid);
+                }
+            }
         }
     }
 
+    /**
+     * Log a page that is about to be written while other transactions may
+     * still have changes on it, and force the log, so that the write can
+     * be undone or redone. The caller holds the pool and then the page's
+     * frame, so that the log is taken between the two, as a checkpoint
+     * takes it.
+     */
+    private void logPageWrite(TransactionId tid, Page page) throws IOException {
+        LogFile log=Database.getLogFile();
+        log.logWrite(tid,page.getBeforeImage(),page);
+        log.force();
+    }
+
+    /**
+     * The pages a transaction may have dirtied: those it dirtied through
+     * the pool, and those it holds a lock on.
+     */
+    private Set<PageId> pagesOf(TransactionId tid) {
+        Set<PageId> pages=new HashSet<>();
+        for(Object key:lockManager.locked(tid))
+            if(key instanceof PageId)
+                pages.add((PageId)key);
+        Set<PageId> d=dirtied.get(tid);
+        if(d!=null)
+            pages.addAll(d);
+        return pages;
+    }
+
     /**
      * Add a tuple to the specified table on behalf of transaction tid.  Will
      * acquire a write lock on the page the tuple is added to and any other
@@ -313,16 +1265,119 @@ public class BufferPool {
             throws DbException, IOException, TransactionAbortedException {
         DbFile file=Database.getCatalog().getDatabaseFile(tableId);
         ArrayList<Page>pages= file.insertTuple(tid,t);
+        if(rowLocked.contains(tableId))
+            undo.computeIfAbsent(tid,k->new ArrayList<>()).add(new RowUndo(t.getRecordId(),null));
+        Set<PageId> d=dirtied.computeIfAbsent(tid,k->ConcurrentHashMap.newKeySet());
         for(Page page:pages){
             page.markDirty(true,tid);
-            if(findPage.contains(page)) findPage.replace(page.getId(),page);
-            else {
-                findPage.put(page.getId(),page);
-                this.pages.put(page.getId(),age++);
+            d.add(page.getId());
+            install(page);
+            PageWriter w=writer;
+            if(w!=null)
+                w.schedule(tid,page);
+        }
+    }
+
+    /**
+     * Insert all the tuples an iterator returns, filling new pages in
+     * memory and appending them to the end of a heap file
+     * {@link #BULK_BATCH_PAGES} at a time, rather than inserting each
+     * tuple through {@link #insertTuple}. The pages bypass the pool: each
+     * batch is logged, one UPDATE record per page, and the log forced
+     * before the batch is written with a single write, as the PageWriter
+     * does for the pages it steals. The appended pages stay locked by the
+     * transaction; if it aborts, they are emptied again.
+     * <p>
+     * Tables with row locking, and files other than heap files, get their
+     * tuples one at a time through {@link #insertTuple}.
+     *
+     * @param tid the transaction inserting the tuples
+     * @param tableId the table to insert into
+     * @param it the tuples to insert, opened; it is read to the end
+     * @return the number of tuples inserted
+     */
+    public int bulkInsert(TransactionId tid, int tableId, OpIterator it)
+            throws DbException, IOException, TransactionAbortedException {
+        DbFile file=Database.getCatalog().getDatabaseFile(tableId);
+        int n=0;
+        if(!(file instanceof HeapFile)||rowLocked.contains(tableId)){
+            for(;it.hasNext();n++)
+                insertTuple(tid,tableId,it.next());
+            return n;
+        }
+        HeapFile hf=(HeapFile)file;
+        // the tuples are put on a scratch page; only its bytes are kept
+        PageId scratch=new HeapPageId(tableId,-1);
+        List<byte[]> batch=new ArrayList<>();
+        HeapPage page=null;
+        for(;it.hasNext();n++){
+            Tuple t=it.next();
+            if(page!=null){
+                try{
+                    page.insertTuple(t);
+                    continue;
+                }catch (DbException e){
+                    // full
+                }
+                batch.add(page.getPageData());
+                if(batch.size()==BULK_BATCH_PAGES){
+                    append(tid,hf,batch);
+                    batch.clear();
+                }
             }
+            page=(HeapPage)hf.decodePage(scratch,HeapPage.createEmptyPageData(hf.getPageSize()));
+            page.insertTuple(t);
+        }
+        if(page!=null)
+            batch.add(page.getPageData());
+        if(!batch.isEmpty())
+            append(tid,hf,batch);
+        return n;
+    }
+
+    /** Log, then write, a batch of filled pages at the end of a heap file. */
+    private void append(TransactionId tid, HeapFile hf, List<byte[]> batch)
+            throws IOException, TransactionAbortedException {
+        int first=hf.allocatePages(tid,batch.size());
+        List<PageId> mine=appended.computeIfAbsent(tid,k->Collections.synchronizedList(new ArrayList<>()));
+        LogFile log=Database.getLogFile();
+        byte[] empty=HeapPage.createEmptyPageData(hf.getPageSize());
+        List<HeapPage> pages=new ArrayList<>();
+        for(int i=0;i<batch.size();i++){
+            PageId pid=new HeapPageId(hf.getId(),first+i);
+            HeapPage page=(HeapPage)hf.decodePage(pid,batch.get(i));
+            log.logWrite(tid,hf.decodePage(pid,empty),page);
+            pages.add(page);
+            mine.add(pid);
+            appendedPages.add(pid);
+        }
+        log.force();
+        hf.writePagesData(first,batch);
+        FreeSpaceMap fsm=hf.getFreeSpaceMap();
+        for(HeapPage page:pages){
+            discardPage(page.getId());
+            if(page.getNumEmptySlots()>0)
+                fsm.setFull(page.getId().getPageNumber(),false);
         }
     }
 
+    /** Empty again the pages an aborting transaction appended with bulkInsert. */
+    private void unappend(TransactionId tid) throws IOException {
+        List<PageId> mine=appended.remove(tid);
+        if(mine==null)
+            return;
+        Map<HeapFile,List<Integer>> emptied=new HashMap<>();
+        for(PageId pid:mine){
+            HeapFile hf=(HeapFile)Database.getCatalog().getDatabaseFile(pid.getTableId());
+            hf.writePageData(pid,ByteBuffer.wrap(HeapPage.createEmptyPageData(hf.getPageSize())));
+            discardPage(pid);
+            emptied.computeIfAbsent(hf,k->new ArrayList<>()).add(pid.getPageNumber());
+        }
+        for(Map.Entry<HeapFile,List<Integer>> e:emptied.entrySet())
+            e.getKey().reclaimPages(e.getValue());
+        appendedPages.removeAll(mine);
+    }
+
     /**
      * Remove the specified tuple from the buffer pool.
      * Will acquire a write lock on the page the tuple is removed from and any
@@ -339,16 +1394,19 @@ public class BufferPool {
     public  void deleteTuple(TransactionId tid, Tuple t)
             throws DbException, IOException, TransactionAbortedException {
         int tableId=t.getRecordId().getPageId().getTableId();
+        RecordId rid=t.getRecordId();
         DbFile file=Database.getCatalog().getDatabaseFile(tableId);
         ArrayList<Page>pages= file.deleteTuple(tid,t);
+        if(rowLocked.contains(tableId))
+            undo.computeIfAbsent(tid,k->new ArrayList<>()).add(new RowUndo(rid,t));
+        Set<PageId> d=dirtied.computeIfAbsent(tid,k->ConcurrentHashMap.newKeySet());
         for(Page page:pages){
             page.markDirty(true,tid);
-            page.markDirty(true,tid);
-            if(findPage.contains(page)) findPage.replace(page.getId(),page);
-            else {
-                findPage.put(page.getId(),page);
-                this.pages.put(page.getId(),age++);
-            }
+            d.add(page.getId());
+            install(page);
+            PageWriter w=writer;
+            if(w!=null)
+                w.schedule(tid,page);
         }
     }
 
@@ -356,12 +1414,20 @@ public class BufferPool {
      * Flush all dirty pages to disk.
      * NB: Be careful using this routine -- it writes dirty data to disk so will
      *     break simpledb if running in NO STEAL mode.
+     *
+     * @throws IOException if a write fails here, or once the pages are
+     *     written, if one the PageWriter tried since the last call failed
      */
     public synchronized void flushAllPages() throws IOException {
-        for(Page page:findPage.values()){
-            if(page.isDirty()!=null)
+        for(Frame frame:pageTable.values()){
+            Page page=frame.page;
+            if(page!=null&&page.isDirty()!=null)
                 flushPage(page.getId());
         }
+        PageWriter w=writer;
+        Exception e=w==null?null:w.takeFailure();
+        if(e!=null)
+            throw new IOException("background page write failed: "+e,e);
     }
 
     /** Remove the specific page id from the buffer pool.
@@ -373,13 +1439,20 @@ public class BufferPool {
      are removed from the cache so they can be reused safely
      */
     public synchronized void discardPage(PageId pid) {
-        if(!findPage.containsKey(pid))
+        Frame frame=pageTable.remove(pid);
+        if(frame==null)
             return;
-        findPage.remove(pid);
-        pages.remove(pid);
-        synchronized (lockManager.lockMap) {
-            lockManager.lockMap.remove(pid);
+        used.addAndGet(-frame.weight);
+        frame.part.used.addAndGet(-frame.weight);
+        // a reader may still have the frame pinned and be decoding its
+        // slot; give the slot back under the frame, marked as gone
+        synchronized (frame){
+            if(frame.slot>=0){
+                arena.free(frame.slot);
+                frame.slot=-1;
+            }
         }
+        frame.part.policy.pageRemoved(pid);
     }
 
     /**
@@ -387,45 +1460,229 @@ public class BufferPool {
      * @param pid an ID indicating the page to flush
      */
     private synchronized  void flushPage(PageId pid) throws IOException {
-        Page p=findPage.get(pid);
-        Database.getCatalog().getDatabaseFile(pid.getTableId()).writePage(p);
-        p.markDirty(false,null);
+        Frame frame=pageTable.get(pid);
+        if(frame==null)
+            return;
+        synchronized (frame){
+            Page p=frame.page;
+            if(p==null)
+                return;
+            writeFrame(pid,frame,p);
+            p.markDirty(false,null);
+        }
+    }
+
+    /** Write a frame's current page to disk. The caller holds the frame. */
+    private void writeFrame(PageId pid, Frame frame, Page p) throws IOException {
+        long start=System.nanoTime();
+        DbFile dbFile=Database.getCatalog().getDatabaseFile(pid.getTableId());
+        if(frame.slot<0)
+            dbFile.writePage(p);
+        else{
+            // the frame becomes the new on-disk image and is written from directly
+            byte[] data=p.getPageData();
+            ByteBuffer buf=arena.frame(frame.slot);
+            buf.put(data);
+            buf.flip();
+            dbFile.writePageData(pid,buf);
+            frame.length=data.length;
+        }
+        frame.writtenVersion=frame.version;
+        frame.stolen=false;
+        stats.record(BufferPoolStats.Event.FLUSH,pid,start);
     }
 
-    /** Write all pages of the specified transaction to disk.
+    /**
+     * Keep a frame's arena slot, if it has one, the same as the page's bytes
+     * on disk, which is what the page is rebuilt from once it has been shed.
+     * The caller holds the frame.
      */
-    public synchronized  void flushPages(TransactionId tid) throws IOException {
-        for(Map.Entry<PageId,Page> entry:findPage.entrySet()){
-            Page page=entry.getValue();
-            PageId pid=entry.getKey();
-            if(page.isDirty()!=null&&page.isDirty().equals(tid)){
-                flushPage(pid);
-            }
+    private void toArena(Frame frame, byte[] data) {
+        if(frame.slot<0)
+            return;
+        arena.frame(frame.slot).put(data);
+        frame.length=data.length;
+    }
+
+    /**
+     * Undo the PageWriter's work on a page of an aborting transaction: stop
+     * any queued write, and put the before image back on disk if the page
+     * was already written.
+     */
+    private void unsteal(PageId pid, Frame frame, Page page) throws IOException {
+        PageWriter w=writer;
+        if(w!=null)
+            w.cancel(pid);
+        synchronized (frame){
+            frame.version++;
+            if(!frame.stolen)
+                return;
+            Page before=page.getBeforeImage();
+            Database.getCatalog().getDatabaseFile(pid.getTableId()).writePage(before);
+            toArena(frame,before.getPageData());
+            frame.writtenVersion=frame.version;
+            frame.stolen=false;
         }
     }
 
     /**
-     * Discards a page from the buffer pool.
-     * Flushes the page to disk to ensure dirty pages are updated on disk.
+     * Write all pages of the specified transaction to disk, and make their
+     * current contents their before image. Pages the PageWriter has already
+     * written, and not changed since, are not written again. Pages of
+     * row-locked tables the transaction changed are always written, along
+     * with whatever other transactions have changed on them.
+     * <p>
+     * While snapshot transactions run, the before images being replaced are
+     * kept for them first.
      */
-    private synchronized  void evictPage() throws DbException {
-        Iterator it=findPage.entrySet().iterator();
-        int n=200000001;PageId p=null;
-        while(it.hasNext()){
-            Map.Entry entry=(Map.Entry)it.next();
-            Page page=(Page)entry.getValue();
-            PageId pid=(PageId)entry.getKey();
-            if(page.isDirty()==null){
-                if(pages.get(pid)<n){
-                    n=pages.get(pid);
-                    p=pid;
+    public void flushPages(TransactionId tid) throws IOException {
+        long ts=versions.startCommit();
+        List<PageId> kept=new ArrayList<>();
+        try{
+            flushPages(tid,ts,kept);
+        }finally {
+            versions.publish(ts,kept);
+        }
+        List<PageId> mine=appended.remove(tid);
+        if(mine!=null)
+            appendedPages.removeAll(mine);
+    }
+
+    private void flushPages(TransactionId tid, long ts, List<PageId> kept) throws IOException {
+        // appended pages are on disk already; snapshots keep seeing them empty
+        for(PageId pid:appended.getOrDefault(tid,Collections.emptyList())){
+            if(versions.needed(ts)){
+                versions.keep(pid,ts,HeapPage.createEmptyPageData(Database.getCatalog().getPageSize(pid.getTableId())));
+                kept.add(pid);
+            }
+        }
+        PageWriter w=writer;
+        Set<PageId> d=dirtied.getOrDefault(tid,Collections.emptySet());
+        for(PageId pid:pagesOf(tid)){
+            Frame frame=pageTable.get(pid);
+            Page page=frame==null?null:frame.page;
+            if(page!=null&&rowLocked.contains(pid.getTableId())){
+                // others may have dirtied the page since, so write it whoever marked it last
+                if(!d.contains(pid))
+                    continue;
+                if(w!=null)
+                    w.cancel(pid);
+                // in a checkpoint's lock order: the pool, the log, then the frame
+                synchronized (this){
+                    synchronized (frame){
+                        logPageWrite(tid,page);
+                        writeFrame(pid,frame,page);
+                        if(tid.equals(page.isDirty()))
+                            page.markDirty(false,null);
+                        page.setBeforeImage();
+                    }
                 }
             }
+            else if(page!=null&&page.isDirty()!=null&&page.isDirty().equals(tid)){
+                if(w!=null)
+                    w.cancel(pid);
+                synchronized (frame){
+                    if(!(frame.stolen&&frame.writtenVersion==frame.version))
+                        writeFrame(pid,frame,page);
+                    frame.stolen=false;
+                    if(versions.needed(ts)){
+                        versions.keep(pid,ts,page.getBeforeImage().getPageData());
+                        kept.add(pid);
+                    }
+                    page.markDirty(false,null);
+                    page.setBeforeImage();
+                }
+            }
+        }
+    }
+
+    /** Evict until a partition is within its quota and the pool within its size. */
+    private void makeRoom(Partition part) throws DbException {
+        while(part.overMax())
+            evictPage(part);
+        while(used.get()>numPages)
+            evictPage(part);
+    }
+
+    /**
+     * Discards a page from the buffer pool to make room for a page of the
+     * given partition. A partition over its maximum gives up one of its own
+     * pages; otherwise the page comes from the partition furthest above its
+     * minimum that has one to give. Only that partition's policy is
+     * consulted, so evictions in one partition do not contend with another.
+     * If no policy has a page to give, a clean frame of some scan ring is
+     * taken instead.
+     */
+    private void evictPage(Partition requestor) throws DbException {
+        List<Partition> order=new ArrayList<>();
+        if(requestor.overMax())
+            order.add(requestor);
+        else{
+            for(Partition p:partitions.values()){
+                if(p.used.get()>p.minPages)
+                    order.add(p);
+            }
+            // furthest above minimum first, and the requestor's own pages on ties
+            order.sort((a,b)->{
+                int c=Integer.compare(b.used.get()-b.minPages,a.used.get()-a.minPages);
+                return c!=0?c:Boolean.compare(b==requestor,a==requestor);
+            });
+        }
+        for(Partition part:order){
+            while(true){
+                // NO STEAL: a dirty page must stay until its transaction completes,
+                // and a pinned frame is being read or waited on
+                PageId p=part.policy.chooseVictim(pid->{
+                    Frame frame=pageTable.get(pid);
+                    if(frame==null||frame.part!=part||frame.pins.get()!=0||!frame.load.isDone())
+                        return false;
+                    Page page=frame.page;
+                    return page==null||page.isDirty()==null;
+                });
+                if(p==null)
+                    break;
+                Frame frame=pageTable.get(p);
+                if(frame!=null&&evict(p,frame))
+                    return;
+                // pinned or dirtied since it was chosen; choose again
+            }
+        }
+        // the policies do not know the frames of scan rings, which could
+        // otherwise hold the whole pool between them; reclaim an unused one
+        for(Map.Entry<PageId,Frame> e:pageTable.entrySet()){
+            Frame frame=e.getValue();
+            if(frame.ring!=null&&order.contains(frame.part)&&frame.load.isDone()&&evict(e.getKey(),frame))
+                return;
+        }
+        throw new DbException("none page to be evicted");
+    }
+
+    /**
+     * Evict a frame if it is clean and no reader has it pinned. Claiming
+     * it first makes the check and the removal atomic with respect to
+     * fetch, which cannot pin a claimed frame.
+     *
+     * @return true if the frame was evicted
+     */
+    private boolean evict(PageId pid, Frame frame) {
+        if(!frame.claimForEviction())
+            return false;
+        Page page=frame.page;
+        if(page!=null&&page.isDirty()!=null){
+            frame.pins.set(0);
+            return false;
+        }
+        synchronized (this){
+            if(!pageTable.remove(pid,frame))
+                return false;
+            used.addAndGet(-frame.weight);
+            frame.part.used.addAndGet(-frame.weight);
+            if(frame.slot>=0)
+                arena.free(frame.slot);
+            frame.part.policy.pageRemoved(pid);
         }
-        if(p!=null)
-            discardPage(p);
-        else
-            throw new DbException("none page to be evicted");
+        stats.record(BufferPoolStats.Event.EVICTION,pid);
+        return true;
     }
 
 }
@@ -0,0 +1,106 @@
+package simpledb;
+
+import java.lang.management.ManagementFactory;
+
+import javax.management.JMException;
+import javax.management.MBeanServer;
+import javax.management.ObjectName;
+
+import simpledb.BufferPoolStats.Event;
+
+/**
+ * BufferPoolMonitor publishes the statistics of the database's buffer pool
+ * over JMX, as the MBean simpledb:type=BufferPool. It always reports on the
+ * current pool of {@link Database}, so replacing the pool does not require
+ * registering the bean again.
+ */
+public class BufferPoolMonitor implements BufferPoolMonitorMBean {
+
+    /** The name the monitor is registered under. */
+    public static final String NAME = "simpledb:type=BufferPool";
+
+    private static boolean registered = false;
+
+    /**
+     * Register the monitor with the platform MBean server, unless it already
+     * is. Failures are reported but otherwise ignored; the database works
+     * the same without JMX.
+     */
+    public static synchronized void register() {
+        if (registered)
+            return;
+        try {
+            MBeanServer server = ManagementFactory.getPlatformMBeanServer();
+            ObjectName name = new ObjectName(NAME);
+            if (!server.isRegistered(name))
+                server.registerMBean(new BufferPoolMonitor(), name);
+            registered = true;
+        } catch (JMException e) {
+            e.printStackTrace();
+        }
+    }
+
+    private static BufferPoolStats stats() {
+        return Database.getBufferPool().getStats();
+    }
+
+    public long getHits() {
+        return stats().get(Event.HIT);
+    }
+
+    public long getMisses() {
+        return stats().get(Event.MISS);
+    }
+
+    public long getEvictions() {
+        return stats().get(Event.EVICTION);
+    }
+
+    public long getFlushes() {
+        return stats().get(Event.FLUSH);
+    }
+
+    public long getFlushErrors() {
+        return stats().get(Event.FLUSH_ERROR);
+    }
+
+    public long getLockWaits() {
+        return stats().get(Event.LOCK_WAIT);
+    }
+
+    public long getLockTimeouts() {
+        return stats().get(Event.LOCK_TIMEOUT);
+    }
+
+    public long getDeadlockAborts() {
+        return stats().get(Event.DEADLOCK_ABORT);
+    }
+
+    public double getHitRatio() {
+        return stats().hitRatio();
+    }
+
+    public double getMeanMissMicros() {
+        return stats().latency(Event.MISS).meanMicros();
+    }
+
+    public double getMeanFlushMicros() {
+        return stats().latency(Event.FLUSH).meanMicros();
+    }
+
+    public double getMeanLockWaitMicros() {
+        return stats().latency(Event.LOCK_WAIT).meanMicros();
+    }
+
+    public int getCapacityPages() {
+        return Database.getBufferPool().getNumPages();
+    }
+
+    public String report() {
+        return stats().report();
+    }
+
+    public void reset() {
+        stats().reset();
+    }
+}
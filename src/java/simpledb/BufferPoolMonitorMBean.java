@@ -0,0 +1,38 @@
+package simpledb;
+
+/**
+ * The JMX management interface of {@link BufferPoolMonitor}.
+ */
+public interface BufferPoolMonitorMBean {
+    long getHits();
+
+    long getMisses();
+
+    long getEvictions();
+
+    long getFlushes();
+
+    long getFlushErrors();
+
+    long getLockWaits();
+
+    long getLockTimeouts();
+
+    long getDeadlockAborts();
+
+    double getHitRatio();
+
+    double getMeanMissMicros();
+
+    double getMeanFlushMicros();
+
+    double getMeanLockWaitMicros();
+
+    int getCapacityPages();
+
+    /** @return the per-table report of {@link BufferPoolStats#report()} */
+    String report();
+
+    /** Set every count back to zero. */
+    void reset();
+}
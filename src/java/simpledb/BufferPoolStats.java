@@ -0,0 +1,259 @@
+package simpledb;
+
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * BufferPoolStats counts what a BufferPool does: page hits and misses,
+ * evictions, pages flushed to disk, background writes that failed, waits for locks, lock waits that timed
+ * out and transactions aborted to break deadlocks. Every count is kept per
+ * table and page category, and misses, flushes and lock waits also record
+ * how long they took in a histogram.
+ * <p>
+ * The counters are cheap enough to leave on: an event is one add to a
+ * striped counter, plus one to a histogram bucket for timed events.
+ *
+ * @see BufferPool#getStats()
+ * @see BufferPoolMonitor
+ * @Threadsafe
+ */
+public class BufferPoolStats {
+
+    /** Things the buffer pool counts. */
+    public enum Event {
+        HIT, MISS, EVICTION, FLUSH, FLUSH_ERROR, LOCK_WAIT, LOCK_TIMEOUT, DEADLOCK_ABORT
+    }
+
+    /**
+     * A histogram of durations, in buckets whose upper bounds double from
+     * one microsecond up.
+     */
+    public static class Histogram {
+        private static final int BUCKETS = 40;
+        private final AtomicLongArray counts = new AtomicLongArray(BUCKETS);
+        private final LongAdder total = new LongAdder();
+        private final LongAdder count = new LongAdder();
+
+        void record(long nanos) {
+            long micros = Math.max(0, nanos / 1000);
+            int bucket = Math.min(BUCKETS - 1, 64 - Long.numberOfLeadingZeros(micros));
+            counts.incrementAndGet(bucket);
+            total.add(micros);
+            count.increment();
+        }
+
+        /** @return the number of durations recorded */
+        public long count() {
+            return count.sum();
+        }
+
+        /** @return the mean duration in microseconds, or 0 if there are none */
+        public double meanMicros() {
+            long n = count.sum();
+            return n == 0 ? 0 : (double) total.sum() / n;
+        }
+
+        /**
+         * @param p a fraction between 0 and 1
+         * @return an upper bound, in microseconds, on the given percentile
+         *     of the recorded durations
+         */
+        public long percentileMicros(double p) {
+            long n = 0;
+            for (int i = 0; i < BUCKETS; i++)
+                n += counts.get(i);
+            long seen = 0;
+            for (int i = 0; i < BUCKETS; i++) {
+                seen += counts.get(i);
+                if (seen > 0 && seen >= p * n)
+                    return 1L << i;
+            }
+            return 0;
+        }
+
+        void reset() {
+            for (int i = 0; i < BUCKETS; i++)
+                counts.set(i, 0);
+            total.reset();
+            count.reset();
+        }
+    }
+
+    private static final class Key implements Comparable<Key> {
+        final int tableId;
+        final String category;
+
+        Key(int tableId, String category) {
+            this.tableId = tableId;
+            this.category = category;
+        }
+
+        public boolean equals(Object o) {
+            if (!(o instanceof Key))
+                return false;
+            Key k = (Key) o;
+            return tableId == k.tableId && category.equals(k.category);
+        }
+
+        public int hashCode() {
+            return tableId * 31 + category.hashCode();
+        }
+
+        public int compareTo(Key k) {
+            int c = Integer.compare(tableId, k.tableId);
+            return c != 0 ? c : category.compareTo(k.category);
+        }
+    }
+
+    private final ConcurrentHashMap<Key, LongAdder[]> counts = new ConcurrentHashMap<Key, LongAdder[]>();
+    private final Histogram missLatency = new Histogram();
+    private final Histogram flushLatency = new Histogram();
+    private final Histogram lockWaitLatency = new Histogram();
+
+    /**
+     * Returns the category a page is counted under: "heap" for heap pages,
+     * and "btree-leaf", "btree-internal", "btree-header" or "btree-rootptr"
+     * for pages of B+ trees. Waits for row and table locks are counted
+     * under "row" and "table".
+     */
+    public static String category(PageId pid) {
+        if (!(pid instanceof BTreePageId))
+            return "heap";
+        switch (((BTreePageId) pid).pgcateg()) {
+        case BTreePageId.LEAF:
+            return "btree-leaf";
+        case BTreePageId.INTERNAL:
+            return "btree-internal";
+        case BTreePageId.HEADER:
+            return "btree-header";
+        default:
+            return "btree-rootptr";
+        }
+    }
+
+    /** Count an event on a page. */
+    void record(Event e, PageId pid) {
+        record(e, pid.getTableId(), category(pid));
+    }
+
+    /** Count an event that took some time, starting at startNanos. */
+    void record(Event e, PageId pid, long startNanos) {
+        record(e, pid.getTableId(), category(pid), startNanos);
+    }
+
+    /** Count an event on something of a table other than a page, such as a row lock. */
+    void record(Event e, int tableId, String category) {
+        Key key = new Key(tableId, category);
+        LongAdder[] c = counts.get(key);
+        if (c == null) {
+            LongAdder[] fresh = new LongAdder[Event.values().length];
+            for (int i = 0; i < fresh.length; i++)
+                fresh[i] = new LongAdder();
+            c = counts.putIfAbsent(key, fresh);
+            if (c == null)
+                c = fresh;
+        }
+        c[e.ordinal()].increment();
+    }
+
+    void record(Event e, int tableId, String category, long startNanos) {
+        record(e, tableId, category);
+        Histogram h = latency(e);
+        if (h != null)
+            h.record(System.nanoTime() - startNanos);
+    }
+
+    /** @return the total count of an event over all tables */
+    public long get(Event e) {
+        long n = 0;
+        for (LongAdder[] c : counts.values())
+            n += c[e.ordinal()].sum();
+        return n;
+    }
+
+    /** @return the count of an event on pages of one table */
+    public long get(Event e, int tableId) {
+        long n = 0;
+        for (Map.Entry<Key, LongAdder[]> c : counts.entrySet())
+            if (c.getKey().tableId == tableId)
+                n += c.getValue()[e.ordinal()].sum();
+        return n;
+    }
+
+    /** @return the count of an event on pages of one category of one table */
+    public long get(Event e, int tableId, String category) {
+        LongAdder[] c = counts.get(new Key(tableId, category));
+        return c == null ? 0 : c[e.ordinal()].sum();
+    }
+
+    /**
+     * @return the fraction of page requests that were hits, or 0 if there
+     *     have been none
+     */
+    public double hitRatio() {
+        long hits = get(Event.HIT), total = hits + get(Event.MISS);
+        return total == 0 ? 0 : (double) hits / total;
+    }
+
+    /**
+     * @return the durations of misses, flushes or lock waits, or null for
+     *     events that are not timed
+     */
+    public Histogram latency(Event e) {
+        switch (e) {
+        case MISS:
+            return missLatency;
+        case FLUSH:
+            return flushLatency;
+        case LOCK_WAIT:
+            return lockWaitLatency;
+        default:
+            return null;
+        }
+    }
+
+    /** Set every count back to zero. */
+    public void reset() {
+        counts.clear();
+        missLatency.reset();
+        flushLatency.reset();
+        lockWaitLatency.reset();
+    }
+
+    /**
+     * @return a table of the counts, one line per table and page category,
+     *     followed by the latency histograms
+     */
+    public String report() {
+        StringBuilder sb = new StringBuilder();
+        sb.append(String.format("%-24s %-15s", "table", "category"));
+        for (Event e : Event.values())
+            sb.append(String.format(" %14s", e.name().toLowerCase()));
+        sb.append('\n');
+        for (Map.Entry<Key, LongAdder[]> c : new TreeMap<Key, LongAdder[]>(counts).entrySet()) {
+            String name = null;
+            try {
+                name = Database.getCatalog().getTableName(c.getKey().tableId);
+            } catch (RuntimeException ex) {
+                // the table has been dropped from the catalog
+            }
+            sb.append(String.format("%-24s %-15s", name == null ? String.valueOf(c.getKey().tableId) : name,
+                    c.getKey().category));
+            for (LongAdder n : c.getValue())
+                sb.append(String.format(" %14d", n.sum()));
+            sb.append('\n');
+        }
+        sb.append(String.format("hit ratio %.3f\n", hitRatio()));
+        for (Event e : Event.values()) {
+            Histogram h = latency(e);
+            if (h != null && h.count() > 0)
+                sb.append(String.format("%s latency: mean %.1fus, p50 <= %dus, p99 <= %dus\n",
+                        e.name().toLowerCase(), h.meanMicros(), h.percentileMicros(0.5),
+                        h.percentileMicros(0.99)));
+        }
+        return sb.toString();
+    }
+}
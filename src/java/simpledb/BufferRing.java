@@ -0,0 +1,70 @@
+package simpledb;
+
+/**
+ * BufferRing is a small, private set of buffer pool frames that a large
+ * sequential scan cycles through, in the style of PostgreSQL's buffer access
+ * strategies. Pages the scan reads go into the ring instead of the shared
+ * part of the pool; once the ring is full, each new page takes the place of
+ * the oldest one, which leaves the pool. A scan over a table much bigger than
+ * the pool therefore only ever displaces as many shared pages as the ring
+ * holds, and the working set of other transactions stays cached.
+ * <p>
+ * Pages the scan finds already cached are used where they are. A ring page
+ * that is dirtied, or that some other reader asks for, is handed over to the
+ * shared pool.
+ *
+ * @see BufferPool#getPage(TransactionId, PageId, Permissions, BufferRing)
+ * @Threadsafe
+ */
+public class BufferRing {
+
+    /** Default number of frames in a ring. */
+    public static final int DEFAULT_SIZE = 32;
+
+
+    private final PageId[] slots;
+    private int next;
+
+    /**
+     * @param size the number of frames in the ring
+     */
+    public BufferRing(int size) {
+        slots = new PageId[Math.max(1, size)];
+        next = 0;
+    }
+
+    /**
+     * Returns a ring suitable for a sequential scan of a table, or null if
+     * the table fits in the pool. A table that fits is cached as usual so
+     * that repeated scans of it hit; for one that does not, a scan would only
+     * push its own earlier pages out along with everything else.
+     *
+     * @param pool the buffer pool the scan reads through
+     * @param tablePages the number of pages in the table
+     * @param readAhead the number of pages the scan reads ahead
+     */
+    public static BufferRing forScan(BufferPool pool, int tablePages, int readAhead) {
+        if (tablePages <= pool.getNumPages())
+            return null;
+        // room for the read-ahead window, but never more than a quarter of the pool
+        int size = Math.max(DEFAULT_SIZE, 2 * readAhead + 2);
+        return new BufferRing(Math.min(size, Math.max(1, pool.getNumPages() / 4)));
+    }
+
+    /** @return the number of frames in the ring */
+    public int size() {
+        return slots.length;
+    }
+
+    /**
+     * Put a page in the ring.
+     *
+     * @return the page it displaces, which should leave the pool, or null
+     */
+    synchronized PageId add(PageId pid) {
+        PageId old = slots[next];
+        slots[next] = pid;
+        next = (next + 1) % slots.length;
+        return old;
+    }
+}
@@ -13,12 +13,19 @@ import java.util.concurrent.ConcurrentHashMap;
  * For now, this is a stub catalog that must be populated with tables by a
  * user program before it can be used -- eventually, this should be converted
  * to a catalog that reads a catalog table from disk.
+ * <p>
+ * Besides the tables added to it, the catalog always knows the system
+ * tables, such as {@link LockTableFile sys_locks}, which describe the
+ * database itself. They can be queried like any table, unless a table of
+ * the same name is added, but are not listed by tableIdIterator and stay
+ * when the catalog is cleared.
  * 
  * @Threadsafe
  */
 public class Catalog {
     private List<table> tables;
     private List<Integer> ids;
+    private final List<table> systemTables;
 
     private class table{
         String tableName;
@@ -40,6 +47,16 @@ public class Catalog {
     public Catalog() {
        tables=new ArrayList<>();
        ids=new ArrayList<>();
+       systemTables=new ArrayList<>();
+       systemTables.add(new table(LockTableFile.NAME,"",new LockTableFile(),LockTableFile.ID));
+    }
+
+    /** @return the system table with the given name or id, or null */
+    private table systemTable(String name, int id) {
+        for(table t:systemTables)
+            if(t.tableName.equals(name)||t.id==id)
+                return t;
+        return null;
     }
 
     /**
@@ -87,6 +104,9 @@ public class Catalog {
             if(tables.get(i).tableName.equals(name))
                 return tables.get(i).id;
         }
+        table t=systemTable(name,0);
+        if(t!=null)
+            return t.id;
         throw new NoSuchElementException();
     }
 
@@ -101,6 +121,9 @@ public class Catalog {
             if(tableid==tables.get(i).id)
                 return tables.get(i).file.getTupleDesc();
         }
+        table t=systemTable(null,tableid);
+        if(t!=null)
+            return t.file.getTupleDesc();
         throw new NoSuchElementException();
     }
 
@@ -115,14 +138,30 @@ public class Catalog {
             if(tableid==tables.get(i).id)
                 return tables.get(i).file;
         }
+        table t=systemTable(null,tableid);
+        if(t!=null)
+            return t.file;
         throw new NoSuchElementException();
     }
 
+    /**
+     * Returns the page size of the specified table, as chosen by its DbFile.
+     * @param tableid The id of the table, as specified by the DbFile.getId()
+     *     function passed to addTable
+     * @throws NoSuchElementException if the table doesn't exist
+     */
+    public int getPageSize(int tableid) throws NoSuchElementException {
+        return getDatabaseFile(tableid).getPageSize();
+    }
+
     public String getPrimaryKey(int tableid) {
         for(int i=0;i<tables.size();i++){
             if(tableid==tables.get(i).id)
                 return tables.get(i).key;
         }
+        table t=systemTable(null,tableid);
+        if(t!=null)
+            return t.key;
         throw new NoSuchElementException();
     }
 
@@ -135,7 +174,8 @@ public class Catalog {
             if(tables.get(i).id==id)
                 return tables.get(i).tableName;
         }
-        return null;
+        table t=systemTable(null,id);
+        return t==null?null:t.tableName;
     }
     
     /** Delete all tables from the catalog */
@@ -146,6 +186,12 @@ public class Catalog {
     
     /**
      * Reads the schema from a file and creates the appropriate tables in the database.
+     * Each line is of the form
+     * <pre>name (field type [pk], ...) [option=value ...]</pre>
+     * where the options are pagesize, the size in bytes of the table's
+     * pages, locking, which is page (the default) or row, and format, which
+     * is fixed (the default) or slotted, for variable-length records on
+     * pages of at most {@link SlottedHeapPage#MAX_PAGE_SIZE} bytes.
      * @param catalogFile
      */
     public void loadSchema(String catalogFile) {
@@ -183,17 +229,39 @@ public class Catalog {
                         }
                     }
                 }
+                int pageSize = 0;
+                boolean rowLocking = false;
+                HeapFile.Format format = HeapFile.Format.FIXED;
+                for (String opt : line.substring(line.indexOf(")") + 1).trim().split("\\s+")) {
+                    if (opt.isEmpty())
+                        continue;
+                    String[] kv = opt.split("=");
+                    if (kv.length == 2 && kv[0].toLowerCase().equals("pagesize"))
+                        pageSize = Integer.parseInt(kv[1]);
+                    else if (kv.length == 2 && kv[0].toLowerCase().equals("locking")
+                            && (kv[1].equals("row") || kv[1].equals("page")))
+                        rowLocking = kv[1].equals("row");
+                    else if (kv.length == 2 && kv[0].toLowerCase().equals("format")
+                            && (kv[1].equals("fixed") || kv[1].equals("slotted")))
+                        format = HeapFile.Format.valueOf(kv[1].toUpperCase());
+                    else {
+                        System.out.println("Unknown option " + opt);
+                        System.exit(0);
+                    }
+                }
                 Type[] typeAr = types.toArray(new Type[0]);
                 String[] namesAr = names.toArray(new String[0]);
                 TupleDesc t = new TupleDesc(typeAr, namesAr);
-                HeapFile tabHf = new HeapFile(new File(baseFolder+"/"+name + ".dat"), t);
+                HeapFile tabHf = new HeapFile(new File(baseFolder+"/"+name + ".dat"), t, pageSize, format);
                 addTable(tabHf,name,primaryKey);
+                Database.getBufferPool().setRowLocking(tabHf.getId(), rowLocking);
                 System.out.println("Added table : " + name + " with schema " + t);
             }
         } catch (IOException e) {
             e.printStackTrace();
             System.exit(0);
-        } catch (IndexOutOfBoundsException e) {
+        } catch (IndexOutOfBoundsException | IllegalArgumentException e) {
+            // including a bad number, or a page size the table's format cannot have
             System.out.println ("Invalid catalog entry : " + line);
             System.exit(0);
         }
@@ -0,0 +1,97 @@
+package simpledb;
+
+import java.util.*;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicIntegerArray;
+import java.util.function.Predicate;
+
+/**
+ * CLOCK (second chance) replacement. Resident pages sit in a circular array
+ * of slots, each with a reference bit that is set on every hit. To find a
+ * victim the hand sweeps the slots, clearing set bits and stopping at the
+ * first evictable page whose bit is already clear.
+ * <p>
+ * A hit only sets a bit, atomically, so it needs no lock. A hit that races
+ * with the clock growing or a slot being reused may mark the wrong slot or
+ * none; the bit is only a hint, so that costs at most a second chance.
+ * Adding, removing and choosing a victim are O(1) amortized.
+ */
+public class ClockPolicy implements ReplacementPolicy {
+
+    private final ConcurrentHashMap<PageId,Integer> slotOf;
+    private final ArrayList<PageId> slots;
+    private volatile AtomicIntegerArray referenced;
+    private final Deque<Integer> freeSlots;
+    private int hand;
+
+    /**
+     * @param capacity the expected number of resident pages; the clock grows
+     *     if the pool ever holds more
+     */
+    public ClockPolicy(int capacity) {
+        slotOf=new ConcurrentHashMap<>(capacity);
+        slots=new ArrayList<>(capacity);
+        referenced=new AtomicIntegerArray(Math.max(capacity,1));
+        freeSlots=new ArrayDeque<>();
+        hand=0;
+    }
+
+    public synchronized void pageAdded(PageId pid) {
+        Integer slot=slotOf.get(pid);
+        if(slot==null){
+            if(!freeSlots.isEmpty()){
+                slot=freeSlots.pop();
+                slots.set(slot,pid);
+            }
+            else{
+                slot=slots.size();
+                slots.add(pid);
+                if(slot>=referenced.length())
+                    referenced=grow(referenced);
+            }
+            slotOf.put(pid,slot);
+        }
+        referenced.set(slot,1);
+    }
+
+    /** @return a copy of the reference bits, twice as long */
+    private static AtomicIntegerArray grow(AtomicIntegerArray bits) {
+        AtomicIntegerArray grown=new AtomicIntegerArray(bits.length()*2);
+        for(int i=0;i<bits.length();i++)
+            grown.set(i,bits.get(i));
+        return grown;
+    }
+
+    public void pageAccessed(PageId pid) {
+        Integer slot=slotOf.get(pid);
+        if(slot!=null)
+            referenced.set(slot,1);
+    }
+
+    public synchronized void pageRemoved(PageId pid) {
+        Integer slot=slotOf.remove(pid);
+        if(slot==null)
+            return;
+        slots.set(slot,null);
+        referenced.set(slot,0);
+        freeSlots.push(slot);
+    }
+
+    public synchronized PageId chooseVictim(Predicate<PageId> canEvict) {
+        int n=slots.size();
+        // two full turns: the first may only clear reference bits
+        for(int i=0;i<2*n;i++){
+            if(hand>=n)
+                hand=0;
+            int slot=hand++;
+            PageId pid=slots.get(slot);
+            if(pid==null)
+                continue;
+            if(referenced.getAndSet(slot,0)!=0)
+                continue;
+            if(canEvict.test(pid))
+                return pid;
+        }
+        return null;
+    }
+}
@@ -3,6 +3,7 @@ package simpledb;
 
 import java.util.*;
 import java.io.*;
+import java.nio.ByteBuffer;
 
 /**
  * The interface for database files on disk. Each table is represented by a
@@ -28,6 +29,60 @@ public interface DbFile {
      */
     public void writePage(Page p) throws IOException;
 
+    /**
+     * Returns the size in bytes of the pages of this file. Files that do not
+     * choose their own page size use the buffer pool's.
+     *
+     * @see BufferPool#getPageSize()
+     */
+    public default int getPageSize() {
+        return BufferPool.getPageSize();
+    }
+
+    /**
+     * Read the bytes of the specified page from disk into dst, starting at its
+     * current position, without decoding them. Bytes past the end of the
+     * file read as zero. Used by buffer pools that keep page bytes off-heap.
+     *
+     * @throws IOException if the read fails
+     */
+    public default void readPageData(PageId id, ByteBuffer dst) throws IOException {
+        dst.put(readPage(id).getPageData());
+    }
+
+    /**
+     * Read the bytes of several pages at once, one page into each buffer, as
+     * {@link #readPageData} would. Files that can do so read consecutive
+     * pages with a single vectored read.
+     *
+     * @throws IOException if the read fails
+     */
+    public default void readPagesData(List<PageId> ids, ByteBuffer[] dsts) throws IOException {
+        for (int i = 0; i < ids.size(); i++)
+            readPageData(ids.get(i), dsts[i]);
+    }
+
+    /**
+     * Push the bytes of the specified page, from src's position to its
+     * limit, to disk.
+     *
+     * @throws IOException if the write fails
+     */
+    public default void writePageData(PageId id, ByteBuffer src) throws IOException {
+        byte[] data = new byte[src.remaining()];
+        src.get(data);
+        writePage(decodePage(id, data));
+    }
+
+    /**
+     * Build the page object for bytes obtained from {@link #readPageData}.
+     * The buffer pool decodes every page it holds as bytes this way, so a
+     * file whose pages can be cached must implement it.
+     *
+     * @throws IOException if the bytes cannot be parsed
+     */
+    public Page decodePage(PageId id, byte[] data) throws IOException;
+
     /**
      * Inserts the specified tuple to the file on behalf of transaction.
      * This method will acquire a lock on the affected pages of the file, and
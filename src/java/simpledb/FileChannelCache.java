@@ -0,0 +1,137 @@
+package simpledb;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.channels.ClosedByInterruptException;
+import java.nio.channels.ClosedChannelException;
+import java.nio.channels.FileChannel;
+import java.nio.file.StandardOpenOption;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+/**
+ * FileChannelCache keeps the files behind DbFiles open between page reads
+ * and writes, so that a miss in the buffer pool costs one positional read
+ * rather than an open, a seek and a close. At most a fixed number of
+ * channels are kept open; when there are more, the least recently used
+ * channel is closed once nobody is using it.
+ * <p>
+ * Channels are shared by every thread, so callers must only use positional
+ * reads and writes on them, never the channel's own position.
+ *
+ * @see Database#getChannelCache()
+ * @Threadsafe
+ */
+public class FileChannelCache {
+
+    /** Default number of channels kept open. */
+    public static final int DEFAULT_CAPACITY = 64;
+
+    /** An operation on an open channel. */
+    public interface ChannelOp<T> {
+        T apply(FileChannel ch) throws IOException;
+    }
+
+    private static class Handle {
+        final FileChannel ch;
+        int users;
+        // no longer in the cache; close once the last user is done
+        boolean evicted;
+
+        Handle(FileChannel ch) {
+            this.ch = ch;
+        }
+    }
+
+    private final int capacity;
+    // in access order, least recently used first
+    private final LinkedHashMap<File, Handle> open;
+
+    public FileChannelCache() {
+        this(DEFAULT_CAPACITY);
+    }
+
+    /**
+     * @param capacity the number of channels kept open
+     */
+    public FileChannelCache(int capacity) {
+        this.capacity = Math.max(1, capacity);
+        open = new LinkedHashMap<File, Handle>(16, 0.75f, true);
+    }
+
+    /**
+     * Run an operation on the channel of a file, opening the file for reading
+     * and writing (and creating it) if it is not already open. If the channel
+     * is closed under the operation because some other thread using it was
+     * interrupted, the operation is retried once on a fresh channel.
+     *
+     * @param f the file
+     * @param op what to do with its channel
+     * @return the result of op
+     */
+    public <T> T withChannel(File f, ChannelOp<T> op) throws IOException {
+        File key = f.getAbsoluteFile();
+        for (int attempt = 0; ; attempt++) {
+            Handle h = acquire(key);
+            try {
+                return op.apply(h.ch);
+            } catch (ClosedChannelException e) {
+                if (attempt > 0 || e instanceof ClosedByInterruptException)
+                    throw e;
+            } finally {
+                release(h);
+            }
+        }
+    }
+
+    /** @return the number of channels currently open */
+    public synchronized int size() {
+        return open.size();
+    }
+
+    /** Close every channel, once the operations using them finish. */
+    public synchronized void closeAll() {
+        for (Handle h : open.values())
+            retire(h);
+        open.clear();
+    }
+
+    private synchronized Handle acquire(File f) throws IOException {
+        Handle h = open.get(f);
+        if (h == null || !h.ch.isOpen()) {
+            if (h != null)
+                retire(h);
+            h = new Handle(FileChannel.open(f.toPath(), StandardOpenOption.READ,
+                    StandardOpenOption.WRITE, StandardOpenOption.CREATE));
+            open.put(f, h);
+            Iterator<Map.Entry<File, Handle>> it = open.entrySet().iterator();
+            while (open.size() > capacity) {
+                retire(it.next().getValue());
+                it.remove();
+            }
+        }
+        h.users++;
+        return h;
+    }
+
+    private synchronized void release(Handle h) {
+        h.users--;
+        if (h.evicted && h.users == 0)
+            close(h);
+    }
+
+    private void retire(Handle h) {
+        h.evicted = true;
+        if (h.users == 0)
+            close(h);
+    }
+
+    private static void close(Handle h) {
+        try {
+            h.ch.close();
+        } catch (IOException e) {
+            // nothing was buffered, so there is nothing to lose
+        }
+    }
+}
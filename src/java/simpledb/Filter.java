@@ -66,6 +66,22 @@ public class Filter extends Operator {
         return null;
     }
 
+    /**
+     * Filters a batch of the child's tuples at a time, skipping batches in
+     * which no tuple passes.
+     *
+     * @see Predicate#filter(TupleBatch)
+     */
+    public TupleBatch nextBatch() throws TransactionAbortedException, DbException {
+        TupleBatch batch;
+        while((batch=child.nextBatch())!=null){
+            predicate.filter(batch);
+            if(batch.size()>0)
+                return batch;
+        }
+        return null;
+    }
+
     @Override
     public OpIterator[] getChildren() {
         List<OpIterator> a=new ArrayList<>();
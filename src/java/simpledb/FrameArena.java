@@ -0,0 +1,108 @@
+package simpledb;
+
+import java.nio.ByteBuffer;
+import java.util.ArrayDeque;
+
+/**
+ * FrameArena is a block of off-heap memory carved into fixed-size frames,
+ * each big enough to hold one page. A BufferPool built on an arena keeps the
+ * bytes of its pages here rather than in page objects on the Java heap, so
+ * the size of a large pool does not show up in garbage collection.
+ * <p>
+ * The memory is allocated once, up front, as direct ByteBuffers. A single
+ * direct buffer cannot exceed 2 GB, so larger arenas are split into chunks
+ * holding a whole number of frames each.
+ *
+ * @Threadsafe
+ */
+public class FrameArena {
+
+    private static final int MAX_CHUNK_BYTES = Integer.MAX_VALUE;
+
+    private final int frameSize;
+    private final int numFrames;
+    private final int framesPerChunk;
+    private final ByteBuffer[] chunks;
+    private final ArrayDeque<Integer> freeFrames;
+
+    /**
+     * Creates an arena of frames of the buffer pool's page size.
+     *
+     * @param capacityBytes total size of the arena; the number of frames is
+     *     this divided by the page size, rounded down
+     */
+    public FrameArena(long capacityBytes) {
+        this(capacityBytes, BufferPool.getPageSize());
+    }
+
+    /**
+     * @param capacityBytes total size of the arena
+     * @param frameSize size of each frame in bytes
+     * @throws IllegalArgumentException if the arena cannot hold a single frame
+     */
+    public FrameArena(long capacityBytes, int frameSize) {
+        if (frameSize <= 0 || capacityBytes < frameSize)
+            throw new IllegalArgumentException("arena of " + capacityBytes
+                    + " bytes cannot hold a frame of " + frameSize + " bytes");
+        if (capacityBytes / frameSize > Integer.MAX_VALUE)
+            throw new IllegalArgumentException("too many frames in arena");
+        this.frameSize = frameSize;
+        this.numFrames = (int) (capacityBytes / frameSize);
+        this.framesPerChunk = Math.min(numFrames, MAX_CHUNK_BYTES / frameSize);
+        int numChunks = (numFrames + framesPerChunk - 1) / framesPerChunk;
+        chunks = new ByteBuffer[numChunks];
+        for (int i = 0; i < numChunks; i++) {
+            int frames = Math.min(framesPerChunk, numFrames - i * framesPerChunk);
+            chunks[i] = ByteBuffer.allocateDirect(frames * frameSize);
+        }
+        freeFrames = new ArrayDeque<Integer>(numFrames);
+        for (int i = 0; i < numFrames; i++)
+            freeFrames.add(i);
+    }
+
+    /** @return the number of frames in this arena */
+    public int numFrames() {
+        return numFrames;
+    }
+
+    /** @return the size of each frame in bytes */
+    public int frameSize() {
+        return frameSize;
+    }
+
+    /**
+     * Take a free frame.
+     *
+     * @return the index of the frame, or -1 if every frame is in use
+     */
+    public synchronized int allocate() {
+        Integer frame = freeFrames.poll();
+        return frame == null ? -1 : frame;
+    }
+
+    /** Return a frame taken with {@link #allocate}. */
+    public synchronized void free(int frame) {
+        freeFrames.push(frame);
+    }
+
+    /** @return the number of frames not currently allocated */
+    public synchronized int numFree() {
+        return freeFrames.size();
+    }
+
+    /**
+     * Returns a buffer over the memory of one frame, with position 0 and
+     * limit and capacity equal to the frame size. The buffer shares its
+     * contents with the arena but has its own position and limit, so it
+     * may be used without further synchronization by the frame's owner.
+     */
+    public ByteBuffer frame(int frame) {
+        if (frame < 0 || frame >= numFrames)
+            throw new IndexOutOfBoundsException("no frame " + frame);
+        ByteBuffer chunk = chunks[frame / framesPerChunk].duplicate();
+        int offset = (frame % framesPerChunk) * frameSize;
+        chunk.position(offset);
+        chunk.limit(offset + frameSize);
+        return chunk.slice();
+    }
+}
@@ -0,0 +1,120 @@
+package simpledb;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.util.BitSet;
+
+/**
+ * FreeSpaceMap remembers which pages of a heap file are full, so that an
+ * insert can go straight to a page with room rather than locking and
+ * reading every page before it.
+ * <p>
+ * The map is one bit per page, set once the page is known to be full. It
+ * is kept in a file next to the heap file, named after it with ".fsm"
+ * added: eight bytes holding the length of the heap file when the map
+ * was last written, then the bits. A map whose recorded length does not
+ * match the heap file, as after the heap file was written by other means,
+ * is not trusted, and the map starts out empty instead.
+ * <p>
+ * The map is only a hint. A page marked full may have room again after an
+ * abort, and a page not marked full may be full; inserts check the page
+ * itself, and fix the map when it is wrong. A page wrongly marked full
+ * only wastes its free space until a delete from it clears the bit.
+ *
+ * @see HeapFile#insertTuple(TransactionId, Tuple)
+ * @Threadsafe
+ */
+public class FreeSpaceMap {
+
+    private static final int HEADER = 8;
+
+    private final File heap;
+    private final File file;
+    private final BitSet full = new BitSet();
+    // the heap file's length as last written to the map, or -1
+    private long recorded = -1;
+
+    /**
+     * Open the map of a heap file, reading it from disk if it is there.
+     *
+     * @param heap the heap file's file on disk
+     */
+    public FreeSpaceMap(File heap) {
+        this.heap = heap;
+        this.file = new File(heap.getPath() + ".fsm");
+        load();
+    }
+
+    /** @return the file the map is kept in */
+    public File getFile() {
+        return file;
+    }
+
+    private void load() {
+        if (!file.exists())
+            return;
+        try (RandomAccessFile raf = new RandomAccessFile(file, "r")) {
+            if (raf.length() < HEADER || raf.readLong() != heap.length())
+                return;
+            byte[] bits = new byte[(int) (raf.length() - HEADER)];
+            raf.readFully(bits);
+            full.or(BitSet.valueOf(bits));
+            recorded = heap.length();
+        } catch (IOException e) {
+            full.clear();
+        }
+    }
+
+    /**
+     * @return the first page at or after from that is not known to be full;
+     *     it may be past the end of the heap file
+     */
+    public synchronized int nextWithRoom(int from) {
+        return full.nextClearBit(from);
+    }
+
+    /** @return true if a page is known to be full */
+    public synchronized boolean isFull(int pageNo) {
+        return full.get(pageNo);
+    }
+
+    /**
+     * Record whether a page is full, writing the change to disk. Call this
+     * too after adding a page to the heap file, so the map on disk stays
+     * in step with the file's length. A failed write is ignored: the map
+     * on disk is then stale, and is not trusted the next time it is read.
+     */
+    public synchronized void setFull(int pageNo, boolean isFull) {
+        long length = heap.length();
+        if (full.get(pageNo) == isFull && length == recorded)
+            return;
+        full.set(pageNo, isFull);
+        // no map on disk says the same as an empty one
+        if (full.isEmpty() && !file.exists())
+            return;
+        ByteBuffer header = ByteBuffer.allocate(HEADER);
+        header.putLong(0, length);
+        // a map on disk we did not write ourselves is rewritten whole
+        boolean whole = recorded < 0;
+        int at = whole ? 0 : pageNo / 8;
+        byte[] b = full.toByteArray();
+        ByteBuffer bits = whole ? ByteBuffer.wrap(b)
+                : ByteBuffer.wrap(new byte[] { at < b.length ? b[at] : 0 });
+        try {
+            Database.getChannelCache().withChannel(file, ch -> {
+                if (whole)
+                    ch.truncate(HEADER);
+                while (bits.hasRemaining())
+                    ch.write(bits, HEADER + at + bits.position());
+                while (header.hasRemaining())
+                    ch.write(header, header.position());
+                return null;
+            });
+            recorded = length;
+        } catch (IOException e) {
+            // the map is only a hint
+        }
+    }
+}
@@ -13,6 +13,13 @@ public class HashEquiJoin extends Operator {
     private TupleDesc comboTD;
     transient private Tuple t1 = null;
     transient private Tuple t2 = null;
+    // nextBatch's place: a batch of child2, its row being joined, and that row's matches
+    transient private TupleBatch probe = null;
+    transient private int probeRow;
+    transient private ArrayList<Tuple> matches = null;
+    transient private int match;
+    // the table holds all of child1, so it is never loaded again
+    transient private boolean whole = false;
 
     /**
      * Constructor. Accepts to children to join and the predicate to join them
@@ -76,6 +83,7 @@ public class HashEquiJoin extends Operator {
         child1.open();
         child2.open();
         loadMap();
+        whole = !child1.hasNext();
         super.open();
     }
 
@@ -87,11 +95,21 @@ public class HashEquiJoin extends Operator {
         this.t2=null;
         this.listIt=null;
         this.map.clear();
+        this.probe=null;
+        this.matches=null;
+        this.whole=false;
     }
 
     public void rewind() throws DbException, TransactionAbortedException {
-        child1.rewind();
         child2.rewind();
+        listIt = null;
+        probe = null;
+        matches = null;
+        if (!whole) {
+            // the table holds the last block of child1 read, if any
+            child1.rewind();
+            loadMap();
+        }
     }
 
     transient Iterator<Tuple> listIt = null;
@@ -151,6 +169,8 @@ public class HashEquiJoin extends Operator {
         }
 
         // child2 is done: advance child1
+        if (whole)
+            return null;
         child2.rewind();
         if (loadMap()) {
             return fetchNext();
@@ -159,6 +179,38 @@ public class HashEquiJoin extends Operator {
         return null;
     }
 
+    /**
+     * Returns the next batch of tuples generated by the join, or null if
+     * there are no more. child2 is read a batch at a time, each row looked
+     * up in the same table of child1's tuples fetchNext uses.
+     */
+    public TupleBatch nextBatch() throws TransactionAbortedException, DbException {
+        TupleBatch out = new TupleBatch(comboTD);
+        while (!out.isFull()) {
+            if (matches != null && match < matches.size()) {
+                out.addJoined(matches.get(match++), probe, probeRow);
+                continue;
+            }
+            matches = null;
+            if (probe == null || ++probeRow >= probe.size()) {
+                probe = child2.nextBatch();
+                probeRow = 0;
+                if (probe == null) {
+                    // child2 is done: advance child1
+                    if (whole)
+                        break;
+                    child2.rewind();
+                    if (!loadMap())
+                        break;
+                    continue;
+                }
+            }
+            matches = map.get(probe.getField(pred.getField2(), probeRow));
+            match = 0;
+        }
+        return out.size() == 0 ? null : out;
+    }
+
     @Override
     public OpIterator[] getChildren() {
         return new OpIterator[]{this.child1, this.child2};
@@ -2,6 +2,9 @@ package simpledb;
 
 import java.io.*;
 import java.lang.reflect.Array;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
 import java.util.*;
 
 /**
@@ -9,14 +12,38 @@ import java.util.*;
  * in no particular order. Tuples are stored on pages, each of which is a fixed
  * size, and the file is simply a collection of those pages. HeapFile works
  * closely with HeapPage. The format of HeapPages is described in the HeapPage
- * constructor.
+ * constructor; a file may instead use the slotted format of SlottedHeapPage,
+ * which stores variable-length records.
  *
  * @see simpledb.HeapPage#HeapPage
+ * @see simpledb.SlottedHeapPage
  * @author Sam Madden
  */
 public class HeapFile implements DbFile {
+
+    /** How a heap file lays out tuples on its pages. */
+    public enum Format {
+        /** Fixed-size slots after a bitmap header, as described in HeapPage. */
+        FIXED,
+        /** Variable-length records and a slot directory, as described in SlottedHeapPage. */
+        SLOTTED
+    }
+
     private File file;
     private TupleDesc tupleDesc;
+    // bytes per page, or 0 to follow the buffer pool's page size
+    private final int pageSize;
+    private final Format format;
+    private volatile int readAheadPages;
+    // while reads are mapped: the file mapped into memory, or null until
+    // the first read
+    private volatile boolean mapped;
+    private volatile MappedByteBuffer map;
+    // which pages are full, opened on first use
+    private volatile FreeSpaceMap freeSpace;
+    // how many pages at the end of the file an aborted bulk insert left
+    // empty, for the next pages added to take
+    private int reusable;
 
     /**
      * Constructs a heap file backed by the specified file.
@@ -26,7 +53,44 @@ public class HeapFile implements DbFile {
      *            file.
      */
     public HeapFile(File f, TupleDesc td) {
-        file=f;tupleDesc=td;
+        this(f,td,0);
+    }
+
+    /**
+     * Constructs a heap file with pages of its own size, e.g. larger pages
+     * for wide tables that are mostly scanned.
+     *
+     * @param f
+     *            the file that stores the on-disk backing store for this heap
+     *            file.
+     * @param pageSize
+     *            the size of its pages in bytes, or 0 for the buffer pool's
+     *            page size
+     */
+    public HeapFile(File f, TupleDesc td, int pageSize) {
+        this(f,td,pageSize,Format.FIXED);
+    }
+
+    /**
+     * Constructs a heap file whose pages are in the given format. Tables
+     * with short strings fit many more rows on a page in the slotted
+     * format. The format is a property of the file on disk: a file must
+     * always be opened with the format it was written in, and files made
+     * by HeapFileEncoder are in the fixed format.
+     *
+     * @param pageSize
+     *            the size of its pages in bytes, or 0 for the buffer pool's
+     *            page size; at most {@link SlottedHeapPage#MAX_PAGE_SIZE}
+     *            in the slotted format
+     * @param format
+     *            the layout of its pages
+     */
+    public HeapFile(File f, TupleDesc td, int pageSize, Format format) {
+        if(pageSize<0)
+            throw new IllegalArgumentException("bad page size "+pageSize);
+        if(format==Format.SLOTTED&&(pageSize==0?BufferPool.getPageSize():pageSize)>SlottedHeapPage.MAX_PAGE_SIZE)
+            throw new IllegalArgumentException("slotted pages cannot be larger than "+SlottedHeapPage.MAX_PAGE_SIZE+" bytes");
+        file=f;tupleDesc=td;this.pageSize=pageSize;this.format=format;
     }
 
     /**
@@ -38,6 +102,104 @@ public class HeapFile implements DbFile {
         return file;
     }
 
+    /**
+     * @return the layout of this file's pages
+     */
+    public Format getFormat() {
+        return format;
+    }
+
+    // make a page of this file from its bytes
+    private HeapPage newPage(HeapPageId id, byte[] data) throws IOException {
+        return format==Format.SLOTTED?new SlottedHeapPage(id,data):new HeapPage(id,data);
+    }
+
+    private HeapPage newPage(HeapPageId id, ByteBuffer data) throws IOException {
+        return format==Format.SLOTTED?new SlottedHeapPage(id,data):new HeapPage(id,data);
+    }
+
+    // see DbFile.java for javadocs
+    public int getPageSize() {
+        return pageSize>0?pageSize:BufferPool.getPageSize();
+    }
+
+    /**
+     * Turns on read-ahead for sequential scans of this file. Once a scan
+     * reads two consecutive pages, the buffer pool is asked to read the
+     * next pages in the background, so they are resident when the scan
+     * gets to them.
+     *
+     * @param pages how many pages to keep read ahead of the scan; 0 turns
+     *            read-ahead off, which is the default
+     */
+    public void setReadAhead(int pages) {
+        readAheadPages=Math.max(0,pages);
+    }
+
+    /**
+     * @return the number of pages read ahead of sequential scans, or 0
+     */
+    public int getReadAhead() {
+        return readAheadPages;
+    }
+
+    /**
+     * Turns on memory-mapped reads, meant for tables that are read often and
+     * written rarely. Pages are then taken from a read-only mapping of the
+     * whole file rather than read through the channel, so a miss costs no
+     * system call. Each page is still copied once out of the mapping, as a
+     * page is changed in place and the mapping cannot be. Writes still go
+     * through the file channel, and show up in the mapping. The file is
+     * mapped again when a read finds that it has grown past the mapping;
+     * files too large to map in one piece are read as usual.
+     *
+     * @param mapped true to map the file, false to go back to reading it
+     */
+    public void setMapped(boolean mapped) {
+        this.mapped=mapped;
+        if(!mapped)
+            map=null;
+    }
+
+    /**
+     * @return true if reads of this file are memory-mapped
+     */
+    public boolean isMapped() {
+        return mapped;
+    }
+
+    /**
+     * Returns a view of a page in the mapped file, or null if the page is
+     * past the end of the file or the file cannot be mapped.
+     */
+    private ByteBuffer mappedPage(PageId pid) throws IOException {
+        long pos=(long)pid.getPageNumber()*getPageSize();
+        long end=pos+getPageSize();
+        MappedByteBuffer m=map;
+        if(m==null||m.capacity()<end){
+            m=remap(end);
+            if(m==null)
+                return null;
+        }
+        ByteBuffer view=m.duplicate();
+        view.limit((int)end);
+        view.position((int)pos);
+        return view.slice();
+    }
+
+    /** Map the file again if it now extends to the given offset. */
+    private synchronized MappedByteBuffer remap(long needed) throws IOException {
+        MappedByteBuffer m=map;
+        if(m!=null&&m.capacity()>=needed)
+            return m;
+        long size=file.length();
+        if(size<needed||size>Integer.MAX_VALUE)
+            return null;
+        m=Database.getChannelCache().withChannel(file,ch->ch.map(FileChannel.MapMode.READ_ONLY,0,size));
+        map=m;
+        return m;
+    }
+
     /**
      * Returns an ID uniquely identifying this HeapFile. Implementation note:
      * you will need to generate this tableid somewhere to ensure that each
@@ -64,13 +226,13 @@ public class HeapFile implements DbFile {
 
     public Page readPage(PageId pid) {
         try{
-            FileInputStream bis=new FileInputStream(file);
-            bis.skip(pid.getPageNumber()*BufferPool.getPageSize());
-            byte[] data =new byte[BufferPool.getPageSize()];
-            bis.read(data,0,BufferPool.getPageSize());
             HeapPageId id = new HeapPageId(pid.getTableId(),pid.getPageNumber());
-            bis.close();
-            return new HeapPage(id,data);
+            ByteBuffer view=mapped?mappedPage(pid):null;
+            if(view!=null)
+                return newPage(id,view);
+            ByteBuffer buf=ByteBuffer.allocate(getPageSize());
+            readPageData(pid,buf);
+            return newPage(id,buf.array());
         }catch (Exception e){
             e.printStackTrace();
         }
@@ -80,43 +242,259 @@ public class HeapFile implements DbFile {
 
     // see DbFile.java for javadocs
     public void writePage(Page page) throws IOException {
-        try{
-            RandomAccessFile raf=new RandomAccessFile(file,"rw");
-            raf.seek(page.getId().getPageNumber()*BufferPool.getPageSize());
-            raf.write(page.getPageData());
-        }catch (Exception e){
-            e.printStackTrace();
+        writePageData(page.getId(),ByteBuffer.wrap(page.getPageData()));
+    }
+
+    // see DbFile.java for javadocs
+    public void readPageData(PageId pid, ByteBuffer dst) throws IOException {
+        long pos=(long)pid.getPageNumber()*getPageSize();
+        dst.limit(dst.position()+getPageSize());
+        ByteBuffer view=mapped?mappedPage(pid):null;
+        if(view!=null){
+            dst.put(view);
+            return;
         }
+        Database.getChannelCache().withChannel(file,ch->readFully(ch,dst,pos));
+        while(dst.hasRemaining())
+            dst.put((byte)0);
+    }
+
+    // see DbFile.java for javadocs
+    public void readPagesData(List<PageId> pids, ByteBuffer[] dsts) throws IOException {
+        if(mapped){
+            DbFile.super.readPagesData(pids,dsts);
+            return;
+        }
+        for(int i=1;i<pids.size();i++){
+            if(pids.get(i).getPageNumber()!=pids.get(i-1).getPageNumber()+1){
+                DbFile.super.readPagesData(pids,dsts);
+                return;
+            }
+        }
+        // the channel is shared, so rather than a scattering read from its
+        // position, read the whole run at an offset and hand it out
+        ByteBuffer run=ByteBuffer.allocate(dsts.length*getPageSize());
+        long pos=(long)pids.get(0).getPageNumber()*getPageSize();
+        Database.getChannelCache().withChannel(file,ch->readFully(ch,run,pos));
+        while(run.hasRemaining())
+            run.put((byte)0);
+        run.flip();
+        for(ByteBuffer dst:dsts){
+            run.limit(run.position()+getPageSize());
+            dst.put(run);
+        }
+    }
+
+    // see DbFile.java for javadocs
+    public void writePageData(PageId pid, ByteBuffer src) throws IOException {
+        long pos=(long)pid.getPageNumber()*getPageSize();
+        Database.getChannelCache().withChannel(file,ch->{
+            long at=pos;
+            while(src.hasRemaining())
+                at+=ch.write(src,at);
+            return null;
+        });
+    }
+
+    /** Read from pos until dst is full or the file ends. */
+    private static Void readFully(FileChannel ch, ByteBuffer dst, long pos) throws IOException {
+        while(dst.hasRemaining()){
+            int n=ch.read(dst,pos);
+            if(n<0)break;
+            pos+=n;
+        }
+        return null;
+    }
+
+    // see DbFile.java for javadocs
+    public Page decodePage(PageId pid, byte[] data) throws IOException {
+        return newPage(new HeapPageId(pid.getTableId(),pid.getPageNumber()),data);
     }
 
     /**
      * Returns the number of pages in this HeapFile.
      */
     public int numPages() {
-        return (int)file.length()/BufferPool.getPageSize();
+        return (int)file.length()/getPageSize();
     }
 
-    // see DbFile.java for javadocs
+    /**
+     * @return the map of which of this file's pages are full
+     */
+    public FreeSpaceMap getFreeSpaceMap() {
+        FreeSpaceMap m=freeSpace;
+        if(m==null){
+            synchronized (this){
+                if(freeSpace==null)
+                    freeSpace=new FreeSpaceMap(file);
+                m=freeSpace;
+            }
+        }
+        return m;
+    }
+
+    /**
+     * Add empty pages to the end of the file for a bulk insert to fill,
+     * first taking those an aborted bulk insert left empty there. The new
+     * pages are locked for the transaction and marked full in the
+     * free-space map before the file grows, so no other insert picks them.
+     *
+     * @param tid the transaction that will fill the pages
+     * @param n the number of pages to add
+     * @return the number of the first page added
+     */
+    public synchronized int allocatePages(TransactionId tid, int n)
+            throws IOException, TransactionAbortedException {
+        int first=numPages()-reusable;
+        reusable-=Math.min(n,reusable);
+        LockManager lm=Database.getBufferPool().getLockManager();
+        FreeSpaceMap fsm=getFreeSpaceMap();
+        for(int i=first;i<first+n;i++){
+            lm.acquire(tid,new HeapPageId(getId(),i),Permissions.READ_WRITE);
+            fsm.setFull(i,true);
+        }
+        long end=(long)(first+n)*getPageSize();
+        if(end>file.length())
+            Database.getChannelCache().withChannel(file,ch->ch.write(ByteBuffer.allocate(1),end-1));
+        return first;
+    }
+
+    /**
+     * Take back the pages a bulk insert added, once its transaction has
+     * aborted and they have been written empty again. Those that end the
+     * file stay marked full and are handed out again by allocatePages and
+     * insertTuple before the file grows; the rest are offered to inserts
+     * in the free-space map.
+     *
+     * @param pageNos the numbers of the pages
+     */
+    public synchronized void reclaimPages(Collection<Integer> pageNos) {
+        Set<Integer> left=new HashSet<>(pageNos);
+        while(left.remove(numPages()-reusable-1))
+            reusable++;
+        FreeSpaceMap fsm=getFreeSpaceMap();
+        for(int i:left)
+            fsm.setFull(i,false);
+    }
+
+    /**
+     * Add an empty page to the end of the file for insertTuple to put a
+     * tuple on once the pages it has are full, or take one an aborted bulk
+     * insert left empty there. The page is reserved as
+     * allocatePages reserves its pages, and under the same monitor, so the
+     * two never pick the same page number: it is marked full in the
+     * free-space map, and on a page-locked table locked for the
+     * transaction, before the file grows. On a row-locked table the caller
+     * locks the row instead, which may have to wait for the table; until
+     * then the free-space map keeps other inserts off the page.
+     *
+     * @return the id of the new page
+     */
+    private synchronized HeapPageId appendPage(TransactionId tid, boolean rowLocked)
+            throws IOException, TransactionAbortedException {
+        HeapPageId pid=new HeapPageId(getId(),numPages()-reusable);
+        if(reusable>0)
+            reusable--;
+        if(!rowLocked)
+            Database.getBufferPool().getLockManager().acquire(tid,pid,Permissions.READ_WRITE);
+        getFreeSpaceMap().setFull(pid.getPageNumber(),true);
+        writePage(newPage(pid,HeapPage.createEmptyPageData(getPageSize())));
+        return pid;
+    }
+
+    /**
+     * Write the data of consecutive pages with one write.
+     *
+     * @param first the number of the first page
+     * @param pages the pages' data, each getPageSize() bytes
+     */
+    public void writePagesData(int first, List<byte[]> pages) throws IOException {
+        ByteBuffer all=ByteBuffer.allocate(pages.size()*getPageSize());
+        for(byte[] data:pages)
+            all.put(data);
+        all.flip();
+        writePageData(new HeapPageId(getId(),first),all);
+    }
+
+    /**
+     * Insert a tuple into the first page with room. The free-space map
+     * skips the pages known to be full, so they are neither read nor
+     * locked; a page the map wrongly thinks has room is marked full, and
+     * its lock given back if this transaction had no other use for it.
+     */
     public ArrayList<Page> insertTuple(TransactionId tid, Tuple t)
             throws DbException, IOException, TransactionAbortedException {
         ArrayList<Page> pages=new ArrayList<>();
-        for(int i=0;i<numPages();i++){
+        if(Database.getBufferPool().isRowLocking(getId()))
+            return insertRow(tid,t);
+        BufferPool bp=Database.getBufferPool();
+        FreeSpaceMap fsm=getFreeSpaceMap();
+        for(int i=fsm.nextWithRoom(0);i<numPages();i=fsm.nextWithRoom(i+1)){
             PageId pid2=new HeapPageId(this.getId(),i);
-            HeapPage p=(HeapPage)Database.getBufferPool().getPage(tid, pid2, Permissions.READ_WRITE);
+            boolean held=bp.holdsLock(tid,pid2);
+            HeapPage p=(HeapPage)bp.getPage(tid, pid2, Permissions.READ_WRITE);
             if(p.getNumEmptySlots()==0){
+                fsm.setFull(i,true);
+                if(!held)
+                    bp.releasePage(tid,pid2);
                 continue;
             }
-//            Database.getBufferPool().getLockManager().updateGraph(tid,p.getId());
-//            Database.getBufferPool().releasePage(tid,p.getId());
             p.insertTuple(t);
+            if(p.getNumEmptySlots()==0)
+                fsm.setFull(i,true);
             pages.add(p);
             return pages;
         }
-        byte[] data=HeapPage.createEmptyPageData();
-        HeapPageId pid=new HeapPageId(this.getId(),numPages());
-        HeapPage page=new HeapPage(pid,data);
+        HeapPageId pid=appendPage(tid,false);
+        HeapPage page=(HeapPage)bp.getPage(tid,pid,Permissions.READ_WRITE);
         page.insertTuple(t);
-        writePage(page);
+        fsm.setFull(pid.getPageNumber(),page.getNumEmptySlots()==0);
+        pages.add(page);
+        return pages;
+    }
+
+    /**
+     * Insert into a row-locked table: other transactions may be changing
+     * the same pages, so the tuple goes in the first free slot nobody else
+     * holds a lock on, such as that of a row deleted by a running
+     * transaction, which may yet put it back.
+     */
+    private ArrayList<Page> insertRow(TransactionId tid, Tuple t)
+            throws DbException, IOException, TransactionAbortedException {
+        BufferPool bp=Database.getBufferPool();
+        FreeSpaceMap fsm=getFreeSpaceMap();
+        ArrayList<Page> pages=new ArrayList<>();
+        for(int i=fsm.nextWithRoom(0);i<numPages();i=fsm.nextWithRoom(i+1)){
+            HeapPageId pid=new HeapPageId(getId(),i);
+            HeapPage p=(HeapPage)bp.getPage(tid,pid,Permissions.READ_WRITE);
+            synchronized (p){
+                if(p.getNumEmptySlots()==0){
+                    fsm.setFull(i,true);
+                    continue;
+                }
+                for(int slot=0;slot<p.numSlots;slot++){
+                    if(!p.isSlotUsed(slot)&&bp.tryLockTuple(tid,new RecordId(pid,slot),Permissions.READ_WRITE)){
+                        try{
+                            p.insertTupleAt(t,slot);
+                        }catch (DbException e){
+                            // a slotted page may lack the bytes for a new slot
+                            break;
+                        }
+                        if(p.getNumEmptySlots()==0)
+                            fsm.setFull(i,true);
+                        pages.add(p);
+                        return pages;
+                    }
+                }
+            }
+        }
+        HeapPageId pid=appendPage(tid,true);
+        bp.lockTuple(tid,new RecordId(pid,0),Permissions.READ_WRITE);
+        HeapPage page=(HeapPage)bp.getPage(tid,pid,Permissions.READ_WRITE);
+        synchronized (page){
+            page.insertTupleAt(t,0);
+        }
+        fsm.setFull(pid.getPageNumber(),page.getNumEmptySlots()==0);
         pages.add(page);
         return pages;
     }
@@ -125,8 +503,12 @@ public class HeapFile implements DbFile {
     public ArrayList<Page> deleteTuple(TransactionId tid, Tuple t) throws DbException,
             TransactionAbortedException {
         PageId pid=new HeapPageId(this.getId(),t.getRecordId().getPageId().getPageNumber());
-        HeapPage p=(HeapPage)Database.getBufferPool().getPage(tid, pid, Permissions.READ_WRITE);
+        BufferPool bp=Database.getBufferPool();
+        if(bp.isRowLocking(getId()))
+            bp.lockTuple(tid,t.getRecordId(),Permissions.READ_WRITE);
+        HeapPage p=(HeapPage)bp.getPage(tid, pid, Permissions.READ_WRITE);
         p.deleteTuple(t);
+        getFreeSpaceMap().setFull(pid.getPageNumber(),false);
         ArrayList<Page> pages=new ArrayList<>();
         pages.add(p);
 //        Database.getBufferPool().getLockManager().updateGraph(tid,pid);
@@ -143,6 +525,18 @@ public class HeapFile implements DbFile {
         private final TransactionId tid;
         private Iterator<Tuple> it;
         private final HeapFile heapFile;
+        // read-ahead state: the previous page read, how many pages in a row
+        // followed their predecessor, and the end of the pages asked for
+        private int lastPage;
+        private int sequential;
+        private int prefetchedTo;
+        // private frames for a table too big to be cached, or null
+        private BufferRing ring;
+        // for a row-locked table, the rows of the current page still to
+        // visit, and the next tuple, already locked
+        private boolean rows;
+        private Iterator<RecordId> rowIt;
+        private Tuple pending;
 
         HFileIterator(HeapFile file, TransactionId tid){
             this.heapFile = file;
@@ -151,31 +545,123 @@ public class HeapFile implements DbFile {
         @Override
         public void open() throws DbException, TransactionAbortedException {
             pageNo=0;
+            lastPage=-2;
+            sequential=0;
+            prefetchedTo=0;
+            ring=BufferRing.forScan(Database.getBufferPool(),heapFile.numPages(),heapFile.getReadAhead());
+            rows=Database.getBufferPool().isRowLocking(heapFile.getId());
+            pending=null;
+            if(rows)
+                rowIt = rowIterator(pageNo);
+            else
+                it = pageIterator(pageNo);
+        }
+
+        private Iterator<Tuple> pageIterator(int pageNo) throws DbException, TransactionAbortedException {
+            readAhead(pageNo);
+            HeapPageId pid = new HeapPageId(heapFile.getId(),pageNo);
+            BufferPool bp=Database.getBufferPool();
+            // a snapshot reads without locks, but may not ask to write
+            Permissions perm=bp.isSnapshot(tid)?Permissions.READ_ONLY:Permissions.READ_WRITE;
+            HeapPage page = (HeapPage)bp.getPage(tid, pid, perm, ring);
+            return page.iterator();
+        }
+
+        /**
+         * The rows of a page of a row-locked table worth visiting: those in
+         * use, and empty ones somebody holds a lock on, which may be deleted
+         * rows whose deletion is yet to commit.
+         */
+        private Iterator<RecordId> rowIterator(int pageNo) throws DbException, TransactionAbortedException {
+            readAhead(pageNo);
             HeapPageId pid = new HeapPageId(heapFile.getId(),pageNo);
-            HeapPage page = (HeapPage)Database.getBufferPool().getPage(tid, pid, Permissions.READ_WRITE);
-            it = page.iterator();
+            HeapPage page = (HeapPage)Database.getBufferPool().getPage(tid, pid, Permissions.READ_ONLY, ring);
+            LockManager locks=Database.getBufferPool().getLockManager();
+            List<RecordId> rids=new ArrayList<>();
+            synchronized (page){
+                for(int slot=0;slot<page.numSlots;slot++){
+                    RecordId rid=new RecordId(pid,slot);
+                    if(page.isSlotUsed(slot)||locks.isLocked(rid))
+                        rids.add(rid);
+                }
+            }
+            return rids.iterator();
+        }
+
+        /**
+         * Lock a row, and return what it holds now that nobody can change
+         * it, or null if it is empty.
+         */
+        private Tuple lockRow(RecordId rid) throws DbException, TransactionAbortedException {
+            BufferPool bp=Database.getBufferPool();
+            bp.lockTuple(tid,rid,Permissions.READ_ONLY);
+            HeapPage page=(HeapPage)bp.getPage(tid,rid.getPageId(),Permissions.READ_ONLY,ring);
+            return page.getTuple(rid.getTupleNumber());
+        }
+
+        /** Spot sequential access, and keep the read-ahead window in front of it. */
+        private void readAhead(int pageNo) {
+            int window=heapFile.getReadAhead();
+            sequential=pageNo==lastPage+1?sequential+1:0;
+            lastPage=pageNo;
+            if(window==0||sequential==0)
+                return;
+            if(prefetchedTo<=pageNo)
+                prefetchedTo=pageNo+1;
+            // top the window up once half of it has been consumed
+            if(prefetchedTo-pageNo>window/2)
+                return;
+            int end=Math.min(heapFile.numPages(),pageNo+1+window);
+            List<PageId> pids=new ArrayList<>();
+            for(int i=prefetchedTo;i<end;i++)
+                pids.add(new HeapPageId(heapFile.getId(),i));
+            if(!pids.isEmpty())
+                Database.getBufferPool().prefetchPages(heapFile,pids,ring);
+            prefetchedTo=Math.max(prefetchedTo,end);
         }
 
         @Override
         public boolean hasNext() throws DbException, TransactionAbortedException {
+            if(!rows)
+                return hasNextOnPages();
+            while(pending==null){
+                if(rowIt==null)
+                    return false;
+                if(!rowIt.hasNext()){
+                    if(pageNo>=heapFile.numPages()-1)
+                        return false;
+                    rowIt=rowIterator(++pageNo);
+                    continue;
+                }
+                pending=lockRow(rowIt.next());
+            }
+            return true;
+        }
+
+        private boolean hasNextOnPages() throws DbException, TransactionAbortedException {
             if(it == null){
                 return false;
             }
 
-            if(!it.hasNext()){
-                if(pageNo < heapFile.numPages()-1){
-                    pageNo++;
-                    HeapPageId pid = new HeapPageId(heapFile.getId(),pageNo);
-                    HeapPage page = (HeapPage)Database.getBufferPool().getPage(tid, pid, Permissions.READ_WRITE);
-                    it = page.iterator();
-                    return it.hasNext();
-                }else return false;
+            // skip any run of empty pages, such as an aborted bulk insert leaves
+            while(!it.hasNext()){
+                if(pageNo >= heapFile.numPages()-1)
+                    return false;
+                pageNo++;
+                it = pageIterator(pageNo);
             }
             return true;
         }
 
         @Override
         public Tuple next() throws DbException, TransactionAbortedException, NoSuchElementException {
+            if(rows){
+                if(!hasNext())
+                    throw new NoSuchElementException();
+                Tuple t=pending;
+                pending=null;
+                return t;
+            }
             if(it == null || !it.hasNext()){
                 throw new NoSuchElementException();
             }
@@ -190,6 +676,8 @@ public class HeapFile implements DbFile {
         @Override
         public void close() {
             it = null;
+            rowIt = null;
+            pending = null;
         }
 
     }
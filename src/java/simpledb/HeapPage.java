@@ -2,10 +2,19 @@ package simpledb;
 
 import java.util.*;
 import java.io.*;
+import java.nio.ByteBuffer;
 
 /**
  * Each instance of HeapPage stores data for one page of HeapFiles and
  * implements the Page interface that is used by BufferPool.
+ * <p>
+ * A HeapPage keeps the page's bytes as they are on disk and reads a field
+ * at its fixed offset only when it is asked for. The tuples it hands out
+ * are views of their slots: their fields are decoded as they are read, and
+ * setting one writes it into the page in place. When a slot is emptied,
+ * its view copies out its fields first and is a plain tuple from then on.
+ * So loading a page, writing it out, and keeping its before image each
+ * cost one copy of the array.
  *
  * @see HeapFile
  * @see BufferPool
@@ -15,12 +24,24 @@ public class HeapPage implements Page {
 
     final HeapPageId pid;
     final TupleDesc td;
-    final byte header[];
-    final Tuple tuples[];
     final int numSlots;
-
+    final int pageSize;
+
+    // the page as it is on disk: the header, then the slots
+    protected final byte[] data;
+    protected final ByteBuffer buf;
+    private final int headerSize;
+    private final int tupleSize;
+    // where each field starts within a slot
+    private final int[] fieldOffsets;
+    // the views handed out of the tuples in used slots, made when first asked for
+    private final TupleView[] views;
+
+    // the page as it was before it was modified, or null while it has not
+    // been modified since it was read or last made its own before image
     byte[] oldData;
-    private final Byte oldDataLock=new Byte((byte)0);
+    // guards oldData, which setBeforeImage changes without the page monitor
+    private final Object oldDataLock=new Object();
     TransactionId tid;
     boolean dirty;
 
@@ -29,48 +50,74 @@ public class HeapPage implements Page {
      * The format of a HeapPage is a set of header bytes indicating
      * the slots of the page that are in use, some number of tuple slots.
      *  Specifically, the number of tuples is equal to: <p>
-     *          floor((BufferPool.getPageSize()*8) / (tuple size * 8 + 1))
+     *          floor((page size*8) / (tuple size * 8 + 1))
      * <p> where tuple size is the size of tuples in this
-     * database table, which can be determined via {@link Catalog#getTupleDesc}.
+     * database table, which can be determined via {@link Catalog#getTupleDesc},
+     * and the page size is that of the table's file, given by
+     * {@link Catalog#getPageSize}.
      * The number of 8-bit header words is equal to:
      * <p>
      *      ceiling(no. tuple slots / 8)
      * <p>
      * @see Database#getCatalog
      * @see Catalog#getTupleDesc
-     * @see BufferPool#getPageSize()
+     * @see Catalog#getPageSize
      */
     public HeapPage(HeapPageId id, byte[] data) throws IOException {
+        this(id, data, false);
+    }
+
+    /**
+     * Create a HeapPage from the bytes between the position and limit of a
+     * buffer, e.g. a view of a memory-mapped file, copying them once. The
+     * buffer itself is left unchanged.
+     */
+    public HeapPage(HeapPageId id, ByteBuffer data) throws IOException {
+        this(id, toArray(data), true);
+    }
+
+    // a page of the given bytes, taking over the array if it is ours to keep and the right size
+    private HeapPage(HeapPageId id, byte[] data, boolean own) {
+        this(id, data, own, getNumTuples(id));
+    }
+
+    /**
+     * Create a page of another layout of the given bytes, for subclasses.
+     *
+     * @param own true if the page may keep the array rather than copy it
+     * @param numSlots the most tuples the page can hold
+     */
+    protected HeapPage(HeapPageId id, byte[] data, boolean own, int numSlots) {
         dirty=false;tid=null;
         this.pid = id;
         this.td = Database.getCatalog().getTupleDesc(id.getTableId());
-        this.numSlots = getNumTuples();
-        DataInputStream dis = new DataInputStream(new ByteArrayInputStream(data));
-
-        // allocate and read the header slots of this page
-        header = new byte[getHeaderSize()];
-        for (int i=0; i<header.length; i++)
-            header[i] = dis.readByte();
-
-        tuples = new Tuple[numSlots];
-        try{
-            // allocate and read the actual records of this page
-            for (int i=0; i<tuples.length; i++)
-                tuples[i] = readNextTuple(dis,i);
-        }catch(NoSuchElementException e){
-            e.printStackTrace();
-        }
-        dis.close();
-
+        this.pageSize = Database.getCatalog().getPageSize(id.getTableId());
+        this.numSlots = numSlots;
+        this.headerSize = getHeaderSize();
+        this.tupleSize = td.getSize();
+        this.fieldOffsets = new int[td.numFields()];
+        for (int j=1; j<fieldOffsets.length; j++)
+            fieldOffsets[j] = fieldOffsets[j-1] + td.getFieldType(j-1).getLen();
+        this.data = own&&data.length==pageSize ? data : Arrays.copyOf(data, pageSize);
+        this.buf = ByteBuffer.wrap(this.data);
+        this.views = new TupleView[numSlots];
         setBeforeImage();
     }
 
-    /** Retrieve the number of tuples on this page.
-        @return the number of tuples on this page
+    protected static byte[] toArray(ByteBuffer data) {
+        ByteBuffer src=data.duplicate();
+        byte[] a=new byte[src.remaining()];
+        src.get(a);
+        return a;
+    }
+
+    /** Retrieve the number of tuples on a page of a table.
+        @return the number of tuples on the page
     */
-    private int getNumTuples() {
-        int size=td.getSize();
-        return (BufferPool.getPageSize()*8) / (size * 8 + 1);
+    private static int getNumTuples(HeapPageId id) {
+        int size=Database.getCatalog().getTupleDesc(id.getTableId()).getSize();
+        int pageSize=Database.getCatalog().getPageSize(id.getTableId());
+        return (pageSize*8) / (size * 8 + 1);
     }
 
     /**
@@ -82,15 +129,17 @@ public class HeapPage implements Page {
     }
 
     /** Return a view of this page before it was modified
-        -- used by recovery */
-    public HeapPage getBeforeImage(){
+        -- used by recovery, and by snapshot reads */
+    public synchronized HeapPage getBeforeImage(){
         try {
             byte[] oldDataRef = null;
             synchronized(oldDataLock)
             {
                 oldDataRef = oldData;
             }
-            return new HeapPage(pid,oldDataRef);
+            if (oldDataRef == null)
+                return copy(getPageData(),true);
+            return copy(oldDataRef,false);
         } catch (IOException e) {
             e.printStackTrace();
             //should never happen -- we parsed it OK before!
@@ -99,10 +148,32 @@ public class HeapPage implements Page {
         return null;
     }
 
+    /**
+     * Make a page of this one's class from the given bytes.
+     *
+     * @param own true if the page may keep the array rather than copy it
+     */
+    protected HeapPage copy(byte[] data, boolean own) throws IOException {
+        return new HeapPage(pid,data,own);
+    }
+
+    /**
+     * Make the current contents of the page its before image. The contents
+     * are only copied when the page is next modified.
+     */
     public void setBeforeImage() {
         synchronized(oldDataLock)
         {
-        oldData = getPageData().clone();
+        oldData = null;
+        }
+    }
+
+    /** Copy out the before image if this is the first change since it was set. */
+    private void keepBeforeImage() {
+        synchronized(oldDataLock)
+        {
+        if (oldData == null)
+            oldData = getPageData();
         }
     }
 
@@ -113,40 +184,6 @@ public class HeapPage implements Page {
         return pid;
     }
 
-    /**
-     * Suck up tuples from the source file.
-     */
-    private Tuple readNextTuple(DataInputStream dis, int slotId) throws NoSuchElementException {
-        // if associated bit is not set, read forward to the next tuple, and
-        // return null.
-        if (!isSlotUsed(slotId)) {
-            for (int i=0; i<td.getSize(); i++) {
-                try {
-                    dis.readByte();
-                } catch (IOException e) {
-                    throw new NoSuchElementException("error reading empty tuple");
-                }
-            }
-            return null;
-        }
-
-        // read fields in the tuple
-        Tuple t = new Tuple(td);
-        RecordId rid = new RecordId(pid, slotId);
-        t.setRecordId(rid);
-        try {
-            for (int j=0; j<td.numFields(); j++) {
-                Field f = td.getFieldType(j).parse(dis);
-                t.setField(j, f);
-            }
-        } catch (java.text.ParseException e) {
-            e.printStackTrace();
-            throw new NoSuchElementException("parsing error!");
-        }
-
-        return t;
-    }
-
     /**
      * Generates a byte array representing the contents of this page.
      * Used to serialize this page to disk.
@@ -158,65 +195,8 @@ public class HeapPage implements Page {
      * @see #HeapPage
      * @return A byte array correspond to the bytes of this page.
      */
-    public byte[] getPageData() {
-        int len = BufferPool.getPageSize();
-        ByteArrayOutputStream baos = new ByteArrayOutputStream(len);
-        DataOutputStream dos = new DataOutputStream(baos);
-
-        // create the header of the page
-        for (int i=0; i<header.length; i++) {
-            try {
-                dos.writeByte(header[i]);
-            } catch (IOException e) {
-                // this really shouldn't happen
-                e.printStackTrace();
-            }
-        }
-
-        // create the tuples
-        for (int i=0; i<tuples.length; i++) {
-
-            // empty slot
-            if (!isSlotUsed(i)) {
-                for (int j=0; j<td.getSize(); j++) {
-                    try {
-                        dos.writeByte(0);
-                    } catch (IOException e) {
-                        e.printStackTrace();
-                    }
-
-                }
-                continue;
-            }
-
-            // non-empty slot
-            for (int j=0; j<td.numFields(); j++) {
-                Field f = tuples[i].getField(j);
-                try {
-                    f.serialize(dos);
-
-                } catch (IOException e) {
-                    e.printStackTrace();
-                }
-            }
-        }
-
-        // padding
-        int zerolen = BufferPool.getPageSize() - (header.length + td.getSize() * tuples.length); //- numSlots * td.getSize();
-        byte[] zeroes = new byte[zerolen];
-        try {
-            dos.write(zeroes, 0, zerolen);
-        } catch (IOException e) {
-            e.printStackTrace();
-        }
-
-        try {
-            dos.flush();
-        } catch (IOException e) {
-            e.printStackTrace();
-        }
-
-        return baos.toByteArray();
+    public synchronized byte[] getPageData() {
+        return data.clone();
     }
 
     /**
@@ -229,8 +209,15 @@ public class HeapPage implements Page {
      * @return The returned ByteArray.
      */
     public static byte[] createEmptyPageData() {
-        int len = BufferPool.getPageSize();
-        return new byte[len]; //all 0
+        return createEmptyPageData(BufferPool.getPageSize());
+    }
+
+    /**
+     * Returns the bytes of an empty HeapPage of a table with pages of the
+     * given size.
+     */
+    public static byte[] createEmptyPageData(int pageSize) {
+        return new byte[pageSize]; //all 0
     }
 
     /**
@@ -240,14 +227,18 @@ public class HeapPage implements Page {
      *         already empty.
      * @param t The tuple to delete
      */
-    public void deleteTuple(Tuple t) throws DbException {
+    public synchronized void deleteTuple(Tuple t) throws DbException {
         int n=t.getRecordId().getTupleNumber();
         if(!t.getRecordId().getPageId().equals(getId()))
             throw new DbException("delete wrong tuple");
         if(!isSlotUsed(n))
             throw new DbException("tuple not found");
-        tuples[n]=null;
-        markSlotUsed(n,false);
+        keepBeforeImage();
+        if(views[n]!=null){
+            views[n].detach();
+            views[n]=null;
+        }
+        clearSlot(n);
     }
 
     /**
@@ -257,21 +248,127 @@ public class HeapPage implements Page {
      *         is mismatch.
      * @param t The tuple to add.
      */
-    public void insertTuple(Tuple t) throws DbException {
-        int i=0;
-        for(;i<numSlots;i++){
-            if(!isSlotUsed(i)){
-                tuples[i]=t;
-                markSlotUsed(i,true);
-                t.setRecordId(new RecordId(pid,i));
-                break;
-            }
-        }
-        if(i==numSlots){
+    public synchronized void insertTuple(Tuple t) throws DbException {
+        int i=freeSlot(t);
+        if(i<0)
             throw new DbException("no space for tuple");
+        keepBeforeImage();
+        writeTuple(t,i);
+        t.setRecordId(new RecordId(pid,i));
+    }
+
+    /**
+     * Adds a tuple to the page in the given slot, as when putting back a
+     * deleted row.
+     * @throws DbException if the slot is already used
+     */
+    public synchronized void insertTupleAt(Tuple t, int slot) throws DbException {
+        if(slot<0||slot>=numSlots||isSlotUsed(slot))
+            throw new DbException("slot "+slot+" is not free");
+        keepBeforeImage();
+        writeTuple(t,slot);
+        t.setRecordId(new RecordId(pid,slot));
+    }
+
+    /**
+     * Sets a field of a tuple on this page, in the page itself.
+     * @throws DbException if this tuple is not on this page, or the changed
+     *         tuple no longer fits on it; the page is then left unchanged
+     */
+    public synchronized void setField(Tuple t, int i, Field f) throws DbException {
+        int n=t.getRecordId().getTupleNumber();
+        if(!t.getRecordId().getPageId().equals(getId())||!isSlotUsed(n))
+            throw new DbException("tuple not found");
+        keepBeforeImage();
+        writeField(n,i,f);
+        if(views[n]!=null)
+            views[n].fields[i]=f;
+        if(t!=views[n])
+            t.setField(i,f);
+    }
+
+    /*
+     * The layout of the slots. A subclass with another layout overrides
+     * these, along with isSlotUsed, getNumEmptySlots and copy. They are
+     * called holding the page's monitor, after the before image is kept.
+     */
+
+    /** @return the slot a tuple would be inserted into, or -1 if it does not fit */
+    protected int freeSlot(Tuple t) {
+        for(int i=0;i<numSlots;i++)
+            if(!isSlotUsed(i))
+                return i;
+        return -1;
+    }
+
+    /**
+     * Copy a tuple's fields into a free slot and mark it used.
+     * @throws DbException if it does not fit, leaving the page unchanged
+     */
+    protected void writeTuple(Tuple t, int slot) throws DbException {
+        for(int j=0;j<fieldOffsets.length;j++)
+            writeField(slot,j,t.getField(j));
+        markSlotUsed(slot,true);
+    }
+
+    /** Empty a used slot. */
+    protected void clearSlot(int slot) {
+        Arrays.fill(data,slotOffset(slot),slotOffset(slot)+tupleSize,(byte)0);
+        markSlotUsed(slot,false);
+    }
+
+    private int slotOffset(int slot) {
+        return headerSize+slot*tupleSize;
+    }
+
+    /** @return field j of the tuple in a used slot */
+    protected Field readField(int slot, int j) {
+        int off=slotOffset(slot)+fieldOffsets[j];
+        Type type=td.getFieldType(j);
+        if(type==Type.INT_TYPE)
+            return new IntField(buf.getInt(off));
+        try {
+            return type.parse(new DataInputStream(new ByteArrayInputStream(data,off,type.getLen())));
+        } catch (java.text.ParseException e) {
+            throw new NoSuchElementException("parsing error!");
         }
     }
 
+    /**
+     * Set field j of the tuple in a used slot.
+     * @throws DbException if the changed tuple does not fit, leaving the page unchanged
+     */
+    protected void writeField(int slot, int j, Field f) throws DbException {
+        int off=slotOffset(slot)+fieldOffsets[j];
+        int len=td.getFieldType(j).getLen();
+        if(f instanceof IntField&&len==4){
+            buf.putInt(off,((IntField)f).getValue());
+            return;
+        }
+        ByteArrayOutputStream baos=new ByteArrayOutputStream(len);
+        try {
+            f.serialize(new DataOutputStream(baos));
+        } catch (IOException e) {
+            // this really shouldn't happen
+            e.printStackTrace();
+        }
+        byte[] b=baos.toByteArray();
+        int n=Math.min(b.length,len);
+        System.arraycopy(b,0,data,off,n);
+        Arrays.fill(data,off+n,off+len,(byte)0);
+    }
+
+    /**
+     * @return the tuple in a slot, or null if the slot is empty
+     */
+    public synchronized Tuple getTuple(int slot) {
+        if(!isSlotUsed(slot))
+            return null;
+        if(views[slot]==null)
+            views[slot]=new TupleView(slot);
+        return views[slot];
+    }
+
     /**
      * Marks this page as dirty/not dirty and record that transaction
      * that did the dirtying
@@ -293,52 +390,108 @@ public class HeapPage implements Page {
     /**
      * Returns the number of empty slots on this page.
      */
-    public int getNumEmptySlots() {
-        int sum=0;
-        for(int i=0;i<numSlots;i++){
-            int k=1<<(i%8);
-            int judge=(header[i/8]&k)==k?1:0;
-            if(judge==0)
-                sum++;
-        }
-        return sum;
+    public synchronized int getNumEmptySlots() {
+        int used=0;
+        for(int i=0;i<numSlots/8;i++)
+            used+=Integer.bitCount(data[i]&0xff);
+        for(int i=numSlots/8*8;i<numSlots;i++)
+            if(isSlotUsed(i))
+                used++;
+        return numSlots-used;
     }
 
     /**
      * Returns true if associated slot on this page is filled.
      */
-    public boolean isSlotUsed(int i) {
+    public synchronized boolean isSlotUsed(int i) {
         int k=1<<(i%8);
-        int judge=(header[i/8]&k)==k?1:0;
-        return judge != 0;
+        return (data[i/8]&k)==k;
     }
 
     /**
      * Abstraction to fill or clear a slot on this page.
      */
     private void markSlotUsed(int i, boolean value) {
-        int m= (!value ?0:1)<<(i%8);
         int k=1<<(i%8);
-        int n=255-k+m;
-        int judge=(header[i/8]&k)==k?1:0;
-        if(judge==0)
-            header[i/8]=(byte)(header[i/8]|m);
-        else header[i/8]=(byte)(header[i/8]&n);
+        if(value)
+            data[i/8]=(byte)(data[i/8]|k);
+        else data[i/8]=(byte)(data[i/8]&~k);
     }
 
     /**
      * @return an iterator over all tuples on this page (calling remove on this iterator throws an UnsupportedOperationException)
      * (note that this iterator shouldn't return tuples in empty slots!)
      */
-    public Iterator<Tuple> iterator() {
+    public synchronized Iterator<Tuple> iterator() {
         ArrayList<Tuple> Tuples = new ArrayList<Tuple>();
         for(int i=0;i<numSlots;i++){
             if(isSlotUsed(i)){
-                Tuples.add(tuples[i]);
+                Tuples.add(getTuple(i));
             }
         }
-        return Tuples.iterator();
+        return Collections.unmodifiableList(Tuples).iterator();
     }
 
-}
+    /**
+     * A tuple read from its slot: each field is decoded when first asked
+     * for, and setting one writes it into the page. Once detached, as when
+     * its slot is emptied, it keeps its own copy of the fields. A change
+     * that no longer fits on the page detaches it as well, leaving the page
+     * as it was; {@link HeapPage#setField} reports that with a DbException.
+     */
+    private class TupleView extends Tuple {
+
+        private static final long serialVersionUID = 1L;
+        private final int slot;
+        private final Field[] fields;
+        private boolean attached = true;
+
+        TupleView(int slot) {
+            super(td, new RecordId(pid, slot));
+            this.slot = slot;
+            this.fields = new Field[fieldOffsets.length];
+        }
 
+        public Field getField(int i) {
+            synchronized (HeapPage.this) {
+                if (fields[i] == null && attached)
+                    fields[i] = readField(slot, i);
+                return fields[i];
+            }
+        }
+
+        public void setField(int i, Field f) {
+            synchronized (HeapPage.this) {
+                if (attached) {
+                    keepBeforeImage();
+                    try {
+                        writeField(slot, i, f);
+                    } catch (DbException e) {
+                        detach();
+                        views[slot] = null;
+                    }
+                }
+                fields[i] = f;
+            }
+        }
+
+        public Iterator<Field> fields() {
+            Field[] all = new Field[fields.length];
+            for (int i = 0; i < all.length; i++)
+                all[i] = getField(i);
+            return Arrays.asList(all).iterator();
+        }
+
+        public void resetTupleDesc(TupleDesc td) {
+            throw new UnsupportedOperationException("a tuple of a page keeps the page's TupleDesc");
+        }
+
+        // copy out the fields before the slot changes
+        void detach() {
+            for (int i = 0; i < fields.length; i++)
+                getField(i);
+            attached = false;
+        }
+    }
+
+}
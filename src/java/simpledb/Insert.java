@@ -12,6 +12,13 @@ import static simpledb.Type.INT_TYPE;
 public class Insert extends Operator {
 
     private static final long serialVersionUID = 1L;
+
+    /**
+     * Tuples inserted one at a time before the rest of a large child is
+     * appended a page at a time with {@link BufferPool#bulkInsert}.
+     */
+    public static final int BULK_THRESHOLD = 1000;
+
     private TransactionId tid;
     private OpIterator child;
     private int tableId;
@@ -64,6 +71,10 @@ public class Insert extends Operator {
      * instances of BufferPool is available via Database.getBufferPool(). Note
      * that insert DOES NOT need check to see if a particular tuple is a
      * duplicate before inserting it.
+     * <p>
+     * The first {@link #BULK_THRESHOLD} tuples are inserted one at a time,
+     * filling free space in the table's pages; a child with more than that
+     * has the rest appended to the table on new pages.
      *
      * @return A 1-field tuple containing the number of inserted records, or
      *         null if called more than once.
@@ -76,10 +87,12 @@ public class Insert extends Operator {
         complete=true;
         int num=0;
         try{
-            while(child.hasNext()){
-                Database.getBufferPool().insertTuple(tid,tableId,child.next());
+            BufferPool bp=Database.getBufferPool();
+            while(num<BULK_THRESHOLD&&child.hasNext()){
+                bp.insertTuple(tid,tableId,child.next());
                 num++;
             }
+            num+=bp.bulkInsert(tid,tableId,child);
         }catch (Exception e){
             e.printStackTrace();
         }
@@ -52,7 +52,20 @@ public class IntegerAggregator implements Aggregator {
     public void mergeTupleIntoGroup(Tuple tup) {
         Field tmp = gbfield == NO_GROUPING ? null : tup.getField(gbfield);
         IntField v=(IntField)tup.getField(afield);
-        int value=v.getValue();
+        merge(tmp,v.getValue());
+    }
+
+    /**
+     * Merge every row of a batch into the aggregate, reading the aggregate
+     * field straight from the batch's int column.
+     */
+    public void mergeBatchIntoGroups(TupleBatch batch) {
+        int[] values=batch.getInts(afield);
+        for(int i=0;i<batch.size();i++)
+            merge(gbfield==NO_GROUPING?null:batch.getField(gbfield,i),values[i]);
+    }
+
+    private void merge(Field tmp, int value) {
         switch(what) {
             case AVG:
                 if (!result.containsKey(tmp)) {
@@ -12,6 +12,11 @@ public class Join extends Operator {
     private OpIterator child1;
     private OpIterator child2;
     Tuple t;
+    // nextBatch's place: a batch of each child, and the pair of rows to try next
+    transient private TupleBatch outer;
+    transient private TupleBatch inner;
+    transient private int outerRow;
+    transient private int innerRow;
 
     /**
      * Constructor. Accepts two children to join and the predicate to join them
@@ -67,10 +72,12 @@ public class Join extends Operator {
     public void close() {
         super.close();
         child1.close();child2.close();
+        outer=null;inner=null;
     }
 
     public void rewind() throws DbException, TransactionAbortedException {
         child1.rewind();child2.rewind();
+        outer=null;inner=null;
     }
 
     /**
@@ -118,6 +125,44 @@ public class Join extends Operator {
         return null;
     }
 
+    /**
+     * Returns the next batch of tuples generated by the join, or null if
+     * there are no more. This is a block nested loops join: the inner
+     * relation is read once for each batch of the outer relation, rather
+     * than once for each outer tuple, and each batch of it is joined with
+     * the whole outer batch. The result is the same set of tuples as
+     * fetchNext returns, in another order.
+     */
+    public TupleBatch nextBatch() throws TransactionAbortedException, DbException {
+        TupleBatch out=new TupleBatch(getTupleDesc());
+        while(true){
+            if(outer==null){
+                outer=child1.nextBatch();
+                if(outer==null)
+                    break;
+            }
+            if(inner==null){
+                inner=child2.nextBatch();
+                outerRow=0;innerRow=0;
+                if(inner==null){
+                    // the outer batch has met all of the inner relation
+                    child2.rewind();
+                    outer=null;
+                    continue;
+                }
+            }
+            for(;outerRow<outer.size();outerRow++,innerRow=0){
+                for(;innerRow<inner.size();innerRow++){
+                    if(out.isFull())
+                        return out;
+                    if(joinPredicate.filter(outer,outerRow,inner,innerRow))
+                        out.addJoined(outer,outerRow,inner,innerRow);
+                }
+            }
+            inner=null;
+        }
+        return out.size()==0?null:out;
+    }
 
     @Override
     public OpIterator[] getChildren() {
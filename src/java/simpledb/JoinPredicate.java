@@ -40,6 +40,17 @@ public class JoinPredicate implements Serializable {
     public boolean filter(Tuple t1, Tuple t2) {
         return t1.getField(field1).compare(op,t2.getField(field2));
     }
+
+    /**
+     * Apply the predicate to a row of each of two batches.
+     *
+     * @return true if the rows satisfy the predicate.
+     */
+    public boolean filter(TupleBatch b1, int row1, TupleBatch b2, int row2) {
+        if(b1.getTupleDesc().getFieldType(field1)==Type.INT_TYPE)
+            return IntField.compare(op,b1.getInt(field1,row1),b2.getInt(field2,row2));
+        return b1.getField(field1,row1).compare(op,b2.getField(field2,row2));
+    }
     
     public int getField1()
     {
@@ -0,0 +1,105 @@
+package simpledb;
+
+import java.util.*;
+import java.util.function.Predicate;
+
+/**
+ * LRU-K replacement (O'Neil, O'Neil and Weikum). Each resident page remembers
+ * the logical times of its last K references; the victim is the page whose
+ * K-th most recent reference is oldest. Pages referenced fewer than K times
+ * count as infinitely old and go first, oldest last reference first, so a
+ * page touched once by a scan loses to a page that is hit repeatedly.
+ * <p>
+ * Pages are kept ordered by their eviction priority, so every operation is
+ * O(log n) in the number of resident pages.
+ */
+public class LRUKPolicy implements ReplacementPolicy {
+
+    /** Default number of references remembered per page. */
+    public static final int DEFAULT_K = 2;
+
+    private class History {
+        final PageId pid;
+        final long[] times;
+        int count;
+
+        History(PageId pid) {
+            this.pid=pid;
+            times=new long[k];
+            count=0;
+        }
+
+        void touch(long now) {
+            times[count%k]=now;
+            count++;
+        }
+
+        long last() {
+            return times[(count-1)%k];
+        }
+
+        /** time of the K-th most recent reference, or -1 if there were fewer */
+        long kth() {
+            if(count<k)
+                return -1;
+            return times[count%k];
+        }
+    }
+
+    private final int k;
+    private final HashMap<PageId,History> histories;
+    private final TreeSet<History> order;
+    private long clock;
+
+    public LRUKPolicy() {
+        this(DEFAULT_K);
+    }
+
+    public LRUKPolicy(int k) {
+        if(k<1)
+            throw new IllegalArgumentException("k must be at least 1");
+        this.k=k;
+        histories=new HashMap<>();
+        order=new TreeSet<>((a,b)->{
+            int c=Long.compare(a.kth(),b.kth());
+            if(c!=0)return c;
+            // last reference times are unique, so this never ties
+            return Long.compare(a.last(),b.last());
+        });
+        clock=0;
+    }
+
+    public synchronized void pageAdded(PageId pid) {
+        History h=histories.get(pid);
+        if(h==null){
+            h=new History(pid);
+            histories.put(pid,h);
+        }
+        else order.remove(h);
+        h.touch(clock++);
+        order.add(h);
+    }
+
+    public synchronized void pageAccessed(PageId pid) {
+        History h=histories.get(pid);
+        if(h==null)
+            return;
+        order.remove(h);
+        h.touch(clock++);
+        order.add(h);
+    }
+
+    public synchronized void pageRemoved(PageId pid) {
+        History h=histories.remove(pid);
+        if(h!=null)
+            order.remove(h);
+    }
+
+    public synchronized PageId chooseVictim(Predicate<PageId> canEvict) {
+        for(History h:order){
+            if(canEvict.test(h.pid))
+                return h.pid;
+        }
+        return null;
+    }
+}
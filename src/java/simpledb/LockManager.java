@@ -0,0 +1,709 @@
+package simpledb;
+
+import java.util.*;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.locks.Condition;
+import java.util.concurrent.locks.ReentrantLock;
+
+/**
+ * LockManager keeps the locks of transactions on tables, pages and rows
+ * (identified by a {@link TableId}, a {@link PageId} and a {@link RecordId}).
+ * Pages are normally locked shared or exclusive. A table that locks rows
+ * instead takes intention locks on the table and pages above the rows: IS
+ * above shared row locks and IX above exclusive ones, so that a lock on a
+ * whole table or page still sees every row lock below it.
+ * <p>
+ * Every locked object has its own queue: the transactions holding the lock,
+ * and behind them the requests waiting for it, which are granted strictly in
+ * the order they arrived. A holder asking for a stronger mode goes ahead of
+ * the other waiters, and is granted it once no other holder conflicts.
+ * <p>
+ * Waiting requests sleep on their queue's condition and are granted by
+ * whoever releases the lock, so a waiter resumes as soon as it is signalled
+ * rather than on its next poll. Only requests on the same object ever
+ * contend for the same latch.
+ * <p>
+ * A request that has to wait records whom it waits for in a waits-for
+ * graph. Only a request that adds an edge can close a cycle, so that is
+ * when the graph is searched, and only from the waiting transaction.
+ * When it finds a cycle, the {@link VictimPolicy} picks the transaction in it
+ * that is cheapest to abort; that transaction's request is withdrawn, its
+ * edges leave the graph, and its thread wakes with a
+ * TransactionAbortedException. One new edge may close several cycles, so
+ * the waiter then searches again until it finds none; no later edge would
+ * prompt it to.
+ * <p>
+ * A transaction may also be given a lock timeout: a request that waits
+ * longer than that gives up with a TransactionAbortedException, deadlock or
+ * not. {@link #lockInfo()} lists who holds and who waits for every lock, for
+ * diagnosing convoys; the {@link LockTableFile} system table shows it to
+ * queries.
+ *
+ * @see BufferPool#getPage(TransactionId, PageId, Permissions)
+ * @Threadsafe
+ */
+public class LockManager {
+
+    /** Lock modes, from weakest to strongest. */
+    public enum Mode {
+        /** intention to lock rows below shared */
+        IS,
+        /** intention to lock rows below exclusive */
+        IX,
+        /** shared */
+        S,
+        /** exclusive */
+        X;
+
+        private static final boolean[][] COMPATIBLE = {
+            //  IS     IX     S      X
+            { true,  true,  true,  false }, // IS
+            { true,  true,  false, false }, // IX
+            { true,  false, true,  false }, // S
+            { false, false, false, false }, // X
+        };
+
+        /** @return true if two transactions may hold the modes at once */
+        public boolean compatible(Mode m) {
+            return COMPATIBLE[ordinal()][m.ordinal()];
+        }
+
+        /**
+         * @return the weakest mode at least as strong as both; IX and S give
+         *     X, as there is no SIX mode
+         */
+        public Mode join(Mode m) {
+            if (this == m || m == IS)
+                return this;
+            if (this == IS)
+                return m;
+            return X;
+        }
+
+        /** @return true if holding this mode implies holding m */
+        public boolean covers(Mode m) {
+            return join(m) == this;
+        }
+
+        /** @return S for READ_ONLY and X for READ_WRITE */
+        public static Mode of(Permissions perm) {
+            return perm == Permissions.READ_WRITE ? X : S;
+        }
+
+        /** @return IS for READ_ONLY and IX for READ_WRITE */
+        public static Mode intention(Permissions perm) {
+            return perm == Permissions.READ_WRITE ? IX : IS;
+        }
+    }
+
+    /** Identifies a whole table as something to lock. */
+    public static final class TableId {
+        private final int tableId;
+
+        public TableId(int tableId) {
+            this.tableId = tableId;
+        }
+
+        public int getTableId() {
+            return tableId;
+        }
+
+        public boolean equals(Object o) {
+            return o instanceof TableId && ((TableId) o).tableId == tableId;
+        }
+
+        public int hashCode() {
+            return tableId;
+        }
+
+        public String toString() {
+            return "table " + tableId;
+        }
+    }
+
+    /** How to choose which transaction in a deadlock to abort. */
+    public enum VictimPolicy {
+        /** the transaction that started last */
+        YOUNGEST,
+        /** the one holding the fewest exclusive locks, i.e. with the fewest pages to undo */
+        LEAST_WORK,
+        /** the one holding the fewest locks */
+        FEWEST_LOCKS
+    }
+
+    private static class Request {
+        final TransactionId tid;
+        final Mode mode;
+        // the transaction already holds a weaker lock on the object
+        final boolean upgrade;
+        boolean granted;
+        // chosen to break a deadlock
+        boolean aborted;
+        final long since = System.nanoTime();
+
+        Request(TransactionId tid, Mode mode, boolean upgrade) {
+            this.tid = tid;
+            this.mode = mode;
+            this.upgrade = upgrade;
+        }
+    }
+
+    /** What one transaction holds or waits for on one object, as seen by {@link #lockInfo()}. */
+    public static final class LockInfo {
+        private final Object key;
+        private final TransactionId tid;
+        private final Mode mode;
+        private final boolean granted;
+        private final long waitNanos;
+        private final Set<TransactionId> blockers;
+
+        LockInfo(Object key, TransactionId tid, Mode mode, boolean granted, long waitNanos,
+                Set<TransactionId> blockers) {
+            this.key = key;
+            this.tid = tid;
+            this.mode = mode;
+            this.granted = granted;
+            this.waitNanos = waitNanos;
+            this.blockers = blockers;
+        }
+
+        /** @return the table, page or row locked */
+        public Object getKey() {
+            return key;
+        }
+
+        public TransactionId getTransactionId() {
+            return tid;
+        }
+
+        /** @return the mode held, or the mode waited for */
+        public Mode getMode() {
+            return mode;
+        }
+
+        /** @return true for a holder, false for a waiter */
+        public boolean isGranted() {
+            return granted;
+        }
+
+        /** @return how long a waiter has waited so far, or 0 for a holder */
+        public long getWaitNanos() {
+            return waitNanos;
+        }
+
+        /** @return the transactions a waiter waits for, from the waits-for graph; empty for a holder */
+        public Set<TransactionId> getBlockers() {
+            return blockers;
+        }
+    }
+
+    /** The holders of and waiters for the lock on one object. */
+    private static class LockQueue {
+        final Object key;
+        final ReentrantLock latch = new ReentrantLock();
+        final Condition changed = latch.newCondition();
+        final Map<TransactionId, Mode> holders = new LinkedHashMap<TransactionId, Mode>();
+        final LinkedList<Request> waiting = new LinkedList<Request>();
+        // removed from the lock table; requests must look the object up again
+        boolean dead;
+
+        LockQueue(Object key) {
+            this.key = key;
+        }
+    }
+
+    private static class Waiter {
+        final LockQueue q;
+        final Request r;
+
+        Waiter(LockQueue q, Request r) {
+            this.q = q;
+            this.r = r;
+        }
+    }
+
+    final ConcurrentHashMap<Object, LockQueue> lockMap = new ConcurrentHashMap<Object, LockQueue>();
+    // waiting transaction -> the transactions it waits for
+    private final Map<TransactionId, Set<TransactionId>> g = new HashMap<TransactionId, Set<TransactionId>>();
+    // the request each waiting transaction waits on; guarded by g
+    private final Map<TransactionId, Waiter> waiters = new HashMap<TransactionId, Waiter>();
+    // the objects each transaction holds a lock on, and how many of those locks are exclusive
+    private final ConcurrentHashMap<TransactionId, Set<Object>> held = new ConcurrentHashMap<TransactionId, Set<Object>>();
+    private final ConcurrentHashMap<TransactionId, Integer> exclusiveHeld = new ConcurrentHashMap<TransactionId, Integer>();
+    private volatile VictimPolicy policy = VictimPolicy.YOUNGEST;
+    // how long each transaction's requests may wait, in ms, where not the default
+    private final ConcurrentHashMap<TransactionId, Long> timeouts = new ConcurrentHashMap<TransactionId, Long>();
+    private volatile long defaultTimeout = 0;
+    private final BufferPoolStats stats;
+
+    /**
+     * @param stats where to count lock waits and deadlock aborts
+     */
+    public LockManager(BufferPoolStats stats) {
+        this.stats = stats;
+    }
+
+    /** Set how the victim of a deadlock is chosen; YOUNGEST by default. */
+    public void setVictimPolicy(VictimPolicy policy) {
+        this.policy = policy;
+    }
+
+    public VictimPolicy getVictimPolicy() {
+        return policy;
+    }
+
+    /**
+     * Set how long a request may wait for a lock, in milliseconds, for
+     * transactions without a timeout of their own; 0, the default, waits
+     * for as long as it takes.
+     */
+    public void setDefaultLockTimeout(long millis) {
+        defaultTimeout = millis;
+    }
+
+    public long getDefaultLockTimeout() {
+        return defaultTimeout;
+    }
+
+    /**
+     * Set how long the requests of one transaction may wait for a lock, in
+     * milliseconds, until it completes; 0 waits for as long as it takes.
+     */
+    public void setLockTimeout(TransactionId tid, long millis) {
+        timeouts.put(tid, millis);
+    }
+
+    /** @return how long the requests of a transaction may wait, in ms, or 0 for ever */
+    public long getLockTimeout(TransactionId tid) {
+        return timeouts.getOrDefault(tid, defaultTimeout);
+    }
+
+    /** @return the number of locks a transaction holds */
+    public int locksHeld(TransactionId tid) {
+        Set<Object> keys = held.get(tid);
+        return keys == null ? 0 : keys.size();
+    }
+
+    /** @return the number of exclusive locks a transaction holds */
+    public int exclusiveLocksHeld(TransactionId tid) {
+        return exclusiveHeld.getOrDefault(tid, 0);
+    }
+
+    /**
+     * @return the objects a transaction holds a lock on; a copy, so the
+     *     caller may release the locks while going through them
+     */
+    public List<Object> locked(TransactionId tid) {
+        Set<Object> keys = held.get(tid);
+        return keys == null ? Collections.<Object>emptyList() : new ArrayList<Object>(keys);
+    }
+
+    /**
+     * Lock a page on behalf of a transaction, waiting as long as the lock is
+     * held or requested first by conflicting transactions. Asking again for
+     * a lock the transaction already holds returns at once.
+     *
+     * @param tid the transaction
+     * @param pid the page
+     * @param perm READ_ONLY for a shared lock, READ_WRITE for an exclusive one
+     * @throws TransactionAbortedException if the transaction is chosen as
+     *     the victim of a deadlock, waits longer than its lock timeout, or
+     *     the thread is interrupted while waiting
+     */
+    public void acquire(TransactionId tid, PageId pid, Permissions perm) throws TransactionAbortedException {
+        acquire(tid, pid, Mode.of(perm));
+    }
+
+    /**
+     * Lock a table, page or row in the given mode on behalf of a
+     * transaction. A transaction already holding a weaker lock on it ends up
+     * holding the join of the two modes.
+     *
+     * @see #acquire(TransactionId, PageId, Permissions)
+     */
+    public void acquire(TransactionId tid, Object key, Mode mode) throws TransactionAbortedException {
+        lock(tid, key, mode, true);
+    }
+
+    /**
+     * Lock a table, page or row if that can be done without waiting.
+     *
+     * @return true if the transaction now holds the lock
+     */
+    public boolean tryAcquire(TransactionId tid, Object key, Mode mode) {
+        try {
+            return lock(tid, key, mode, false);
+        } catch (TransactionAbortedException e) {
+            // not reached; only waiting aborts
+            return false;
+        }
+    }
+
+    private boolean lock(TransactionId tid, Object key, Mode mode, boolean wait) throws TransactionAbortedException {
+        while (true) {
+            LockQueue q = lockMap.computeIfAbsent(key, LockQueue::new);
+            q.latch.lock();
+            try {
+                if (q.dead)
+                    continue;
+                Mode mine = q.holders.get(tid);
+                if (mine != null && mine.covers(mode))
+                    return true;
+                Request r = new Request(tid, mine == null ? mode : mine.join(mode), mine != null);
+                if (compatible(q, r) && (r.upgrade || q.waiting.isEmpty())) {
+                    grant(q, r);
+                    return true;
+                }
+                if (!wait) {
+                    if (q.holders.isEmpty() && q.waiting.isEmpty()) {
+                        q.dead = true;
+                        lockMap.remove(key, q);
+                    }
+                    return false;
+                }
+                enqueue(q, r);
+                await(q, r);
+                return true;
+            } finally {
+                q.latch.unlock();
+            }
+        }
+    }
+
+    /**
+     * Release the lock a transaction holds on a table, page or row, if any,
+     * and grant it to whoever is next in line.
+     */
+    public void release(TransactionId tid, Object key) {
+        LockQueue q = lockMap.get(key);
+        if (q == null)
+            return;
+        q.latch.lock();
+        try {
+            Mode mode = q.holders.remove(tid);
+            if (mode != null) {
+                held.computeIfPresent(tid, (t, keys) -> {
+                    keys.remove(key);
+                    return keys.isEmpty() ? null : keys;
+                });
+                if (mode == Mode.X)
+                    count(exclusiveHeld, tid, -1);
+                changed(q);
+            }
+        } finally {
+            q.latch.unlock();
+        }
+    }
+
+    /** @return true if the transaction holds a lock on the table, page or row */
+    public boolean holdsLock(TransactionId tid, Object key) {
+        return heldMode(tid, key) != null;
+    }
+
+    /**
+     * @return the mode the transaction holds the table, page or row in, or
+     *     null if it holds no lock on it
+     */
+    public Mode heldMode(TransactionId tid, Object key) {
+        LockQueue q = lockMap.get(key);
+        if (q == null)
+            return null;
+        q.latch.lock();
+        try {
+            return q.holders.get(tid);
+        } finally {
+            q.latch.unlock();
+        }
+    }
+
+    /** @return true if any transaction holds or waits for a lock on the object */
+    public boolean isLocked(Object key) {
+        return lockMap.containsKey(key);
+    }
+
+    /**
+     * @return every holder of and waiter for every lock, waiters with how
+     *     long they have waited and whom they wait for. Each object's queue
+     *     is read at one moment, but different objects at different ones.
+     */
+    public List<LockInfo> lockInfo() {
+        List<LockInfo> info = new ArrayList<LockInfo>();
+        long now = System.nanoTime();
+        for (LockQueue q : lockMap.values()) {
+            List<Request> waiting;
+            q.latch.lock();
+            try {
+                for (Map.Entry<TransactionId, Mode> h : q.holders.entrySet())
+                    info.add(new LockInfo(q.key, h.getKey(), h.getValue(), true, 0,
+                            Collections.<TransactionId>emptySet()));
+                waiting = new ArrayList<Request>(q.waiting);
+            } finally {
+                q.latch.unlock();
+            }
+            for (Request r : waiting) {
+                Set<TransactionId> blockers;
+                synchronized (g) {
+                    Set<TransactionId> b = g.get(r.tid);
+                    blockers = b == null ? Collections.<TransactionId>emptySet() : new HashSet<TransactionId>(b);
+                }
+                info.add(new LockInfo(q.key, r.tid, r.mode, false, now - r.since, blockers));
+            }
+        }
+        return info;
+    }
+
+    /** Forget a finished transaction's edges in the waits-for graph, and its lock timeout. */
+    public void updateGraph(TransactionId tid) {
+        timeouts.remove(tid);
+        synchronized (g) {
+            g.remove(tid);
+            for (Set<TransactionId> dep : g.values())
+                dep.remove(tid);
+        }
+    }
+
+    /** Wait until r is granted; the caller holds the queue's latch. */
+    private void await(LockQueue q, Request r) throws TransactionAbortedException {
+        long start = r.since;
+        long timeout = getLockTimeout(r.tid);
+        synchronized (g) {
+            waiters.put(r.tid, new Waiter(q, r));
+        }
+        try {
+            // set once a victim has been aborted: there may be other cycles
+            // through us, and our blockers only shrink, so waitFor would not
+            // report them
+            boolean search = false;
+            while (!r.granted) {
+                if (!r.aborted && (waitFor(r.tid, blockers(q, r)) || search)) {
+                    search = false;
+                    TransactionId victim = victim(r.tid);
+                    if (victim != null && !victim.equals(r.tid)) {
+                        // the victim's latch must not be taken while holding ours
+                        q.latch.unlock();
+                        try {
+                            abort(victim);
+                        } finally {
+                            q.latch.lock();
+                        }
+                        search = true;
+                        continue;
+                    }
+                    r.aborted = victim != null;
+                }
+                if (r.aborted) {
+                    record(BufferPoolStats.Event.DEADLOCK_ABORT, q.key, 0);
+                    throw new TransactionAbortedException();
+                }
+                try {
+                    if (timeout <= 0) {
+                        q.changed.await();
+                        continue;
+                    }
+                    long left = start + timeout * 1000000 - System.nanoTime();
+                    if (left <= 0) {
+                        record(BufferPoolStats.Event.LOCK_TIMEOUT, q.key, start);
+                        throw new TransactionAbortedException();
+                    }
+                    q.changed.awaitNanos(left);
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                    throw new TransactionAbortedException();
+                }
+            }
+            record(BufferPoolStats.Event.LOCK_WAIT, q.key, start);
+        } finally {
+            synchronized (g) {
+                g.remove(r.tid);
+                waiters.remove(r.tid);
+            }
+            if (!r.granted) {
+                q.waiting.remove(r);
+                changed(q);
+            }
+        }
+    }
+
+    /** Upgrades go ahead of every other kind of waiter. */
+    private static void enqueue(LockQueue q, Request r) {
+        if (!r.upgrade) {
+            q.waiting.addLast(r);
+            return;
+        }
+        ListIterator<Request> it = q.waiting.listIterator();
+        while (it.hasNext())
+            if (!it.next().upgrade) {
+                it.previous();
+                break;
+            }
+        it.add(r);
+    }
+
+    /**
+     * Grant the waiters at the head of the queue that the new holders allow,
+     * wake the rest to see what changed, and drop the queue once nobody
+     * holds or wants the lock. The caller holds the queue's latch.
+     */
+    private void changed(LockQueue q) {
+        while (!q.waiting.isEmpty() && compatible(q, q.waiting.getFirst())) {
+            Request r = q.waiting.removeFirst();
+            grant(q, r);
+            r.granted = true;
+        }
+        if (q.holders.isEmpty() && q.waiting.isEmpty()) {
+            q.dead = true;
+            lockMap.remove(q.key, q);
+        } else {
+            q.changed.signalAll();
+        }
+    }
+
+    private void grant(LockQueue q, Request r) {
+        Mode was = q.holders.put(r.tid, r.mode);
+        if (was == null)
+            held.compute(r.tid, (t, keys) -> {
+                if (keys == null)
+                    keys = ConcurrentHashMap.newKeySet();
+                keys.add(q.key);
+                return keys;
+            });
+        if (r.mode == Mode.X && was != Mode.X)
+            count(exclusiveHeld, r.tid, 1);
+    }
+
+    /** Count a lock event against the table and kind of object locked. */
+    private void record(BufferPoolStats.Event e, Object key, long start) {
+        int tableId;
+        String category;
+        if (key instanceof RecordId) {
+            tableId = ((RecordId) key).getPageId().getTableId();
+            category = "row";
+        } else if (key instanceof TableId) {
+            tableId = ((TableId) key).getTableId();
+            category = "table";
+        } else {
+            tableId = ((PageId) key).getTableId();
+            category = BufferPoolStats.category((PageId) key);
+        }
+        if (start == 0)
+            stats.record(e, tableId, category);
+        else
+            stats.record(e, tableId, category, start);
+    }
+
+    private static void count(ConcurrentHashMap<TransactionId, Integer> counts, TransactionId tid, int delta) {
+        counts.compute(tid, (t, n) -> {
+            int m = (n == null ? 0 : n) + delta;
+            return m <= 0 ? null : m;
+        });
+    }
+
+    private static boolean compatible(LockQueue q, Request r) {
+        for (Map.Entry<TransactionId, Mode> h : q.holders.entrySet())
+            if (!h.getKey().equals(r.tid) && !h.getValue().compatible(r.mode))
+                return false;
+        return true;
+    }
+
+    /** @return the transactions that must go before a waiting request */
+    private static Set<TransactionId> blockers(LockQueue q, Request r) {
+        Set<TransactionId> b = new HashSet<TransactionId>();
+        for (Map.Entry<TransactionId, Mode> h : q.holders.entrySet())
+            if (!h.getKey().equals(r.tid) && !h.getValue().compatible(r.mode))
+                b.add(h.getKey());
+        for (Request w : q.waiting) {
+            if (w == r)
+                break;
+            if (!w.tid.equals(r.tid) && !w.mode.compatible(r.mode))
+                b.add(w.tid);
+        }
+        return b;
+    }
+
+    /**
+     * Record whom a transaction waits for.
+     *
+     * @return true if it now waits for some transaction it did not before
+     */
+    private boolean waitFor(TransactionId tid, Set<TransactionId> blockers) {
+        synchronized (g) {
+            Set<TransactionId> old = g.put(tid, blockers);
+            return old == null || !old.containsAll(blockers);
+        }
+    }
+
+    /**
+     * Look for a cycle through a transaction that has just started waiting
+     * for someone new.
+     *
+     * @return the transaction in the cycle the policy picks to abort, or
+     *     null if there is no cycle
+     */
+    private TransactionId victim(TransactionId tid) {
+        synchronized (g) {
+            // depth-first search for a path back to tid
+            Map<TransactionId, TransactionId> parent = new HashMap<TransactionId, TransactionId>();
+            Deque<TransactionId> stack = new ArrayDeque<TransactionId>();
+            stack.push(tid);
+            while (!stack.isEmpty()) {
+                TransactionId t = stack.pop();
+                Set<TransactionId> dep = g.get(t);
+                if (dep == null)
+                    continue;
+                for (TransactionId n : dep) {
+                    if (n.equals(tid)) {
+                        List<TransactionId> cycle = new ArrayList<TransactionId>();
+                        for (TransactionId c = t; c != null; c = parent.get(c))
+                            cycle.add(c);
+                        return Collections.min(cycle, cost());
+                    }
+                    if (!parent.containsKey(n)) {
+                        parent.put(n, t);
+                        stack.push(n);
+                    }
+                }
+            }
+            return null;
+        }
+    }
+
+    /** Orders transactions from cheapest to dearest to abort. */
+    private Comparator<TransactionId> cost() {
+        // younger transactions have larger ids
+        Comparator<TransactionId> youngest = Comparator.comparingLong(t -> -t.getId());
+        switch (policy) {
+        case LEAST_WORK:
+            return Comparator.comparingInt(this::exclusiveLocksHeld).thenComparing(youngest);
+        case FEWEST_LOCKS:
+            return Comparator.comparingInt(this::locksHeld).thenComparing(youngest);
+        default:
+            return youngest;
+        }
+    }
+
+    /**
+     * Withdraw the request a transaction waits on and wake its thread. Its
+     * edges leave the graph at once, as it waits for nobody any more.
+     */
+    private void abort(TransactionId victim) {
+        Waiter w;
+        synchronized (g) {
+            w = waiters.get(victim);
+        }
+        if (w == null)
+            return;
+        w.q.latch.lock();
+        try {
+            if (!w.r.granted && !w.r.aborted) {
+                w.r.aborted = true;
+                w.q.changed.signalAll();
+            }
+            if (w.r.aborted)
+                synchronized (g) {
+                    g.remove(victim);
+                }
+        } finally {
+            w.q.latch.unlock();
+        }
+    }
+}
@@ -0,0 +1,135 @@
+package simpledb;
+
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.List;
+
+/**
+ * LockTableFile is the read-only system table sys_locks, which shows the
+ * locks of the database's buffer pool to queries: one row for every
+ * transaction holding or waiting for a lock on a table, page or row, built
+ * from {@link LockManager#lockInfo()} each time the table is scanned.
+ * <p>
+ * The columns are:
+ * <ul>
+ * <li>table_id, the table the locked object belongs to;
+ * <li>kind, "table", "row", or the category of a page as counted by
+ * {@link BufferPoolStats#category(PageId)};
+ * <li>page_no and slot, the page and row locked, or -1;
+ * <li>tid and lock_mode, the transaction and the mode it holds or wants;
+ * <li>state, "held" or "waiting";
+ * <li>wait_ms, how long a waiter has waited so far, 0 for holders;
+ * <li>blockers, the transactions a waiter waits for, separated by spaces.
+ * </ul>
+ * For example, <tt>select l.tid, l.wait_ms, l.blockers from sys_locks l
+ * where l.state = 'waiting';</tt> lists the waiting transactions.
+ * <p>
+ * The table has no pages: it cannot be read page by page or written.
+ *
+ * @see Catalog#getTableId(String)
+ */
+public class LockTableFile implements DbFile {
+
+    /** The name of the table in the catalog. */
+    public static final String NAME = "sys_locks";
+
+    /** The table's id, which no file's should share. */
+    public static final int ID = NAME.hashCode();
+
+    private static final TupleDesc TD = new TupleDesc(
+            new Type[] { Type.INT_TYPE, Type.STRING_TYPE, Type.INT_TYPE, Type.INT_TYPE, Type.INT_TYPE,
+                    Type.STRING_TYPE, Type.STRING_TYPE, Type.INT_TYPE, Type.STRING_TYPE },
+            new String[] { "table_id", "kind", "page_no", "slot", "tid", "lock_mode", "state", "wait_ms",
+                    "blockers" });
+
+    public Page readPage(PageId id) {
+        throw new UnsupportedOperationException(NAME + " has no pages");
+    }
+
+    public void writePage(Page p) {
+        throw new UnsupportedOperationException(NAME + " has no pages");
+    }
+
+    public Page decodePage(PageId id, byte[] data) {
+        throw new UnsupportedOperationException(NAME + " has no pages");
+    }
+
+    public ArrayList<Page> insertTuple(TransactionId tid, Tuple t) throws DbException {
+        throw new DbException(NAME + " is read-only");
+    }
+
+    public ArrayList<Page> deleteTuple(TransactionId tid, Tuple t) throws DbException {
+        throw new DbException(NAME + " is read-only");
+    }
+
+    /** Scan the locks as they are when the iterator is opened or rewound. Takes no locks. */
+    public DbFileIterator iterator(TransactionId tid) {
+        return new AbstractDbFileIterator() {
+            private Iterator<Tuple> it;
+
+            public void open() {
+                it = rows().iterator();
+            }
+
+            public void rewind() {
+                open();
+            }
+
+            protected Tuple readNext() {
+                return it != null && it.hasNext() ? it.next() : null;
+            }
+
+            public void close() {
+                super.close();
+                it = null;
+            }
+        };
+    }
+
+    public int getId() {
+        return ID;
+    }
+
+    public TupleDesc getTupleDesc() {
+        return TD;
+    }
+
+    private static List<Tuple> rows() {
+        List<Tuple> rows = new ArrayList<Tuple>();
+        for (LockManager.LockInfo l : Database.getBufferPool().getLockManager().lockInfo()) {
+            Object key = l.getKey();
+            int tableId, pageNo = -1, slot = -1;
+            String kind;
+            if (key instanceof LockManager.TableId) {
+                tableId = ((LockManager.TableId) key).getTableId();
+                kind = "table";
+            } else if (key instanceof RecordId) {
+                RecordId rid = (RecordId) key;
+                tableId = rid.getPageId().getTableId();
+                pageNo = rid.getPageId().getPageNumber();
+                slot = rid.getTupleNumber();
+                kind = "row";
+            } else {
+                PageId pid = (PageId) key;
+                tableId = pid.getTableId();
+                pageNo = pid.getPageNumber();
+                kind = BufferPoolStats.category(pid);
+            }
+            StringBuilder blockers = new StringBuilder();
+            for (TransactionId b : l.getBlockers())
+                blockers.append(blockers.length() == 0 ? "" : " ").append(b.getId());
+            Tuple t = new Tuple(TD);
+            t.setField(0, new IntField(tableId));
+            t.setField(1, new StringField(kind, Type.STRING_LEN));
+            t.setField(2, new IntField(pageNo));
+            t.setField(3, new IntField(slot));
+            t.setField(4, new IntField((int) l.getTransactionId().getId()));
+            t.setField(5, new StringField(l.getMode().name(), Type.STRING_LEN));
+            t.setField(6, new StringField(l.isGranted() ? "held" : "waiting", Type.STRING_LEN));
+            t.setField(7, new IntField((int) Math.min(Integer.MAX_VALUE, l.getWaitNanos() / 1000000)));
+            t.setField(8, new StringField(blockers.toString(), Type.STRING_LEN));
+            rows.add(t);
+        }
+        return rows;
+    }
+}
@@ -2,7 +2,11 @@
 package simpledb;
 
 import java.io.*;
+import java.nio.channels.ClosedChannelException;
+import java.nio.channels.FileChannel;
 import java.util.*;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.LockSupport;
 import java.lang.reflect.*;
 
 /**
@@ -32,6 +36,17 @@ must not be declared synchronized and must begin with a block like:
        }
     }
 </pre>
+
+<u> Group commit: </u>
+<p>
+
+logCommit appends its COMMIT record while holding the log, but waits
+for the record to reach the disk without it. The first committer to
+wait forces the log on behalf of every record appended so far; the
+others wait for that force, or for the next one, rather than each
+forcing the log on its own. The leader can also wait a little before
+forcing, so that more committers join its batch: see
+setGroupCommitDelay().
 */
 
 /**
@@ -93,6 +108,16 @@ public class LogFile {
 
     HashMap<Long,Long> tidToFirstLogRecord = new HashMap<Long,Long>();
 
+    // how far the log is known to be on disk, and whether a committer is
+    // forcing it; protected by flushLock. Offsets are only comparable
+    // within one epoch, which changes whenever the log is rewritten.
+    private final Object flushLock = new Object();
+    private long durableOffset = 0;
+    private long epoch = 0;
+    private boolean flushing = false;
+    private volatile long groupCommitDelayMicros = 0;
+    private final AtomicLong forces = new AtomicLong();
+
     /** Constructor.
         Initialize and back the log file with the specified file.
         We're not sure yet whether the caller is creating a brand new DB,
@@ -132,12 +157,34 @@ public class LogFile {
             raf.writeLong(NO_CHECKPOINT_ID);
             raf.seek(raf.length());
             currentOffset = raf.getFilePointer();
+            newEpoch();
         }
     }
 
     public synchronized int getTotalRecords() {
         return totalRecords;
     }
+
+    /**
+     * Set how long a committer that is about to force the log waits for
+     * others to append their COMMIT records first, in microseconds. A
+     * longer delay forces the log less often under concurrent commits, but
+     * makes every commit wait that much longer. 0, the default, forces at
+     * once; commits that arrive while the log is being forced still share
+     * the next force.
+     */
+    public void setGroupCommitDelay(long micros) {
+        groupCommitDelayMicros = micros;
+    }
+
+    public long getGroupCommitDelay() {
+        return groupCommitDelayMicros;
+    }
+
+    /** @return how many times the log has been forced to disk */
+    public long getForceCount() {
+        return forces.get();
+    }
     
     /** Write an abort record to the log for the specified tid, force
         the log to disk, and perform a rollback
@@ -173,17 +220,97 @@ public class LogFile {
 
         @param tid The committing transaction.
     */
-    public synchronized void logCommit(TransactionId tid) throws IOException {
-        preAppend();
-        Debug.log("COMMIT " + tid.getId());
-        //should we verify that this is a live transaction?
+    public void logCommit(TransactionId tid) throws IOException {
+        long end, inEpoch;
+        synchronized (this) {
+            preAppend();
+            Debug.log("COMMIT " + tid.getId());
+            //should we verify that this is a live transaction?
+
+            raf.writeInt(COMMIT_RECORD);
+            raf.writeLong(tid.getId());
+            raf.writeLong(currentOffset);
+            currentOffset = raf.getFilePointer();
+            tidToFirstLogRecord.remove(tid.getId());
+            end = currentOffset;
+            synchronized (flushLock) {
+                inEpoch = epoch;
+            }
+        }
+        groupForce(inEpoch, end);
+    }
 
-        raf.writeInt(COMMIT_RECORD);
-        raf.writeLong(tid.getId());
-        raf.writeLong(currentOffset);
-        currentOffset = raf.getFilePointer();
-        force();
-        tidToFirstLogRecord.remove(tid.getId());
+    /**
+     * Wait until the log is on disk up to the given offset, forcing it
+     * for everybody waiting if no one else is.
+     */
+    private void groupForce(long inEpoch, long end) throws IOException {
+        boolean interrupted = false;
+        try {
+            while (true) {
+                synchronized (flushLock) {
+                    // a rewritten log was forced whole
+                    if (epoch != inEpoch || durableOffset >= end)
+                        return;
+                    if (flushing) {
+                        try {
+                            flushLock.wait();
+                        } catch (InterruptedException e) {
+                            interrupted = true;
+                        }
+                        continue;
+                    }
+                    flushing = true;
+                }
+                try {
+                    long delay = groupCommitDelayMicros;
+                    if (delay > 0)
+                        LockSupport.parkNanos(delay * 1000);
+                    FileChannel ch;
+                    long target, targetEpoch;
+                    synchronized (this) {
+                        ch = raf.getChannel();
+                        target = currentOffset;
+                        synchronized (flushLock) {
+                            targetEpoch = epoch;
+                        }
+                    }
+                    try {
+                        ch.force(true);
+                        forces.incrementAndGet();
+                        markDurable(targetEpoch, target);
+                    } catch (ClosedChannelException e) {
+                        // logTruncate replaced the file, and forced the new one
+                    }
+                } finally {
+                    synchronized (flushLock) {
+                        flushing = false;
+                        flushLock.notifyAll();
+                    }
+                }
+            }
+        } finally {
+            if (interrupted)
+                Thread.currentThread().interrupt();
+        }
+    }
+
+    /** Record that the log is on disk up to an offset, and wake whoever waits for that. */
+    private void markDurable(long inEpoch, long offset) {
+        synchronized (flushLock) {
+            if (inEpoch == epoch && offset > durableOffset)
+                durableOffset = offset;
+            flushLock.notifyAll();
+        }
+    }
+
+    /** Offsets have changed meaning; nothing is known to be on disk in the new ones. */
+    private void newEpoch() {
+        synchronized (flushLock) {
+            epoch++;
+            durableOffset = 0;
+            flushLock.notifyAll();
+        }
     }
 
     /** Write an UPDATE record to disk for the specified tid and page
@@ -355,6 +482,23 @@ public class LogFile {
         }
 
         logTruncate();
+
+        // a snapshot that cannot be written only costs a slower start
+        try {
+            Database.getBufferPool().saveSnapshot(getSnapshotFile());
+        } catch (IOException e) {
+            e.printStackTrace();
+        }
+    }
+
+    /**
+     * Returns the file in which checkpoints record the pages in the buffer
+     * pool, next to the log file.
+     *
+     * @see BufferPool#loadSnapshot(File)
+     */
+    public File getSnapshotFile() {
+        return new File(logFile.getPath() + ".pages");
     }
 
     /** Truncate any unneeded portion of the log to reduce its space
@@ -450,6 +594,8 @@ public class LogFile {
         newFile.delete();
 
         currentOffset = raf.getFilePointer();
+        newEpoch();
+        force();
         //print();
     }
 
@@ -505,6 +651,12 @@ public class LogFile {
 
     public  synchronized void force() throws IOException {
         raf.getChannel().force(true);
+        forces.incrementAndGet();
+        long inEpoch;
+        synchronized (flushLock) {
+            inEpoch = epoch;
+        }
+        markDurable(inEpoch, currentOffset);
     }
 
 }
@@ -301,7 +301,14 @@ public class LogicalPlan {
             
             subplanMap.put(table.alias,ss);
             String baseTableName = Database.getCatalog().getTableName(table.t);
-            statsMap.put(baseTableName, baseTableStats.get(baseTableName));
+            TableStats stats = baseTableStats.get(baseTableName);
+            if (stats == null) {
+                // tables added since statistics were computed, and system
+                // tables, get them computed on first use
+                stats = new TableStats(table.t, TableStats.IOCOSTPERPAGE);
+                TableStats.setTableStats(baseTableName, stats);
+            }
+            statsMap.put(baseTableName, stats);
             filterSelectivities.put(table.alias, 1.0);
 
         }
@@ -34,6 +34,33 @@ public interface OpIterator extends Serializable{
    */
   public Tuple next() throws DbException, TransactionAbortedException, NoSuchElementException;
 
+  /**
+   * Returns up to {@link TupleBatch#MAX_ROWS} of the next tuples at once.
+   * The batch belongs to the caller. A consumer reads an iterator with
+   * either next or nextBatch, not both, until it is rewound or closed.
+   * Either way it gets the same tuples, and in the same order, except that
+   * a plan with a {@link Join} in it returns them in block nested loops
+   * order when read a batch at a time.
+   * <p>
+   * This default fills the batch with next, so that any operator can feed
+   * one that works a batch at a time; operators that can do better, such as
+   * {@link SeqScan} and {@link Filter}, override it. The batch takes the
+   * TupleDesc of the first tuple.
+   *
+   * @return a batch of at least one tuple, or null if there are no more
+   * @throws IllegalStateException If the iterator has not been opened
+   */
+  public default TupleBatch nextBatch() throws DbException, TransactionAbortedException {
+    if (!hasNext())
+      return null;
+    Tuple first = next();
+    TupleBatch batch = new TupleBatch(first.getTupleDesc());
+    batch.add(first);
+    while (!batch.isFull() && hasNext())
+      batch.add(next());
+    return batch;
+  }
+
   /**
    * Resets the iterator to the start.
    * @throws DbException when rewind is unsupported.
@@ -581,7 +581,7 @@ public class Parser {
     // Basic SQL completions
     public static final String[] SQL_COMMANDS = { "select", "from", "where",
             "group by", "max(", "min(", "avg(", "count", "rollback", "commit",
-            "insert", "delete", "values", "into" };
+            "insert", "delete", "values", "into", "stats" };
 
     public static void main(String argv[]) throws IOException {
 
@@ -599,6 +599,12 @@ public class Parser {
     static final int SLEEP_TIME = 1000;
 
     protected void shutdown() {
+        // remember what was cached, so the next start is warm
+        try {
+            Database.getBufferPool().saveSnapshot(Database.getLogFile().getSnapshotFile());
+        } catch (IOException e) {
+            e.printStackTrace();
+        }
         System.out.println("Bye");
     }
 
@@ -608,6 +614,9 @@ public class Parser {
         // first add tables to database
         Database.getCatalog().loadSchema(argv[0]);
         TableStats.computeStatistics();
+        // refill the buffer pool in the background with the pages cached
+        // when the database last stopped
+        Database.getBufferPool().loadSnapshot(Database.getLogFile().getSnapshotFile());
 
         String queryFile = null;
 
@@ -682,12 +691,18 @@ public class Parser {
                         break;
                     }
 
-                    long startTime = System.currentTimeMillis();
-                    processNextStatement(new ByteArrayInputStream(
-                            statementBytes));
-                    long time = System.currentTimeMillis() - startTime;
-                    System.out.printf("----------------\n%.2f seconds\n\n",
-                            ((double) time / 1000.0));
+                    if (cmd.equalsIgnoreCase("stats;")) {
+                        System.out.print(Database.getBufferPool().getStats().report());
+                    } else if (cmd.equalsIgnoreCase("stats reset;")) {
+                        Database.getBufferPool().getStats().reset();
+                    } else {
+                        long startTime = System.currentTimeMillis();
+                        processNextStatement(new ByteArrayInputStream(
+                                statementBytes));
+                        long time = System.currentTimeMillis() - startTime;
+                        System.out.printf("----------------\n%.2f seconds\n\n",
+                                ((double) time / 1000.0));
+                    }
 
                     // Grab the remainder of the line
                     line = line.substring(split + 1);
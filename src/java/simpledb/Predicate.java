@@ -99,6 +99,30 @@ public class Predicate implements Serializable {
         return t.getField(field).compare(op,operand);
     }
 
+    /**
+     * Remove the rows of a batch that do not pass the predicate. An int
+     * field is compared to an int operand straight from the batch's column.
+     *
+     * @param batch the rows to filter, changed in place
+     */
+    public void filter(TupleBatch batch) {
+        int[] keep=new int[batch.size()];
+        int n=0;
+        if(batch.getTupleDesc().getFieldType(field)==Type.INT_TYPE&&operand instanceof IntField){
+            int[] col=batch.getInts(field);
+            int v=((IntField)operand).getValue();
+            for(int i=0;i<batch.size();i++)
+                if(IntField.compare(op,col[i],v))
+                    keep[n++]=i;
+        }
+        else{
+            for(int i=0;i<batch.size();i++)
+                if(batch.getField(field,i).compare(op,operand))
+                    keep[n++]=i;
+        }
+        batch.select(keep,n);
+    }
+
     /**
      * Returns something useful, like "f = field_id op = op_string operand =
      * operand_string"
@@ -80,6 +80,20 @@ public class Project extends Operator {
         return null;
     }
 
+    /**
+     * Projects a batch of the child's tuples at a time, sharing the kept
+     * columns with the child's batch rather than copying them.
+     */
+    public TupleBatch nextBatch() throws TransactionAbortedException, DbException {
+        TupleBatch batch = child.nextBatch();
+        if (batch == null)
+            return null;
+        int[] cols = new int[outFieldIds.size()];
+        for (int i = 0; i < cols.length; i++)
+            cols[i] = outFieldIds.get(i);
+        return batch.project(cols, td);
+    }
+
     @Override
     public OpIterator[] getChildren() {
         return new OpIterator[] { this.child };
@@ -92,6 +92,11 @@ public class Query implements Serializable {
         started = false;
     }
 
+    /**
+     * Print the results of the query, read from the plan a batch at a time.
+     * These are the tuples that reading it with next would return, though
+     * not always in the same order; see {@link OpIterator#nextBatch()}.
+     */
     public void execute() throws IOException, DbException, TransactionAbortedException {
         TupleDesc td = this.getOutputTupleDesc();
 
@@ -107,10 +112,11 @@ public class Query implements Serializable {
 
         this.start();
         int cnt = 0;
-        while (this.hasNext()) {
-            Tuple tup = this.next();
-            System.out.println(tup);
-            cnt++;
+        TupleBatch batch;
+        while ((batch = op.nextBatch()) != null) {
+            for (int i = 0; i < batch.size(); i++)
+                System.out.println(batch.getTuple(i));
+            cnt += batch.size();
         }
         System.out.println("\n " + cnt + " rows.");
         this.close();
@@ -0,0 +1,38 @@
+package simpledb;
+
+import java.util.function.Predicate;
+
+/**
+ * ReplacementPolicy decides which resident page the BufferPool gives up
+ * when it needs room for a new one. The BufferPool tells the policy about
+ * every page that enters, is hit in, or leaves the pool, and asks it for a
+ * victim when the pool is full.
+ * <p>
+ * The policy only tracks PageIds; it never touches the pages themselves.
+ * Whether a page may actually be evicted (e.g. it is clean under NO STEAL)
+ * is decided by the BufferPool through the filter passed to
+ * {@link #chooseVictim}.
+ *
+ * @see BufferPool#BufferPool(int, ReplacementPolicy)
+ */
+public interface ReplacementPolicy {
+
+    /** Record that the page was brought into the buffer pool. */
+    public void pageAdded(PageId pid);
+
+    /** Record a hit on a page that is already resident. */
+    public void pageAccessed(PageId pid);
+
+    /** Forget the page; it is no longer resident. */
+    public void pageRemoved(PageId pid);
+
+    /**
+     * Choose a resident page to evict. The returned page is not removed
+     * from the policy; the caller does that via {@link #pageRemoved} once
+     * the page has actually left the pool.
+     *
+     * @param canEvict returns false for pages that must stay resident
+     * @return the page to evict, or null if no resident page can be evicted
+     */
+    public PageId chooseVictim(Predicate<PageId> canEvict);
+}
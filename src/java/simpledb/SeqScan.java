@@ -14,6 +14,8 @@ public class SeqScan implements OpIterator {
     private int tableId;
     private String tableAlias;
     private DbFileIterator it;
+    // the table's TupleDesc with the alias prefixed, built when the table is set
+    private TupleDesc td;
 
     /**
      * Creates a sequential scan over the specified table as a part of the
@@ -33,6 +35,7 @@ public class SeqScan implements OpIterator {
      */
     public SeqScan(TransactionId tid, int tableid, String tableAlias) {
         transactionId=tid;tableId=tableid;this.tableAlias=tableAlias;
+        td=prefixed();
         DbFile dbfile = Database.getCatalog().getDatabaseFile(tableId);
         it=dbfile.iterator(transactionId);
     }
@@ -43,7 +46,7 @@ public class SeqScan implements OpIterator {
      *       be the actual name of the table in the catalog of the database
      * */
     public String getTableName() {
-        return null;
+        return Database.getCatalog().getTableName(tableId);
     }
 
     /**
@@ -68,6 +71,7 @@ public class SeqScan implements OpIterator {
      */
     public void reset(int tableid, String tableAlias) {
         tableId=tableid;this.tableAlias=tableAlias;
+        td=prefixed();
     }
 
     public SeqScan(TransactionId tid, int tableId) {
@@ -89,8 +93,19 @@ public class SeqScan implements OpIterator {
      *         prefixed with the tableAlias string from the constructor.
      */
     public TupleDesc getTupleDesc() {
-        DbFile dbfile = Database.getCatalog().getDatabaseFile(tableId);
-        return dbfile.getTupleDesc();
+        return td;
+    }
+
+    /** @return the table's TupleDesc with its field names prefixed by the alias */
+    private TupleDesc prefixed() {
+        TupleDesc fields = Database.getCatalog().getDatabaseFile(tableId).getTupleDesc();
+        Type[] types = new Type[fields.numFields()];
+        String[] names = new String[fields.numFields()];
+        for (int i = 0; i < types.length; i++) {
+            types[i] = fields.getFieldType(i);
+            names[i] = tableAlias + "." + fields.getFieldName(i);
+        }
+        return new TupleDesc(types, names);
     }
 
     public boolean hasNext() throws TransactionAbortedException, DbException {
@@ -102,6 +117,17 @@ public class SeqScan implements OpIterator {
         return it.next();
     }
 
+    /**
+     * Fills the batch straight from the table's iterator, with no Operator
+     * bookkeeping in between.
+     */
+    public TupleBatch nextBatch() throws TransactionAbortedException, DbException {
+        TupleBatch batch = new TupleBatch(td);
+        while (!batch.isFull() && it.hasNext())
+            batch.add(it.next());
+        return batch.size() == 0 ? null : batch;
+    }
+
     public void close() {
         it.close();
     }
@@ -0,0 +1,273 @@
+package simpledb;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.charset.Charset;
+import java.util.Arrays;
+
+/**
+ * SlottedHeapPage is a HeapPage of a table in the slotted format, whose
+ * tuples take only as many bytes as their values need: a string field is
+ * stored as its length in two bytes followed by its characters, rather than
+ * padded to {@link Type#STRING_LEN}.
+ * <p>
+ * The page starts with a four-byte header: the number of entries in the
+ * slot directory, and the offset where the records start, both unsigned
+ * shorts (an offset of 0 stands for the end of the page, so a page of
+ * zeroes is empty). The slot directory follows, four bytes per slot: the
+ * offset and length of the slot's record, or two zeroes for an empty
+ * slot. Records are packed from the end of the page towards the
+ * directory. Deleting a record leaves a hole, and when an insert finds
+ * enough free space only in holes, the records are first moved together
+ * to close them.
+ * <p>
+ * Slots keep their numbers while records move, so a RecordId stays
+ * valid. {@link #getNumEmptySlots()} counts the tuples of the largest
+ * possible size that would still fit, so a page with an empty slot always
+ * takes the next insert.
+ *
+ * @see HeapFile.Format#SLOTTED
+ */
+public class SlottedHeapPage extends HeapPage {
+
+    /** The largest page size the format can address with its two-byte offsets. */
+    public static final int MAX_PAGE_SIZE = 65536;
+
+    private static final int HEADER = 4;
+    private static final int ENTRY = 4;
+    private static final Charset CHARSET = Charset.defaultCharset();
+
+    /**
+     * Create a page in the slotted format from bytes read from disk.
+     */
+    public SlottedHeapPage(HeapPageId id, byte[] data) throws IOException {
+        this(id, data, false);
+    }
+
+    /**
+     * Create a page in the slotted format from the bytes between the
+     * position and limit of a buffer, copying them once.
+     */
+    public SlottedHeapPage(HeapPageId id, ByteBuffer data) throws IOException {
+        this(id, toArray(data), true);
+    }
+
+    private SlottedHeapPage(HeapPageId id, byte[] data, boolean own) {
+        super(id, data, own, maxSlots(id));
+    }
+
+    /**
+     * @return the most tuples a page of a table can hold, each of the
+     *     smallest size
+     */
+    private static int maxSlots(HeapPageId id) {
+        TupleDesc td = Database.getCatalog().getTupleDesc(id.getTableId());
+        int pageSize = Database.getCatalog().getPageSize(id.getTableId());
+        return Math.min(0xffff, (pageSize - HEADER) / (ENTRY + minRecordSize(td)));
+    }
+
+    private static int minRecordSize(TupleDesc td) {
+        int n = 0;
+        for (int j = 0; j < td.numFields(); j++)
+            n += td.getFieldType(j) == Type.STRING_TYPE ? 2 : td.getFieldType(j).getLen();
+        return n;
+    }
+
+    private static int maxRecordSize(TupleDesc td) {
+        int n = 0;
+        for (int j = 0; j < td.numFields(); j++)
+            n += td.getFieldType(j) == Type.STRING_TYPE ? 2 + Type.STRING_LEN : td.getFieldType(j).getLen();
+        return n;
+    }
+
+    protected HeapPage copy(byte[] data, boolean own) {
+        return new SlottedHeapPage(pid, data, own);
+    }
+
+    private int entries() {
+        return buf.getShort(0) & 0xffff;
+    }
+
+    private int recordsStart() {
+        int start = buf.getShort(2) & 0xffff;
+        return start == 0 ? pageSize : start;
+    }
+
+    private int offset(int slot) {
+        return buf.getShort(HEADER + slot * ENTRY) & 0xffff;
+    }
+
+    private int length(int slot) {
+        return buf.getShort(HEADER + slot * ENTRY + 2) & 0xffff;
+    }
+
+    private void setEntry(int slot, int offset, int length) {
+        buf.putShort(HEADER + slot * ENTRY, (short) offset);
+        buf.putShort(HEADER + slot * ENTRY + 2, (short) length);
+    }
+
+    // bytes used by records, holes not included
+    private int recordBytes() {
+        int n = 0;
+        for (int i = 0; i < entries(); i++)
+            n += length(i);
+        return n;
+    }
+
+    // free bytes, counting holes between records
+    private int freeBytes() {
+        return pageSize - HEADER - entries() * ENTRY - recordBytes();
+    }
+
+    public synchronized boolean isSlotUsed(int i) {
+        return i < entries() && length(i) != 0;
+    }
+
+    public synchronized int getNumEmptySlots() {
+        int used = 0;
+        for (int i = 0; i < entries(); i++)
+            if (length(i) != 0)
+                used++;
+        int free = freeBytes(), max = maxRecordSize(td);
+        // reuse empty directory entries first, then add new ones
+        int reused = Math.min(entries() - used, free / max);
+        int added = (free - reused * max) / (max + ENTRY);
+        return Math.min(numSlots - used, reused + added);
+    }
+
+    protected int freeSlot(Tuple t) {
+        int size = encode(t).length, n = entries();
+        for (int i = 0; i < n; i++)
+            if (length(i) == 0)
+                return size <= freeBytes() ? i : -1;
+        return n < numSlots && size + ENTRY <= freeBytes() ? n : -1;
+    }
+
+    protected void writeTuple(Tuple t, int slot) throws DbException {
+        put(slot, encode(t));
+    }
+
+    protected void clearSlot(int slot) {
+        Arrays.fill(data, offset(slot), offset(slot) + length(slot), (byte) 0);
+        setEntry(slot, 0, 0);
+        // drop empty entries from the end of the directory
+        int n = entries();
+        while (n > 0 && length(n - 1) == 0)
+            n--;
+        buf.putShort(0, (short) n);
+        if (n == 0)
+            buf.putShort(2, (short) 0);
+    }
+
+    protected Field readField(int slot, int j) {
+        int off = offset(slot);
+        for (int k = 0; k < j; k++)
+            off += fieldSize(k, off);
+        Type type = td.getFieldType(j);
+        if (type == Type.INT_TYPE)
+            return new IntField(buf.getInt(off));
+        int len = buf.getShort(off) & 0xffff;
+        return new StringField(new String(data, off + 2, len, CHARSET), Type.STRING_LEN);
+    }
+
+    /**
+     * Set a field by writing the whole record again, in place if it is no
+     * longer than before.
+     *
+     * @throws DbException if the record has grown and no longer fits on the
+     *     page, leaving the page unchanged
+     */
+    protected void writeField(int slot, int j, Field f) throws DbException {
+        Field[] fields = new Field[td.numFields()];
+        for (int k = 0; k < fields.length; k++)
+            fields[k] = k == j ? f : readField(slot, k);
+        byte[] record = encode(fields);
+        int off = offset(slot), len = length(slot);
+        if (record.length <= len) {
+            System.arraycopy(record, 0, data, off, record.length);
+            Arrays.fill(data, off + record.length, off + len, (byte) 0);
+            setEntry(slot, off, record.length);
+            return;
+        }
+        if (record.length - len > freeBytes())
+            throw new DbException("no room on page " + pid.getPageNumber() + " for the changed tuple");
+        // fits once its old bytes are free
+        Arrays.fill(data, off, off + len, (byte) 0);
+        setEntry(slot, 0, 0);
+        put(slot, record);
+    }
+
+    // the size of field k of a record, which starts at off
+    private int fieldSize(int k, int off) {
+        Type type = td.getFieldType(k);
+        return type == Type.STRING_TYPE ? 2 + (buf.getShort(off) & 0xffff) : type.getLen();
+    }
+
+    /** Store a record in a slot, growing the directory and closing holes as needed. */
+    private void put(int slot, byte[] record) throws DbException {
+        int n = entries();
+        int grow = slot < n ? 0 : (slot + 1 - n) * ENTRY;
+        if (slot >= numSlots || record.length + grow > freeBytes())
+            throw new DbException("no space for tuple");
+        int dirEnd = HEADER + Math.max(n, slot + 1) * ENTRY;
+        if (recordsStart() - record.length < dirEnd)
+            compact();
+        for (int i = n; i <= slot; i++)
+            setEntry(i, 0, 0);
+        if (slot >= n)
+            buf.putShort(0, (short) (slot + 1));
+        int off = recordsStart() - record.length;
+        System.arraycopy(record, 0, data, off, record.length);
+        buf.putShort(2, (short) off);
+        setEntry(slot, off, record.length);
+    }
+
+    /** Move the records together at the end of the page, closing the holes between them. */
+    private void compact() {
+        int n = entries();
+        byte[] moved = new byte[pageSize];
+        int end = pageSize;
+        for (int i = 0; i < n; i++) {
+            int len = length(i);
+            if (len == 0)
+                continue;
+            end -= len;
+            System.arraycopy(data, offset(i), moved, end, len);
+            setEntry(i, end, len);
+        }
+        int dirEnd = HEADER + n * ENTRY;
+        Arrays.fill(data, dirEnd, end, (byte) 0);
+        System.arraycopy(moved, end, data, end, pageSize - end);
+        buf.putShort(2, (short) (end == pageSize ? 0 : end));
+    }
+
+    private byte[] encode(Tuple t) {
+        Field[] fields = new Field[td.numFields()];
+        for (int j = 0; j < fields.length; j++)
+            fields[j] = t.getField(j);
+        return encode(fields);
+    }
+
+    private byte[] encode(Field[] fields) {
+        int size = 0;
+        byte[][] strings = new byte[fields.length][];
+        for (int j = 0; j < fields.length; j++) {
+            if (td.getFieldType(j) == Type.STRING_TYPE) {
+                String s = ((StringField) fields[j]).getValue();
+                byte[] b = s.getBytes(CHARSET);
+                strings[j] = b.length > Type.STRING_LEN ? Arrays.copyOf(b, Type.STRING_LEN) : b;
+                size += 2 + strings[j].length;
+            } else
+                size += td.getFieldType(j).getLen();
+        }
+        ByteBuffer out = ByteBuffer.allocate(size);
+        for (int j = 0; j < fields.length; j++) {
+            if (strings[j] != null) {
+                out.putShort((short) strings[j].length);
+                out.put(strings[j]);
+            } else
+                out.putInt(((IntField) fields[j]).getValue());
+        }
+        return out.array();
+    }
+}
@@ -25,6 +25,17 @@ public class Transaction {
         }
     }
 
+    /**
+     * Start the transaction as a read-only snapshot: it reads the database
+     * as committed at this point, without taking locks.
+     *
+     * @see BufferPool#beginSnapshot(TransactionId)
+     */
+    public void startSnapshot() {
+        start();
+        Database.getBufferPool().beginSnapshot(tid);
+    }
+
     public TransactionId getId() {
         return tid;
     }
@@ -35,6 +35,16 @@ public class Tuple implements Serializable {
         recordId=null;
     }
 
+    /**
+     * Create a tuple whose fields a subclass keeps itself, such as a view of
+     * a tuple stored on a page. The subclass must override every method
+     * that reads or changes the fields.
+     */
+    protected Tuple(TupleDesc td, RecordId rid) {
+        tupleDesc=td;
+        recordId=rid;
+    }
+
     /**
      * @return The TupleDesc representing the schema of this tuple.
      */
@@ -0,0 +1,202 @@
+package simpledb;
+
+import java.io.Serializable;
+import java.util.Arrays;
+
+/**
+ * TupleBatch holds up to {@link #MAX_ROWS} tuples of one TupleDesc column by
+ * column, for operators that pass tuples a batch at a time with
+ * {@link OpIterator#nextBatch()}. Each INT_TYPE column is an int array and
+ * each STRING_TYPE column a String array, so an operator can work through a
+ * column in a tight loop instead of calling through Tuple and Field for
+ * every value. The record id of each row is kept too, where known.
+ * <p>
+ * Only the first {@link #size()} entries of each column are rows. Several
+ * batches may share column arrays, as after {@link #project}; a batch
+ * handed to a caller belongs to it, and the operator that made it does not
+ * change it again.
+ */
+public class TupleBatch implements Serializable {
+
+    private static final long serialVersionUID = 1L;
+
+    /** The most rows a batch holds. */
+    public static final int MAX_ROWS = 1024;
+
+    private final TupleDesc td;
+    private final int[][] ints;
+    private final String[][] strings;
+    private final RecordId[] rids;
+    private int size;
+
+    /**
+     * Create an empty batch.
+     *
+     * @param td the TupleDesc of the batch's rows
+     */
+    public TupleBatch(TupleDesc td) {
+        this.td = td;
+        ints = new int[td.numFields()][];
+        strings = new String[td.numFields()][];
+        for (int j = 0; j < td.numFields(); j++) {
+            if (td.getFieldType(j) == Type.INT_TYPE)
+                ints[j] = new int[MAX_ROWS];
+            else
+                strings[j] = new String[MAX_ROWS];
+        }
+        rids = new RecordId[MAX_ROWS];
+    }
+
+    private TupleBatch(TupleDesc td, int[][] ints, String[][] strings, RecordId[] rids, int size) {
+        this.td = td;
+        this.ints = ints;
+        this.strings = strings;
+        this.rids = rids;
+        this.size = size;
+    }
+
+    public TupleDesc getTupleDesc() {
+        return td;
+    }
+
+    /** @return the number of rows in the batch */
+    public int size() {
+        return size;
+    }
+
+    /** @return true if no more rows can be added */
+    public boolean isFull() {
+        return size == MAX_ROWS;
+    }
+
+    /** Remove all the rows. */
+    public void clear() {
+        size = 0;
+    }
+
+    /** @return the values of an INT_TYPE column; only the first size() are rows */
+    public int[] getInts(int col) {
+        return ints[col];
+    }
+
+    /** @return the values of a STRING_TYPE column; only the first size() are rows */
+    public String[] getStrings(int col) {
+        return strings[col];
+    }
+
+    public int getInt(int col, int row) {
+        return ints[col][row];
+    }
+
+    public String getString(int col, int row) {
+        return strings[col][row];
+    }
+
+    /** @return a value of the batch as a Field */
+    public Field getField(int col, int row) {
+        if (ints[col] != null)
+            return new IntField(ints[col][row]);
+        return new StringField(strings[col][row], Type.STRING_LEN);
+    }
+
+    /** @return the record id of a row, or null if it has none */
+    public RecordId getRecordId(int row) {
+        return rids[row];
+    }
+
+    /** @return a row of the batch as a Tuple */
+    public Tuple getTuple(int row) {
+        Tuple t = new Tuple(td);
+        for (int j = 0; j < td.numFields(); j++)
+            t.setField(j, getField(j, row));
+        t.setRecordId(rids[row]);
+        return t;
+    }
+
+    /** Add a tuple as the last row. */
+    public void add(Tuple t) {
+        for (int j = 0; j < ints.length; j++) {
+            if (ints[j] != null)
+                ints[j][size] = ((IntField) t.getField(j)).getValue();
+            else
+                strings[j][size] = ((StringField) t.getField(j)).getValue();
+        }
+        rids[size++] = t.getRecordId();
+    }
+
+    /**
+     * Add the concatenation of a row of one batch and a row of another as
+     * the last row, as a join does.
+     */
+    public void addJoined(TupleBatch left, int l, TupleBatch right, int r) {
+        int n = left.ints.length;
+        for (int j = 0; j < n; j++)
+            copy(j, left, j, l);
+        for (int j = 0; j < right.ints.length; j++)
+            copy(n + j, right, j, r);
+        rids[size++] = left.rids[l];
+    }
+
+    /** Add the concatenation of a tuple and a row of a batch as the last row. */
+    public void addJoined(Tuple left, TupleBatch right, int r) {
+        int n = left.getTupleDesc().numFields();
+        for (int j = 0; j < n; j++) {
+            if (ints[j] != null)
+                ints[j][size] = ((IntField) left.getField(j)).getValue();
+            else
+                strings[j][size] = ((StringField) left.getField(j)).getValue();
+        }
+        for (int j = 0; j < right.ints.length; j++)
+            copy(n + j, right, j, r);
+        rids[size++] = left.getRecordId();
+    }
+
+    private void copy(int col, TupleBatch from, int fromCol, int row) {
+        if (ints[col] != null)
+            ints[col][size] = from.ints[fromCol][row];
+        else
+            strings[col][size] = from.strings[fromCol][row];
+    }
+
+    /**
+     * Keep only some of the rows, in order.
+     *
+     * @param rows the rows to keep, in increasing order
+     * @param n the number of entries of rows to use
+     */
+    public void select(int[] rows, int n) {
+        if (n == size)
+            return;
+        for (int j = 0; j < ints.length; j++) {
+            if (ints[j] != null) {
+                int[] c = ints[j];
+                for (int i = 0; i < n; i++)
+                    c[i] = c[rows[i]];
+            } else {
+                String[] c = strings[j];
+                for (int i = 0; i < n; i++)
+                    c[i] = c[rows[i]];
+                Arrays.fill(c, n, size, null);
+            }
+        }
+        for (int i = 0; i < n; i++)
+            rids[i] = rids[rows[i]];
+        size = n;
+    }
+
+    /**
+     * @return a batch of the same rows with only some of the columns, which
+     *     shares the columns' arrays with this one
+     * @param cols the columns to keep, in the order wanted
+     * @param td the TupleDesc of the result
+     */
+    public TupleBatch project(int[] cols, TupleDesc td) {
+        int[][] i = new int[cols.length][];
+        String[][] s = new String[cols.length][];
+        for (int j = 0; j < cols.length; j++) {
+            i[j] = ints[cols[j]];
+            s[j] = strings[cols[j]];
+        }
+        return new TupleBatch(td, i, s, rids, size);
+    }
+}
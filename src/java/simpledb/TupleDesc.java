@@ -207,19 +207,18 @@ public class TupleDesc implements Serializable {
                 return false;
             if(!temp.items.get(i).fieldType.equals(this.items.get(i).fieldType))
                 return false;
-            if(temp.items.get(i).fieldName==null&&this.items.get(i).fieldName==null)
-                continue;
-            if(temp.items.get(i).fieldName==null||this.items.get(i).fieldName==null)
-                return false;
-            if(!temp.items.get(i).fieldName.equals(this.items.get(i).fieldName)){
-                return false;
-            }
         }
         return true;
     }
 
+    /**
+     * Hashes the field types only, as field names play no part in equals.
+     */
     public int hashCode() {
-        return toString().hashCode();
+        int h=0;
+        for(int i=0;i<items.size();i++)
+            h=h*31+items.get(i).fieldType.hashCode();
+        return h;
     }
 
     /**
@@ -0,0 +1,83 @@
+package simpledb;
+
+import java.util.*;
+import java.util.function.Predicate;
+
+/**
+ * 2Q replacement (Johnson and Shasha). Pages seen for the first time enter a
+ * FIFO queue, A1in. When they are evicted from A1in only their ids are kept,
+ * in a bounded ghost queue A1out. A page that is read again while its id is
+ * still in A1out was evidently hot, and goes to the main LRU queue Am.
+ * One-off references from a large scan therefore never displace Am.
+ * <p>
+ * All operations are O(1) amortized.
+ */
+public class TwoQPolicy implements ReplacementPolicy {
+
+    private final int kin;
+    private final int kout;
+    private final LinkedHashSet<PageId> a1in;
+    private final LinkedHashSet<PageId> a1out;
+    private final LinkedHashSet<PageId> am;
+
+    /**
+     * @param capacity the number of pages in the buffer pool; A1in is sized to
+     *     a quarter of it and A1out remembers half of it, as the paper suggests
+     */
+    public TwoQPolicy(int capacity) {
+        kin=Math.max(1,capacity/4);
+        kout=Math.max(1,capacity/2);
+        a1in=new LinkedHashSet<>();
+        a1out=new LinkedHashSet<>();
+        am=new LinkedHashSet<>();
+    }
+
+    public synchronized void pageAdded(PageId pid) {
+        if(am.contains(pid)||a1in.contains(pid)){
+            pageAccessed(pid);
+            return;
+        }
+        if(a1out.remove(pid))
+            am.add(pid);
+        else a1in.add(pid);
+    }
+
+    public synchronized void pageAccessed(PageId pid) {
+        // hits in A1in are deliberately ignored: they are likely correlated
+        if(am.remove(pid))
+            am.add(pid);
+    }
+
+    public synchronized void pageRemoved(PageId pid) {
+        if(a1in.remove(pid)){
+            a1out.add(pid);
+            if(a1out.size()>kout){
+                Iterator<PageId> it=a1out.iterator();
+                it.next();
+                it.remove();
+            }
+        }
+        else am.remove(pid);
+    }
+
+    public synchronized PageId chooseVictim(Predicate<PageId> canEvict) {
+        PageId pid;
+        if(a1in.size()>kin){
+            pid=first(a1in,canEvict);
+            if(pid==null)pid=first(am,canEvict);
+        }
+        else{
+            pid=first(am,canEvict);
+            if(pid==null)pid=first(a1in,canEvict);
+        }
+        return pid;
+    }
+
+    private static PageId first(LinkedHashSet<PageId> queue,Predicate<PageId> canEvict) {
+        for(PageId pid:queue){
+            if(canEvict.test(pid))
+                return pid;
+        }
+        return null;
+    }
+}
@@ -0,0 +1,207 @@
+package simpledb;
+
+import java.util.Collection;
+import java.util.Iterator;
+import java.util.LinkedList;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * VersionStore keeps the older committed images of pages that snapshot
+ * transactions may still need to read.
+ * <p>
+ * Every commit is given a timestamp, and just before a page's before image
+ * is replaced by its new contents, the old before image is kept here under
+ * that timestamp if a running snapshot is older than the commit. A
+ * snapshot taken at time T reads each page as the before image of the
+ * oldest version committed after T, or, if there is none, as the page's
+ * current before image. Commits become visible in timestamp order, once
+ * all their pages have been replaced, and a new snapshot waits for the
+ * commits already under way, so it never needs their versions.
+ * <p>
+ * Versions no running snapshot can need are dropped as commits finish and
+ * snapshots end, so while no snapshot runs nothing is kept.
+ *
+ * @Threadsafe
+ */
+public class VersionStore {
+
+    private static final class Version {
+        final long commitTs;
+        final byte[] before;
+
+        Version(long commitTs, byte[] before) {
+            this.commitTs = commitTs;
+            this.before = before;
+        }
+    }
+
+    // versions of each page, newest first
+    private final ConcurrentHashMap<PageId, LinkedList<Version>> versions = new ConcurrentHashMap<PageId, LinkedList<Version>>();
+    // the snapshot time of each running snapshot transaction
+    private final ConcurrentHashMap<TransactionId, Long> snapshots = new ConcurrentHashMap<TransactionId, Long>();
+    // how many running snapshots were taken at each time; guarded by this
+    private final TreeMap<Long, Integer> active = new TreeMap<Long, Integer>();
+    // the last timestamp handed out, and the last commit visible to new snapshots; guarded by this
+    private long clock = 0;
+    private long published = 0;
+
+    /**
+     * Start a snapshot for a transaction, seeing every commit started so far
+     * and none after. Waits for the commits under way to finish.
+     *
+     * @return the snapshot time
+     */
+    public synchronized long begin(TransactionId tid) {
+        Long t = snapshots.get(tid);
+        if (t != null)
+            return t;
+        long now = clock;
+        snapshots.put(tid, now);
+        active.merge(now, 1, Integer::sum);
+        awaitPublished(now);
+        return now;
+    }
+
+    /** End the snapshot of a transaction, if it has one. */
+    public void end(TransactionId tid) {
+        long oldest;
+        synchronized (this) {
+            Long t = snapshots.remove(tid);
+            if (t == null)
+                return;
+            if (active.merge(t, -1, Integer::sum) == 0)
+                active.remove(t);
+            oldest = horizon();
+        }
+        for (Map.Entry<PageId, LinkedList<Version>> e : versions.entrySet())
+            prune(e.getKey(), oldest);
+    }
+
+    /** @return the snapshot time of a transaction, or null if it is not a snapshot transaction */
+    public Long snapshotOf(TransactionId tid) {
+        return snapshots.get(tid);
+    }
+
+    /** @return the number of running snapshots */
+    public synchronized int activeSnapshots() {
+        return snapshots.size();
+    }
+
+    /** @return the number of page versions kept */
+    public int size() {
+        int n = 0;
+        for (LinkedList<Version> l : versions.values())
+            synchronized (l) {
+                n += l.size();
+            }
+        return n;
+    }
+
+    /**
+     * Start a commit. Every call must be followed by {@link #publish} with
+     * the returned timestamp, or later commits never become visible.
+     *
+     * @return the commit's timestamp
+     */
+    public synchronized long startCommit() {
+        return ++clock;
+    }
+
+    /**
+     * @return whether a running snapshot predates a commit, so the images
+     *     the commit replaces must be kept
+     */
+    public synchronized boolean needed(long commitTs) {
+        return !active.isEmpty() && active.firstKey() < commitTs;
+    }
+
+    /**
+     * Keep the image a page had before a commit. Call this before the
+     * page's before image changes.
+     */
+    public void keep(PageId pid, long commitTs, byte[] before) {
+        while (true) {
+            LinkedList<Version> l = versions.computeIfAbsent(pid, k -> new LinkedList<Version>());
+            synchronized (l) {
+                // a list pruned empty has left the map; start a new one
+                if (versions.get(pid) != l)
+                    continue;
+                l.addFirst(new Version(commitTs, before));
+                return;
+            }
+        }
+    }
+
+    /**
+     * Make a commit visible to new snapshots, after every earlier one, and
+     * drop the versions of its pages nobody can read.
+     *
+     * @param commitTs the timestamp from {@link #startCommit}
+     * @param pages the pages the commit kept versions of
+     */
+    public void publish(long commitTs, Collection<PageId> pages) {
+        long oldest;
+        synchronized (this) {
+            awaitPublished(commitTs - 1);
+            published = commitTs;
+            notifyAll();
+            oldest = horizon();
+        }
+        for (PageId pid : pages)
+            prune(pid, oldest);
+    }
+
+    // wait, holding the monitor, until the commit at a time is visible
+    private void awaitPublished(long ts) {
+        boolean interrupted = false;
+        while (published < ts) {
+            try {
+                wait();
+            } catch (InterruptedException e) {
+                interrupted = true;
+            }
+        }
+        if (interrupted)
+            Thread.currentThread().interrupt();
+    }
+
+    /**
+     * @return the image of a page as of a snapshot time, or null if it is
+     *     the page's current before image. Read the before image first:
+     *     versions are kept before before images change.
+     */
+    public byte[] imageAt(PageId pid, long snapshot) {
+        LinkedList<Version> l = versions.get(pid);
+        if (l == null)
+            return null;
+        synchronized (l) {
+            byte[] image = null;
+            for (Version v : l) {
+                if (v.commitTs <= snapshot)
+                    break;
+                image = v.before;
+            }
+            return image;
+        }
+    }
+
+    // versions committed at or before this time are not needed by anyone
+    private long horizon() {
+        return active.isEmpty() ? published : Math.min(published, active.firstKey());
+    }
+
+    private void prune(PageId pid, long horizon) {
+        LinkedList<Version> l = versions.get(pid);
+        if (l == null)
+            return;
+        synchronized (l) {
+            Iterator<Version> it = l.descendingIterator();
+            while (it.hasNext() && it.next().commitTs <= horizon)
+                it.remove();
+            if (l.isEmpty())
+                versions.remove(pid, l);
+        }
+    }
+}
@@ -0,0 +1,141 @@
+package simpledb;
+
+import static org.junit.Assert.*;
+
+import java.io.File;
+
+import junit.framework.JUnit4TestAdapter;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import simpledb.systemtest.SimpleDbTestBase;
+
+public class BTreeLatchCouplingTest extends SimpleDbTestBase {
+
+	/** Time to wait for a thread that should not block, in ms */
+	private static final int TIMEOUT = 1000;
+
+	private BufferPool bp;
+	private BTreeFile bf;
+	private BTreePageId rootPtrId;
+	private BTreePageId rootId;
+
+	/**
+	 * Create a B+ tree with several leaves, each with room to spare.
+	 */
+	@Before public void setUp() throws Exception {
+		File f = File.createTempFile("coupling", ".dat");
+		f.deleteOnExit();
+		bf = BTreeUtility.createEmptyBTreeFile(f.getAbsolutePath(), 2, 0);
+		bp = Database.getBufferPool();
+		TransactionId tid = new TransactionId();
+		for(int i = 1; i <= 2000; i++)
+			bp.insertTuple(tid, bf.getId(), BTreeUtility.getBTreeTuple(i, 2));
+		bp.transactionComplete(tid);
+		rootPtrId = BTreeRootPtrPage.getId(bf.getId());
+		tid = new TransactionId();
+		rootId = ((BTreeRootPtrPage) bp.getPage(tid, rootPtrId, Permissions.READ_ONLY)).getRootId();
+		bp.transactionComplete(tid);
+		assertEquals(BTreePageId.INTERNAL, rootId.pgcateg());
+	}
+
+	@After public void tearDown() throws Exception {
+		Database.reset();
+	}
+
+	/** An insert keeps its lock on the leaf, but not on the pages above it. */
+	@Test public void ancestorsReleased() throws Exception {
+		TransactionId tid = new TransactionId();
+		Tuple t = BTreeUtility.getBTreeTuple(0, 2);
+		bp.insertTuple(tid, bf.getId(), t);
+		assertTrue(bp.holdsLock(tid, t.getRecordId().getPageId()));
+		assertFalse(bp.holdsLock(tid, rootPtrId));
+		assertFalse(bp.holdsLock(tid, rootId));
+		bp.transactionComplete(tid);
+	}
+
+	/** Read locks the transaction held before the insert are kept until it ends. */
+	@Test public void earlierLocksKept() throws Exception {
+		TransactionId tid = new TransactionId();
+		bp.getPage(tid, rootPtrId, Permissions.READ_ONLY);
+		bp.getPage(tid, rootId, Permissions.READ_ONLY);
+		bp.insertTuple(tid, bf.getId(), BTreeUtility.getBTreeTuple(0, 2));
+		assertTrue(bp.holdsLock(tid, rootPtrId));
+		assertTrue(bp.holdsLock(tid, rootId));
+		bp.transactionComplete(tid);
+	}
+
+	/** Inserts into different leaves do not wait for each other. */
+	@Test public void differentLeaves() throws Exception {
+		TransactionId t1 = new TransactionId();
+		final TransactionId t2 = new TransactionId();
+		bp.insertTuple(t1, bf.getId(), BTreeUtility.getBTreeTuple(0, 2));
+		final Exception[] error = new Exception[1];
+		Thread w = new Thread() {
+			public void run() {
+				try {
+					bp.insertTuple(t2, bf.getId(), BTreeUtility.getBTreeTuple(5000, 2));
+				} catch (Exception e) {
+					error[0] = e;
+				}
+			}
+		};
+		w.start();
+		w.join(TIMEOUT);
+		assertFalse(w.isAlive());
+		assertNull(error[0]);
+		bp.transactionComplete(t1);
+		bp.transactionComplete(t2);
+	}
+
+	/**
+	 * An insert into a leaf another transaction holds waits for it, and
+	 * then finds its way from the root again.
+	 */
+	@Test public void sameLeafWaits() throws Exception {
+		TransactionId t1 = new TransactionId();
+		final TransactionId t2 = new TransactionId();
+		bp.insertTuple(t1, bf.getId(), BTreeUtility.getBTreeTuple(0, 2));
+		Thread w = new Thread() {
+			public void run() {
+				try {
+					bp.insertTuple(t2, bf.getId(), BTreeUtility.getBTreeTuple(1, 2));
+				} catch (Exception e) {
+					// the join below fails
+				}
+			}
+		};
+		w.start();
+		w.join(TIMEOUT / 5);
+		assertTrue(w.isAlive());
+		// the waiter has let go of the pages above the leaf
+		assertFalse(bp.holdsLock(t2, rootPtrId));
+		assertFalse(bp.holdsLock(t2, rootId));
+
+		bp.transactionComplete(t1);
+		w.join(TIMEOUT);
+		assertFalse(w.isAlive());
+		bp.transactionComplete(t2);
+
+		TransactionId tid = new TransactionId();
+		DbFileIterator it = bf.iterator(tid);
+		it.open();
+		int n = 0;
+		while(it.hasNext()) {
+			it.next();
+			n++;
+		}
+		it.close();
+		bp.transactionComplete(tid);
+		assertEquals(2002, n);
+	}
+
+	/**
+	 * JUnit suite target
+	 */
+	public static junit.framework.Test suite() {
+		return new JUnit4TestAdapter(BTreeLatchCouplingTest.class);
+	}
+}
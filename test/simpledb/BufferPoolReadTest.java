@@ -0,0 +1,245 @@
+package simpledb;
+
+import static org.junit.Assert.*;
+
+import java.io.File;
+import java.lang.management.ManagementFactory;
+import java.util.ArrayList;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import javax.management.MBeanServer;
+import javax.management.ObjectName;
+
+import junit.framework.JUnit4TestAdapter;
+
+import org.junit.Before;
+import org.junit.Test;
+
+import simpledb.systemtest.SimpleDbTestBase;
+import simpledb.systemtest.SystemTestUtil;
+
+public class BufferPoolReadTest extends SimpleDbTestBase {
+
+    // class that counts, and slows down, reads from disk
+    static class CountingHeapFile extends HeapFile {
+        final AtomicInteger reads = new AtomicInteger();
+
+        public CountingHeapFile(File f, TupleDesc td) {
+            super(f, td);
+        }
+
+        @Override
+        public Page readPage(PageId pid) {
+            reads.incrementAndGet();
+            try {
+                Thread.sleep(50);
+            } catch (InterruptedException e) {
+                throw new RuntimeException(e);
+            }
+            return super.readPage(pid);
+        }
+    }
+
+    private CountingHeapFile hf;
+
+    @Before public void setUp() throws Exception {
+        super.setUp();
+        HeapFile f = SystemTestUtil.createRandomHeapFile(2, 504 * 4, null, null);
+        hf = new CountingHeapFile(f.getFile(), f.getTupleDesc());
+        Database.getCatalog().addTable(hf, SystemTestUtil.getUUID());
+        Database.resetBufferPool(BufferPool.DEFAULT_PAGES);
+    }
+
+    /**
+     * Threads that miss on the same page at the same time should share one
+     * read from disk.
+     */
+    @Test public void concurrentMissesReadOnce() throws Exception {
+        final HeapPageId pid = new HeapPageId(hf.getId(), 0);
+        final Page[] seen = new Page[8];
+        ArrayList<Thread> threads = new ArrayList<Thread>();
+        for (int i = 0; i < seen.length; i++) {
+            final int n = i;
+            threads.add(new Thread() {
+                public void run() {
+                    try {
+                        seen[n] = Database.getBufferPool().getPage(
+                                new TransactionId(), pid, Permissions.READ_ONLY);
+                    } catch (Exception e) {
+                        throw new RuntimeException(e);
+                    }
+                }
+            });
+        }
+        for (Thread t : threads)
+            t.start();
+        for (Thread t : threads)
+            t.join();
+
+        assertEquals(1, hf.reads.get());
+        for (Page p : seen)
+            assertSame(seen[0], p);
+    }
+
+    /**
+     * Hits must not go back to disk.
+     */
+    @Test public void hitsDoNotRead() throws Exception {
+        TransactionId tid = new TransactionId();
+        for (int i = 0; i < 3; i++)
+            Database.getBufferPool().getPage(tid, new HeapPageId(hf.getId(), 1), Permissions.READ_ONLY);
+        assertEquals(1, hf.reads.get());
+        Database.getBufferPool().transactionComplete(tid);
+    }
+
+    /**
+     * Scanning a table several times the size of the pool goes through a
+     * ring, and leaves the pages other transactions use cached.
+     */
+    @Test public void largeScanKeepsHotPages() throws Exception {
+        HeapFile big = SystemTestUtil.createRandomHeapFile(2, 504 * 60, null, null);
+        Database.resetBufferPool(20);
+
+        TransactionId tid = new TransactionId();
+        for (int i = 0; i < hf.numPages(); i++)
+            Database.getBufferPool().getPage(tid, new HeapPageId(hf.getId(), i), Permissions.READ_ONLY);
+        Database.getBufferPool().transactionComplete(tid);
+        assertEquals(hf.numPages(), hf.reads.get());
+
+        tid = new TransactionId();
+        SeqScan scan = new SeqScan(tid, big.getId(), "");
+        scan.open();
+        int count = 0;
+        while (scan.hasNext()) {
+            scan.next();
+            count++;
+        }
+        scan.close();
+        Database.getBufferPool().transactionComplete(tid);
+        assertEquals(504 * 60, count);
+
+        tid = new TransactionId();
+        for (int i = 0; i < hf.numPages(); i++)
+            Database.getBufferPool().getPage(tid, new HeapPageId(hf.getId(), i), Permissions.READ_ONLY);
+        Database.getBufferPool().transactionComplete(tid);
+        assertEquals(hf.numPages(), hf.reads.get());
+    }
+
+    /**
+     * Frames held by scan rings are given up when the rest of the pool has
+     * nothing left to evict.
+     */
+    @Test public void ringsDoNotStarveEviction() throws Exception {
+        HeapFile big = SystemTestUtil.createRandomHeapFile(2, 504 * 12, null, null);
+        Database.resetBufferPool(8);
+        BufferPool bp = Database.getBufferPool();
+
+        TransactionId tid = new TransactionId();
+        BufferRing a = new BufferRing(4), b = new BufferRing(4);
+        for (int i = 0; i < 8; i++)
+            bp.getPage(tid, new HeapPageId(big.getId(), i), Permissions.READ_ONLY, i < 4 ? a : b);
+        for (int i = 8; i < 12; i++) {
+            HeapPageId pid = new HeapPageId(big.getId(), i);
+            assertEquals(pid, bp.getPage(tid, pid, Permissions.READ_ONLY).getId());
+        }
+        bp.transactionComplete(tid);
+    }
+
+    /**
+     * Hits, misses and evictions are counted per table and page category,
+     * and published over JMX.
+     */
+    @Test public void stats() throws Exception {
+        Database.resetBufferPool(2);
+        BufferPoolStats stats = Database.getBufferPool().getStats();
+        TransactionId tid = new TransactionId();
+        for (int i : new int[] { 0, 0, 1, 2 })
+            Database.getBufferPool().getPage(tid, new HeapPageId(hf.getId(), i), Permissions.READ_ONLY);
+        Database.getBufferPool().transactionComplete(tid);
+
+        assertEquals(3, stats.get(BufferPoolStats.Event.MISS, hf.getId(), "heap"));
+        assertEquals(1, stats.get(BufferPoolStats.Event.HIT, hf.getId()));
+        assertEquals(1, stats.get(BufferPoolStats.Event.EVICTION));
+        assertEquals(0, stats.get(BufferPoolStats.Event.MISS, hf.getId(), "btree-leaf"));
+        assertEquals(3, stats.latency(BufferPoolStats.Event.MISS).count());
+        assertEquals(0.25, stats.hitRatio(), 1e-9);
+        assertTrue(stats.report().contains("heap"));
+
+        MBeanServer server = ManagementFactory.getPlatformMBeanServer();
+        assertEquals(3L, server.getAttribute(new ObjectName(BufferPoolMonitor.NAME), "Misses"));
+        server.invoke(new ObjectName(BufferPoolMonitor.NAME), "reset", null, null);
+        assertEquals(0, stats.get(BufferPoolStats.Event.MISS));
+    }
+
+    /**
+     * A partition keeps its minimum share of the pool however many other
+     * pages are read, and never grows past its maximum.
+     */
+    @Test public void partitions() throws Exception {
+        HeapFile noisy = SystemTestUtil.createRandomHeapFile(2, 504 * 30, null, null);
+        HeapFile capped = SystemTestUtil.createRandomHeapFile(2, 504 * 5, null, null);
+        BufferPool pool = Database.resetBufferPool(10);
+        pool.addPartition("hot", 4, 0, new ClockPolicy(4));
+        pool.addPartition("capped", 0, 2, new LRUKPolicy());
+        pool.assignTable(hf.getId(), "hot");
+        pool.assignTable(capped.getId(), "capped");
+        try {
+            pool.addPartition("greedy", 8, 0, new ClockPolicy(8));
+            fail("minimums larger than the pool");
+        } catch (IllegalArgumentException e) {
+            // expected
+        }
+
+        TransactionId tid = new TransactionId();
+        for (int i = 0; i < hf.numPages(); i++)
+            pool.getPage(tid, new HeapPageId(hf.getId(), i), Permissions.READ_ONLY);
+        for (int i = 0; i < noisy.numPages(); i++)
+            pool.getPage(tid, new HeapPageId(noisy.getId(), i), Permissions.READ_ONLY);
+        for (int i = 0; i < capped.numPages(); i++) {
+            pool.getPage(tid, new HeapPageId(capped.getId(), i), Permissions.READ_ONLY);
+            assertTrue(pool.getPartitionPages("capped") <= 2);
+        }
+        pool.transactionComplete(tid);
+        assertEquals(4, pool.getPartitionPages("hot"));
+
+        tid = new TransactionId();
+        for (int i = 0; i < hf.numPages(); i++)
+            pool.getPage(tid, new HeapPageId(hf.getId(), i), Permissions.READ_ONLY);
+        pool.transactionComplete(tid);
+        assertEquals(hf.numPages(), hf.reads.get());
+    }
+
+    /**
+     * A snapshot of the pool refills a new pool with the same pages.
+     */
+    @Test public void snapshot() throws Exception {
+        TransactionId tid = new TransactionId();
+        for (int i : new int[] { 3, 0, 2 })
+            Database.getBufferPool().getPage(tid, new HeapPageId(hf.getId(), i), Permissions.READ_ONLY);
+        Database.getBufferPool().transactionComplete(tid);
+        File f = File.createTempFile("pool", ".pages");
+        f.deleteOnExit();
+        Database.getBufferPool().saveSnapshot(f);
+        assertEquals(3, hf.reads.get());
+
+        Database.resetBufferPool(BufferPool.DEFAULT_PAGES);
+        Database.getBufferPool().loadSnapshot(f).get();
+        tid = new TransactionId();
+        for (int i : new int[] { 0, 2, 3 })
+            Database.getBufferPool().getPage(tid, new HeapPageId(hf.getId(), i), Permissions.READ_ONLY);
+        Database.getBufferPool().transactionComplete(tid);
+        assertEquals(3, hf.reads.get());
+        assertEquals(3, Database.getBufferPool().getStats().get(BufferPoolStats.Event.HIT));
+
+        // a missing snapshot is not an error
+        f.delete();
+        Database.getBufferPool().loadSnapshot(f).get();
+    }
+
+    /**
+     * JUnit suite target
+     */
+    public static junit.framework.Test suite() {
+        return new JUnit4TestAdapter(BufferPoolReadTest.class);
+    }
+}
@@ -4,6 +4,7 @@ import java.io.BufferedOutputStream;
 import java.io.File;
 import java.io.FileOutputStream;
 import java.io.IOException;
+import java.nio.ByteBuffer;
 import java.util.ArrayList;
 
 import org.junit.After;
@@ -48,6 +49,26 @@ public class BufferPoolWriteTest extends TestUtil.CreateHeapFile {
     	}
     }
     
+    // a heap file whose first few writes fail
+    class HeapFileFailing extends HeapFile {
+
+        private int failures;
+
+        public HeapFileFailing(File f, TupleDesc td, int failures) {
+            super(f, td);
+            this.failures = failures;
+        }
+
+        @Override
+        public synchronized void writePageData(PageId pid, ByteBuffer src) throws IOException {
+            if (failures > 0) {
+                failures--;
+                throw new IOException("disk full");
+            }
+            super.writePageData(pid, src);
+        }
+    }
+
     /**
      * Set up initial resources for each unit test.
      */
@@ -133,6 +154,125 @@ public class BufferPoolWriteTest extends TestUtil.CreateHeapFile {
     	assertEquals(10, count);
     }
 
+    /**
+     * Wait until the page on disk has the given number of empty slots.
+     */
+    private void awaitOnDisk(HeapPageId pid, int emptySlots) throws Exception {
+        for (int i = 0; i < 500; i++) {
+            HeapPage p = (HeapPage) empty.readPage(pid);
+            if (p.getNumEmptySlots() == emptySlots)
+                return;
+            Thread.sleep(10);
+        }
+        fail("page never reached disk with " + emptySlots + " empty slots");
+    }
+
+    /**
+     * The background writer gets changes to disk before commit; aborting
+     * puts the old page back.
+     */
+    @Test public void pageWriter() throws Exception {
+        Database.getBufferPool().startPageWriter(2, 10);
+        try {
+            TransactionId t1 = new TransactionId();
+            Database.getBufferPool().insertTuple(t1, empty.getId(), Utility.getHeapTuple(1, 2));
+            HeapPageId pid = new HeapPageId(empty.getId(), 0);
+            awaitOnDisk(pid, 503);
+            Database.getBufferPool().transactionComplete(t1, false);
+            assertEquals(504, ((HeapPage) empty.readPage(pid)).getNumEmptySlots());
+
+            TransactionId t2 = new TransactionId();
+            Database.getBufferPool().insertTuple(t2, empty.getId(), Utility.getHeapTuple(2, 2));
+            Database.getBufferPool().insertTuple(t2, empty.getId(), Utility.getHeapTuple(3, 2));
+            awaitOnDisk(pid, 502);
+            Database.getBufferPool().transactionComplete(t2, true);
+            assertEquals(502, ((HeapPage) empty.readPage(pid)).getNumEmptySlots());
+        } finally {
+            Database.getBufferPool().stopPageWriter();
+        }
+    }
+
+    /**
+     * On an arena, a page the background writer wrote before commit is
+     * rebuilt from what was written once its page object is dropped, and
+     * from the old bytes again after an abort.
+     */
+    @Test public void pageWriterOnArena() throws Exception {
+        Database.resetBufferPool(new BufferPool(
+                new FrameArena(4L * BufferPool.getPageSize()), new ClockPolicy(4)));
+        BufferPool bp = Database.getBufferPool();
+        bp.startPageWriter(2, 10);
+        try {
+            HeapPageId pid = new HeapPageId(empty.getId(), 0);
+            TransactionId t1 = new TransactionId();
+            bp.insertTuple(t1, empty.getId(), Utility.getHeapTuple(1, 2));
+            awaitOnDisk(pid, 503);
+            bp.transactionComplete(t1, true);
+
+            TransactionId t2 = new TransactionId();
+            assertEquals(503, ((HeapPage) bp.getPage(t2, pid, Permissions.READ_ONLY)).getNumEmptySlots());
+            bp.insertTuple(t2, empty.getId(), Utility.getHeapTuple(2, 2));
+            awaitOnDisk(pid, 502);
+            bp.transactionComplete(t2, false);
+
+            TransactionId t3 = new TransactionId();
+            assertEquals(503, ((HeapPage) bp.getPage(t3, pid, Permissions.READ_ONLY)).getNumEmptySlots());
+            bp.transactionComplete(t3);
+        } finally {
+            bp.stopPageWriter();
+        }
+    }
+
+    /**
+     * A background write that fails is counted, tried again until it
+     * succeeds, and reported once by the next flushAllPages.
+     */
+    @Test public void pageWriterFailure() throws Exception {
+        Database.getCatalog().addTable(new HeapFileFailing(empty.getFile(), empty.getTupleDesc(), 2), "failing");
+        BufferPool bp = Database.getBufferPool();
+        bp.startPageWriter(1, 10);
+        try {
+            HeapPageId pid = new HeapPageId(empty.getId(), 0);
+            TransactionId t1 = new TransactionId();
+            bp.insertTuple(t1, empty.getId(), Utility.getHeapTuple(1, 2));
+            awaitOnDisk(pid, 503);
+            assertEquals(2, bp.getStats().get(BufferPoolStats.Event.FLUSH_ERROR, empty.getId()));
+            try {
+                bp.flushAllPages();
+                fail("the failed writes were not reported");
+            } catch (IOException e) {
+                // expected
+            }
+            bp.flushAllPages();
+            bp.transactionComplete(t1);
+        } finally {
+            bp.stopPageWriter();
+        }
+    }
+
+    /**
+     * Committing writes and unlocks the committing transaction's pages and
+     * leaves other transactions' dirty pages alone.
+     */
+    @Test public void commitOwnPages() throws Exception {
+        BufferPool bp = Database.getBufferPool();
+        HeapFile other = SystemTestUtil.createRandomHeapFile(2, 504 * 2, null, null);
+        TransactionId t1 = new TransactionId(), t2 = new TransactionId();
+        HeapPageId theirs = new HeapPageId(other.getId(), 1);
+        bp.getPage(t2, theirs, Permissions.READ_WRITE).markDirty(true, t2);
+
+        bp.insertTuple(t1, empty.getId(), Utility.getHeapTuple(1, 2));
+        HeapPageId mine = new HeapPageId(empty.getId(), 0);
+        assertEquals(1, bp.getLockManager().locksHeld(t1));
+        bp.transactionComplete(t1, true);
+
+        assertEquals(503, ((HeapPage) empty.readPage(mine)).getNumEmptySlots());
+        assertEquals(0, bp.getLockManager().locksHeld(t1));
+        assertFalse(bp.holdsLock(t1, mine));
+        assertEquals(t2, bp.getPage(t2, theirs, Permissions.READ_WRITE).isDirty());
+        bp.transactionComplete(t2, false);
+    }
+
     /**
      * JUnit suite target
      */
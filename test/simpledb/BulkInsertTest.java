@@ -0,0 +1,214 @@
+package simpledb;
+
+import static org.junit.Assert.*;
+
+import junit.framework.JUnit4TestAdapter;
+
+import org.junit.Before;
+import org.junit.Test;
+
+public class BulkInsertTest extends TestUtil.CreateHeapFile {
+
+    /** Tuples of two ints that fit on a page */
+    private static final int PER_PAGE = 504;
+
+    private BufferPool bp;
+
+    @Before public void setUp() throws Exception {
+        super.setUp();
+        bp = Database.getBufferPool();
+    }
+
+    /** An iterator over n two-int tuples, (i, 2 * i) for i from 0. */
+    private static OpIterator tuples(int n) throws Exception {
+        int[] values = new int[2 * n];
+        for (int i = 0; i < n; i++) {
+            values[2 * i] = i;
+            values[2 * i + 1] = 2 * i;
+        }
+        OpIterator it = TestUtil.createTupleList(2, values);
+        it.open();
+        return it;
+    }
+
+    /** @return the number of tuples in the table, checking each is (i, 2 * i) */
+    private int count(TransactionId tid) throws Exception {
+        DbFileIterator it = empty.iterator(tid);
+        it.open();
+        int n = 0;
+        while (it.hasNext()) {
+            Tuple t = it.next();
+            assertEquals(2 * ((IntField) t.getField(0)).getValue(), ((IntField) t.getField(1)).getValue());
+            n++;
+        }
+        it.close();
+        return n;
+    }
+
+    /**
+     * Full pages are appended after the empty page the table starts with,
+     * each with one UPDATE record in the log.
+     */
+    @Test public void appendsFullPages() throws Exception {
+        TransactionId tid = new TransactionId();
+        int records = Database.getLogFile().getTotalRecords();
+        assertEquals(4 * PER_PAGE, bp.bulkInsert(tid, empty.getId(), tuples(4 * PER_PAGE)));
+        assertEquals(5, empty.numPages());
+        assertEquals(records + 4, Database.getLogFile().getTotalRecords());
+        for (int i = 1; i <= 4; i++) {
+            HeapPageId pid = new HeapPageId(empty.getId(), i);
+            assertTrue(bp.holdsLock(tid, pid));
+            assertTrue(empty.getFreeSpaceMap().isFull(i));
+        }
+        assertEquals(4 * PER_PAGE, count(tid));
+        bp.transactionComplete(tid);
+
+        tid = new TransactionId();
+        assertEquals(4 * PER_PAGE, count(tid));
+        bp.transactionComplete(tid);
+    }
+
+    /** Insert inserts a large child's first tuples one at a time, and appends the rest. */
+    @Test public void insertOperator() throws Exception {
+        TransactionId tid = new TransactionId();
+        int n = Insert.BULK_THRESHOLD + 3 * PER_PAGE;
+        Insert op = new Insert(tid, tuples(n), empty.getId());
+        op.open();
+        assertEquals(new IntField(n), op.next().getField(0));
+        op.close();
+        bp.transactionComplete(tid);
+
+        int rowPages = (Insert.BULK_THRESHOLD + PER_PAGE - 1) / PER_PAGE;
+        assertEquals(rowPages + 3, empty.numPages());
+        tid = new TransactionId();
+        assertEquals(n, count(tid));
+        bp.transactionComplete(tid);
+    }
+
+    /**
+     * Aborting empties the appended pages, and the next pages appended,
+     * one at a time or in bulk, take their place instead of growing the file.
+     */
+    @Test public void abort() throws Exception {
+        TransactionId tid = new TransactionId();
+        bp.bulkInsert(tid, empty.getId(), tuples(2 * PER_PAGE + 1));
+        assertEquals(4, empty.numPages());
+        bp.transactionComplete(tid, false);
+
+        tid = new TransactionId();
+        assertEquals(0, count(tid));
+        bp.transactionComplete(tid);
+
+        tid = new TransactionId();
+        OpIterator it = tuples(PER_PAGE + 1);
+        while (it.hasNext())
+            bp.insertTuple(tid, empty.getId(), it.next());
+        bp.bulkInsert(tid, empty.getId(), tuples(2 * PER_PAGE));
+        assertEquals(4, empty.numPages());
+        assertEquals(3 * PER_PAGE + 1, count(tid));
+        bp.transactionComplete(tid);
+    }
+
+    /**
+     * Rows committed after an aborted bulk insert are all seen by a scan,
+     * and go on the pages the abort left empty rather than new ones.
+     */
+    @Test public void commitAfterAbort() throws Exception {
+        TransactionId tid = new TransactionId();
+        bp.bulkInsert(tid, empty.getId(), tuples(5 * PER_PAGE));
+        bp.transactionComplete(tid, false);
+
+        tid = new TransactionId();
+        bp.bulkInsert(tid, empty.getId(), tuples(3 * PER_PAGE));
+        bp.transactionComplete(tid);
+        assertEquals(6, empty.numPages());
+
+        tid = new TransactionId();
+        assertEquals(3 * PER_PAGE, count(tid));
+        bp.transactionComplete(tid);
+    }
+
+    /** A scan goes on past a run of pages emptied by an abort in the middle of the file. */
+    @Test public void scanPastEmptiedPages() throws Exception {
+        TransactionId t1 = new TransactionId();
+        bp.bulkInsert(t1, empty.getId(), tuples(3 * PER_PAGE));
+        TransactionId t2 = new TransactionId();
+        bp.bulkInsert(t2, empty.getId(), tuples(PER_PAGE));
+        bp.transactionComplete(t1, false);
+        bp.transactionComplete(t2);
+        assertEquals(5, empty.numPages());
+
+        TransactionId tid = new TransactionId();
+        assertEquals(PER_PAGE, count(tid));
+        bp.transactionComplete(tid);
+    }
+
+    /** A snapshot sees the table as it was before the bulk insert committed. */
+    @Test public void snapshot() throws Exception {
+        TransactionId before = new TransactionId();
+        bp.beginSnapshot(before);
+        TransactionId tid = new TransactionId();
+        bp.bulkInsert(tid, empty.getId(), tuples(PER_PAGE));
+        assertEquals(0, count(before));
+        bp.transactionComplete(tid);
+        assertEquals(0, count(before));
+        bp.transactionComplete(before);
+
+        TransactionId after = new TransactionId();
+        bp.beginSnapshot(after);
+        assertEquals(PER_PAGE, count(after));
+        bp.transactionComplete(after);
+    }
+
+    /** Bulk and tuple-at-a-time inserts running at once never append the same page. */
+    @Test public void concurrentAppends() throws Exception {
+        final TransactionId t1 = new TransactionId();
+        final Exception[] error = new Exception[1];
+        Thread bulk = new Thread() {
+            public void run() {
+                try {
+                    for (int i = 0; i < 4; i++)
+                        bp.bulkInsert(t1, empty.getId(), tuples(PER_PAGE));
+                } catch (Exception e) {
+                    error[0] = e;
+                }
+            }
+        };
+        bulk.start();
+        TransactionId t2 = new TransactionId();
+        OpIterator it = tuples(3 * PER_PAGE);
+        while (it.hasNext())
+            bp.insertTuple(t2, empty.getId(), it.next());
+        bulk.join();
+        assertNull(error[0]);
+        bp.transactionComplete(t1);
+        bp.transactionComplete(t2);
+
+        Database.resetBufferPool(BufferPool.DEFAULT_PAGES);
+        TransactionId tid = new TransactionId();
+        assertEquals(7 * PER_PAGE, count(tid));
+        Database.getBufferPool().transactionComplete(tid);
+    }
+
+    /** A page appended for a single tuple holds nothing on disk once the insert aborts. */
+    @Test public void abortAppendedPage() throws Exception {
+        TransactionId tid = new TransactionId();
+        OpIterator it = tuples(PER_PAGE + 1);
+        while (it.hasNext())
+            bp.insertTuple(tid, empty.getId(), it.next());
+        assertEquals(2, empty.numPages());
+        bp.transactionComplete(tid, false);
+
+        Database.resetBufferPool(BufferPool.DEFAULT_PAGES);
+        tid = new TransactionId();
+        assertEquals(0, count(tid));
+        Database.getBufferPool().transactionComplete(tid);
+    }
+
+    /**
+     * JUnit suite target
+     */
+    public static junit.framework.Test suite() {
+        return new JUnit4TestAdapter(BulkInsertTest.class);
+    }
+}
@@ -1,7 +1,11 @@
 package simpledb;
 
 import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
 
+import java.io.File;
+import java.io.PrintWriter;
 import java.util.NoSuchElementException;
 import java.util.Random;
 
@@ -93,6 +97,31 @@ public class CatalogTest extends SimpleDbTestBase {
     	assertEquals(f, Database.getCatalog().getDatabaseFile(id2));
     }
 
+    /**
+     * A table in a schema file may choose its own page size, locking and
+     * page format.
+     */
+    @Test public void loadSchemaPageSize() throws Exception {
+        File schema = File.createTempFile("catalog", ".txt");
+        schema.deleteOnExit();
+        PrintWriter out = new PrintWriter(schema);
+        out.println("wide (a int, b int) pagesize=16384 locking=row");
+        out.println("narrow (a int pk, b int)");
+        out.println("names (a int, b string) format=slotted");
+        out.close();
+
+        Database.getCatalog().loadSchema(schema.getPath());
+        assertEquals(16384, Database.getCatalog().getPageSize(Database.getCatalog().getTableId("wide")));
+        assertEquals(BufferPool.getPageSize(),
+                Database.getCatalog().getPageSize(Database.getCatalog().getTableId("narrow")));
+        assertTrue(Database.getBufferPool().isRowLocking(Database.getCatalog().getTableId("wide")));
+        assertFalse(Database.getBufferPool().isRowLocking(Database.getCatalog().getTableId("narrow")));
+        assertEquals(HeapFile.Format.FIXED,
+                ((HeapFile) Database.getCatalog().getDatabaseFile(Database.getCatalog().getTableId("narrow"))).getFormat());
+        assertEquals(HeapFile.Format.SLOTTED,
+                ((HeapFile) Database.getCatalog().getDatabaseFile(Database.getCatalog().getTableId("names"))).getFormat());
+    }
+
     /**
      * JUnit suite target
      */
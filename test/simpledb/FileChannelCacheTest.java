@@ -0,0 +1,83 @@
+package simpledb;
+
+import static org.junit.Assert.*;
+
+import java.io.File;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.ArrayList;
+
+import junit.framework.JUnit4TestAdapter;
+
+import org.junit.Test;
+
+import simpledb.systemtest.SimpleDbTestBase;
+import simpledb.systemtest.SystemTestUtil;
+
+public class FileChannelCacheTest extends SimpleDbTestBase {
+
+    private static File tempFile() throws Exception {
+        File f = File.createTempFile("channels", ".dat");
+        f.deleteOnExit();
+        return f;
+    }
+
+    /**
+     * The same file gets the same channel, and no more channels than the
+     * capacity are kept open.
+     */
+    @Test public void bounded() throws Exception {
+        FileChannelCache cache = new FileChannelCache(2);
+        File a = tempFile(), b = tempFile(), c = tempFile();
+        final FileChannel[] seen = new FileChannel[2];
+        cache.withChannel(a, ch -> seen[0] = ch);
+        cache.withChannel(a, ch -> seen[1] = ch);
+        assertSame(seen[0], seen[1]);
+
+        cache.withChannel(b, ch -> null);
+        cache.withChannel(c, ch -> null);
+        assertEquals(2, cache.size());
+        // a was the least recently used, and nobody was using it
+        assertFalse(seen[0].isOpen());
+    }
+
+    /**
+     * A channel evicted while in use stays open until its user is done.
+     */
+    @Test public void evictedWhileInUse() throws Exception {
+        final FileChannelCache cache = new FileChannelCache(1);
+        final File a = tempFile(), b = tempFile();
+        FileChannel ch = cache.withChannel(a, outer -> {
+            cache.withChannel(b, inner -> null);
+            assertTrue(outer.isOpen());
+            outer.write(ByteBuffer.wrap(new byte[] { 1, 2, 3 }), 0);
+            return outer;
+        });
+        assertFalse(ch.isOpen());
+        assertEquals(3, a.length());
+    }
+
+    /**
+     * Reading and writing pages of a table goes through a single channel.
+     */
+    @Test public void heapFileUsesCache() throws Exception {
+        ArrayList<ArrayList<Integer>> tuples = new ArrayList<ArrayList<Integer>>();
+        HeapFile f = SystemTestUtil.createRandomHeapFile(2, 504 * 3, null, tuples);
+        int before = Database.getChannelCache().size();
+        SystemTestUtil.matchTuples(f, tuples);
+        assertEquals(before + 1, Database.getChannelCache().size());
+
+        HeapPageId pid = new HeapPageId(f.getId(), 1);
+        Page p = f.readPage(pid);
+        f.writePage(p);
+        assertArrayEquals(p.getPageData(), f.readPage(pid).getPageData());
+        assertEquals(before + 1, Database.getChannelCache().size());
+    }
+
+    /**
+     * JUnit suite target
+     */
+    public static junit.framework.Test suite() {
+        return new JUnit4TestAdapter(FileChannelCacheTest.class);
+    }
+}
@@ -0,0 +1,104 @@
+package simpledb;
+
+import static org.junit.Assert.*;
+
+import java.io.RandomAccessFile;
+
+import junit.framework.JUnit4TestAdapter;
+
+import org.junit.Before;
+import org.junit.Test;
+
+public class FreeSpaceMapTest extends TestUtil.CreateHeapFile {
+
+    /** Tuples of two ints that fit on a page */
+    private static final int PER_PAGE = 504;
+
+    private BufferPool bp;
+
+    /**
+     * Fill the first three pages of the empty file, and put one tuple on
+     * the fourth.
+     */
+    @Before public void setUp() throws Exception {
+        super.setUp();
+        bp = Database.getBufferPool();
+        TransactionId tid = new TransactionId();
+        for (int i = 0; i < 3 * PER_PAGE + 1; i++)
+            bp.insertTuple(tid, empty.getId(), Utility.getHeapTuple(i, 2));
+        bp.transactionComplete(tid);
+        assertEquals(4, empty.numPages());
+    }
+
+    private HeapPageId page(int pageNo) {
+        return new HeapPageId(empty.getId(), pageNo);
+    }
+
+    /** An insert goes straight to the page with room, without locking the full ones. */
+    @Test public void skipsFullPages() throws Exception {
+        FreeSpaceMap fsm = empty.getFreeSpaceMap();
+        for (int i = 0; i < 3; i++)
+            assertTrue(fsm.isFull(i));
+        assertFalse(fsm.isFull(3));
+        assertEquals(3, fsm.nextWithRoom(0));
+
+        TransactionId tid = new TransactionId();
+        Tuple t = Utility.getHeapTuple(-1, 2);
+        bp.insertTuple(tid, empty.getId(), t);
+        assertEquals(page(3), t.getRecordId().getPageId());
+        for (int i = 0; i < 3; i++)
+            assertFalse(bp.holdsLock(tid, page(i)));
+        bp.transactionComplete(tid);
+    }
+
+    /** The map is read back from disk while it agrees with the heap file. */
+    @Test public void persists() throws Exception {
+        FreeSpaceMap fsm = new FreeSpaceMap(empty.getFile());
+        for (int i = 0; i < 3; i++)
+            assertTrue(fsm.isFull(i));
+        assertFalse(fsm.isFull(3));
+    }
+
+    /** A map written before the heap file last changed size is ignored. */
+    @Test public void staleMapIgnored() throws Exception {
+        RandomAccessFile raf = new RandomAccessFile(empty.getFile(), "rw");
+        raf.setLength(raf.length() + BufferPool.getPageSize());
+        raf.close();
+        FreeSpaceMap fsm = new FreeSpaceMap(empty.getFile());
+        assertEquals(0, fsm.nextWithRoom(0));
+    }
+
+    /** A delete from a full page makes it the first candidate again. */
+    @Test public void deleteClears() throws Exception {
+        TransactionId tid = new TransactionId();
+        DbFileIterator it = empty.iterator(tid);
+        it.open();
+        Tuple first = it.next();
+        it.close();
+        bp.deleteTuple(tid, first);
+        assertFalse(empty.getFreeSpaceMap().isFull(0));
+
+        Tuple t = Utility.getHeapTuple(-1, 2);
+        bp.insertTuple(tid, empty.getId(), t);
+        assertEquals(page(0), t.getRecordId().getPageId());
+        assertTrue(empty.getFreeSpaceMap().isFull(0));
+        bp.transactionComplete(tid);
+    }
+
+    /** Aborting the inserts that filled a page gives its room back. */
+    @Test public void abortClears() throws Exception {
+        TransactionId tid = new TransactionId();
+        for (int i = 1; i < PER_PAGE; i++)
+            bp.insertTuple(tid, empty.getId(), Utility.getHeapTuple(i, 2));
+        assertTrue(empty.getFreeSpaceMap().isFull(3));
+        bp.transactionComplete(tid, false);
+        assertFalse(empty.getFreeSpaceMap().isFull(3));
+    }
+
+    /**
+     * JUnit suite target
+     */
+    public static junit.framework.Test suite() {
+        return new JUnit4TestAdapter(FreeSpaceMapTest.class);
+    }
+}
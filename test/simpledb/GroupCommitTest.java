@@ -0,0 +1,79 @@
+package simpledb;
+
+import static org.junit.Assert.*;
+
+import java.io.File;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import junit.framework.JUnit4TestAdapter;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import simpledb.systemtest.SimpleDbTestBase;
+
+public class GroupCommitTest extends SimpleDbTestBase {
+
+    private File f;
+    private LogFile log;
+
+    @Before public void setUp() throws Exception {
+        f = File.createTempFile("groupcommit", ".log");
+        f.deleteOnExit();
+        log = new LogFile(f);
+    }
+
+    @After public void tearDown() {
+        f.delete();
+    }
+
+    /** A commit on its own forces the log once, and is on disk when logCommit returns. */
+    @Test public void singleCommit() throws Exception {
+        TransactionId tid = new TransactionId();
+        log.logXactionBegin(tid);
+        long before = log.getForceCount();
+        log.logCommit(tid);
+        assertEquals(before + 1, log.getForceCount());
+        assertEquals(2, log.getTotalRecords());
+    }
+
+    /** Concurrent committers share forces rather than each forcing the log. */
+    @Test public void concurrentCommitsShareForces() throws Exception {
+        final int n = 20;
+        log.setGroupCommitDelay(20000);
+        final CountDownLatch start = new CountDownLatch(1), done = new CountDownLatch(n);
+        final AtomicInteger failures = new AtomicInteger();
+        for (int i = 0; i < n; i++) {
+            new Thread() {
+                public void run() {
+                    try {
+                        TransactionId tid = new TransactionId();
+                        log.logXactionBegin(tid);
+                        start.await();
+                        log.logCommit(tid);
+                    } catch (Exception e) {
+                        failures.incrementAndGet();
+                    }
+                    done.countDown();
+                }
+            }.start();
+        }
+        long before = log.getForceCount();
+        start.countDown();
+        done.await();
+        assertEquals(0, failures.get());
+        assertEquals(2 * n, log.getTotalRecords());
+        long forced = log.getForceCount() - before;
+        assertTrue(forced >= 1);
+        assertTrue("forced " + forced + " times for " + n + " commits", forced < n);
+    }
+
+    /**
+     * JUnit suite target
+     */
+    public static junit.framework.Test suite() {
+        return new JUnit4TestAdapter(GroupCommitTest.class);
+    }
+}
@@ -3,6 +3,7 @@ package simpledb;
 import simpledb.systemtest.SimpleDbTestBase;
 import simpledb.systemtest.SystemTestUtil;
 
+import java.io.File;
 import java.util.*;
 import org.junit.After;
 import org.junit.Before;
@@ -121,6 +122,102 @@ public class HeapFileReadTest extends SimpleDbTestBase {
         it.close();
     }
 
+    /**
+     * A scan with read-ahead on returns the same tuples, even through a
+     * buffer pool much smaller than the file.
+     */
+    @Test
+    public void readAhead() throws Exception {
+        ArrayList<ArrayList<Integer>> tuples = new ArrayList<ArrayList<Integer>>();
+        HeapFile big = SystemTestUtil.createRandomHeapFile(2, 504 * 30, null, tuples);
+        big.setReadAhead(8);
+        Database.resetBufferPool(10);
+        SystemTestUtil.matchTuples(big, tid, tuples);
+    }
+
+    /**
+     * Pages read ahead are resident: getting them does not read the file.
+     */
+    @Test
+    public void prefetchedPagesAreResident() throws Exception {
+        HeapFile f = SystemTestUtil.createRandomHeapFile(2, 504 * 6, null, null);
+        BufferPoolReadTest.CountingHeapFile counting =
+                new BufferPoolReadTest.CountingHeapFile(f.getFile(), f.getTupleDesc());
+        Database.getCatalog().addTable(counting, SystemTestUtil.getUUID());
+        Database.resetBufferPool(BufferPool.DEFAULT_PAGES);
+
+        List<PageId> pids = new ArrayList<PageId>();
+        for (int i = 0; i < 6; i++)
+            pids.add(new HeapPageId(counting.getId(), i));
+        Database.getBufferPool().prefetchPages(counting, pids).get();
+
+        for (PageId pid : pids) {
+            HeapPage p = (HeapPage) Database.getBufferPool().getPage(tid, pid, Permissions.READ_ONLY);
+            assertEquals(0, p.getNumEmptySlots());
+        }
+        assertEquals(0, counting.reads.get());
+    }
+
+    /**
+     * A mapped file reads the same tuples, sees pages written to it, and is
+     * mapped again once it grows.
+     */
+    @Test
+    public void mappedReads() throws Exception {
+        ArrayList<ArrayList<Integer>> tuples = new ArrayList<ArrayList<Integer>>();
+        HeapFile f = SystemTestUtil.createRandomHeapFile(2, 504 * 3, null, tuples);
+        f.setMapped(true);
+        assertTrue(f.isMapped());
+        SystemTestUtil.matchTuples(f, tuples);
+
+        // rewrite page 1 without its first tuple
+        HeapPageId pid = new HeapPageId(f.getId(), 1);
+        HeapPage p = (HeapPage) f.readPage(pid);
+        p.deleteTuple(p.iterator().next());
+        f.writePage(p);
+        assertEquals(1, ((HeapPage) f.readPage(pid)).getNumEmptySlots());
+
+        // append a page past the end of the mapping
+        HeapPageId last = new HeapPageId(f.getId(), f.numPages());
+        HeapPage empty = new HeapPage(last, HeapPage.createEmptyPageData());
+        empty.insertTuple(Utility.getHeapTuple(new int[] { 7, 8 }));
+        f.writePage(empty);
+        assertEquals(4, f.numPages());
+        HeapPage read = (HeapPage) f.readPage(last);
+        assertEquals(503, read.getNumEmptySlots());
+        assertEquals(new IntField(7), read.iterator().next().getField(0));
+    }
+
+    /**
+     * A table with pages four times the pool's page size is read and written
+     * through a pool with room for only two of them.
+     */
+    @Test
+    public void largerPages() throws Exception {
+        int pageSize = 4 * BufferPool.getPageSize();
+        int perPage = (pageSize * 8) / (Utility.getTupleDesc(2).getSize() * 8 + 1);
+        ArrayList<ArrayList<Integer>> tuples = new ArrayList<ArrayList<Integer>>();
+        File temp = SystemTestUtil.createRandomHeapFileUnopened(2, perPage * 3, 1000, null, tuples);
+        HeapFileEncoder.convert(tuples, temp, pageSize, 2);
+        HeapFile f = new HeapFile(temp, Utility.getTupleDesc(2), pageSize);
+        Database.getCatalog().addTable(f, SystemTestUtil.getUUID());
+        Database.resetBufferPool(8);
+
+        assertEquals(pageSize, Database.getCatalog().getPageSize(f.getId()));
+        assertEquals(3, f.numPages());
+        HeapPage p = (HeapPage) f.readPage(new HeapPageId(f.getId(), 0));
+        assertEquals(0, p.getNumEmptySlots());
+        assertEquals(pageSize, p.getPageData().length);
+        SystemTestUtil.matchTuples(f, tuples);
+
+        TransactionId tid = new TransactionId();
+        Database.getBufferPool().insertTuple(tid, f.getId(), Utility.getHeapTuple(new int[] { 1, 2 }));
+        Database.getBufferPool().transactionComplete(tid);
+        assertEquals(4, f.numPages());
+        tuples.add(new ArrayList<Integer>(Arrays.asList(1, 2)));
+        SystemTestUtil.matchTuples(f, tuples);
+    }
+
     /**
      * JUnit suite target
      */
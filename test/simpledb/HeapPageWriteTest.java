@@ -1,5 +1,6 @@
 package simpledb;
 
+import static org.junit.Assert.assertArrayEquals;
 import static org.junit.Assert.assertEquals;
 import static org.junit.Assert.assertTrue;
 
@@ -126,6 +127,38 @@ public class HeapPageWriteTest extends SimpleDbTestBase {
         }
     }
 
+    /**
+     * Setting a field of a tuple read from a page writes it into the page,
+     * and the page keeps its before image.
+     */
+    @Test public void setFieldInPlace() throws Exception {
+        HeapPage page = new HeapPage(pid, HeapPageReadTest.EXAMPLE_DATA);
+        Tuple t = page.iterator().next();
+        t.setField(1, new IntField(42));
+        assertEquals(new IntField(42), page.getTuple(t.getRecordId().getTupleNumber()).getField(1));
+
+        HeapPage copy = new HeapPage(pid, page.getPageData());
+        assertEquals(new IntField(42), copy.getTuple(t.getRecordId().getTupleNumber()).getField(1));
+        assertArrayEquals(HeapPageReadTest.EXAMPLE_DATA, page.getBeforeImage().getPageData());
+    }
+
+    /** A tuple read from a page keeps its fields once it has been deleted. */
+    @Test public void deletedTupleKeepsFields() throws Exception {
+        HeapPage page = new HeapPage(pid, HeapPageReadTest.EXAMPLE_DATA);
+        Tuple t = page.iterator().next();
+        int slot = t.getRecordId().getTupleNumber();
+        Field f0 = t.getField(0);
+        page.deleteTuple(t);
+        page.insertTuple(Utility.getHeapTuple(-1, 2));
+        assertEquals(new IntField(-1), page.getTuple(slot).getField(0));
+        assertEquals(f0, t.getField(0));
+
+        // and goes back in where it was
+        page.deleteTuple(page.getTuple(slot));
+        page.insertTupleAt(t, slot);
+        assertArrayEquals(HeapPageReadTest.EXAMPLE_DATA, page.getPageData());
+    }
+
     /**
      * JUnit suite target
      */
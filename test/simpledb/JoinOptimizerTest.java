@@ -100,6 +100,24 @@ public class JoinOptimizerTest extends SimpleDbTestBase {
         return ret;
     }
 
+    /**
+     * A table without statistics, such as one added after they were
+     * computed, gets them computed the first time a plan scans it.
+     */
+    @Test
+    public void statsComputedOnFirstUse() throws Exception {
+        HeapFile f = SystemTestUtil.createRandomHeapFile(10, 100, 20, null,
+                null, "c");
+        Database.getCatalog().addTable(f, "TLAZY");
+        Assert.assertNull(TableStats.getTableStats("TLAZY"));
+
+        TransactionId tid = new TransactionId();
+        Parser p = new Parser();
+        p.generateLogicalPlan(tid, "SELECT * FROM TLAZY t;").physicalPlan(tid,
+                new HashMap<String, TableStats>(), false);
+        Assert.assertNotNull(TableStats.getTableStats("TLAZY"));
+    }
+
     /**
      * Verify that the estimated join costs from estimateJoinCost() are
      * reasonable we check various order requirements for the output of
@@ -0,0 +1,291 @@
+package simpledb;
+
+import static org.junit.Assert.*;
+
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.CopyOnWriteArrayList;
+
+import junit.framework.JUnit4TestAdapter;
+
+import org.junit.Before;
+import org.junit.Test;
+
+import simpledb.systemtest.SimpleDbTestBase;
+
+public class LockManagerTest extends SimpleDbTestBase {
+
+    private LockManager locks;
+    private BufferPoolStats stats;
+    private PageId p0, p1;
+
+    @Before public void setUp() {
+        stats = new BufferPoolStats();
+        locks = new LockManager(stats);
+        p0 = new HeapPageId(1, 0);
+        p1 = new HeapPageId(1, 1);
+    }
+
+    /** Acquire a lock in a new thread, recording the tid once granted. */
+    private Thread grab(final TransactionId tid, final PageId pid, final Permissions perm,
+            final List<Object> log) throws InterruptedException {
+        Thread t = new Thread() {
+            public void run() {
+                try {
+                    locks.acquire(tid, pid, perm);
+                    log.add(tid);
+                } catch (TransactionAbortedException e) {
+                    log.add(e);
+                }
+            }
+        };
+        t.start();
+        // give it time to join the queue
+        Thread.sleep(50);
+        return t;
+    }
+
+    /**
+     * A shared request behind a waiting exclusive one waits its turn, and
+     * waiters are granted in the order they asked.
+     */
+    @Test public void fifo() throws Exception {
+        TransactionId t1 = new TransactionId(), t2 = new TransactionId(), t3 = new TransactionId();
+        List<Object> log = new CopyOnWriteArrayList<Object>();
+        locks.acquire(t1, p0, Permissions.READ_ONLY);
+        Thread w2 = grab(t2, p0, Permissions.READ_WRITE, log);
+        Thread w3 = grab(t3, p0, Permissions.READ_ONLY, log);
+        assertTrue(log.isEmpty());
+
+        locks.release(t1, p0);
+        w2.join(1000);
+        assertEquals(Collections.singletonList(t2), log);
+        assertTrue(locks.holdsLock(t2, p0));
+        assertFalse(locks.holdsLock(t3, p0));
+
+        locks.release(t2, p0);
+        w3.join(1000);
+        assertEquals(2, log.size());
+        assertEquals(t3, log.get(1));
+        locks.release(t3, p0);
+        assertFalse(locks.isLocked(p0));
+    }
+
+    /**
+     * The only holder of a shared lock upgrades at once, even with others
+     * waiting; otherwise the upgrade waits for the other holders only.
+     */
+    @Test public void upgrade() throws Exception {
+        TransactionId t1 = new TransactionId(), t2 = new TransactionId(), t3 = new TransactionId();
+        List<Object> log = new CopyOnWriteArrayList<Object>();
+        locks.acquire(t1, p0, Permissions.READ_ONLY);
+        Thread w2 = grab(t2, p0, Permissions.READ_WRITE, log);
+        locks.acquire(t1, p0, Permissions.READ_WRITE);
+        assertTrue(log.isEmpty());
+        locks.release(t1, p0);
+        w2.join(1000);
+        assertEquals(Collections.singletonList(t2), log);
+        locks.release(t2, p0);
+
+        log.clear();
+        locks.acquire(t1, p1, Permissions.READ_ONLY);
+        locks.acquire(t2, p1, Permissions.READ_ONLY);
+        Thread w3 = grab(t3, p1, Permissions.READ_WRITE, log);
+        Thread w1 = grab(t1, p1, Permissions.READ_WRITE, log);
+        locks.release(t2, p1);
+        w1.join(1000);
+        assertEquals(Collections.singletonList(t1), log);
+        locks.release(t1, p1);
+        w3.join(1000);
+        assertEquals(t3, log.get(1));
+    }
+
+    /** A waiter resumes within a few milliseconds of the release. */
+    @Test public void wakeup() throws Exception {
+        final TransactionId t1 = new TransactionId(), t2 = new TransactionId();
+        final long[] granted = new long[1];
+        locks.acquire(t1, p0, Permissions.READ_WRITE);
+        Thread w = new Thread() {
+            public void run() {
+                try {
+                    locks.acquire(t2, p0, Permissions.READ_WRITE);
+                    granted[0] = System.nanoTime();
+                } catch (TransactionAbortedException e) {
+                    // granted stays 0
+                }
+            }
+        };
+        w.start();
+        Thread.sleep(50);
+        long released = System.nanoTime();
+        locks.release(t1, p0);
+        w.join(1000);
+        assertTrue(granted[0] > 0);
+        assertTrue((granted[0] - released) / 1000000 < 10);
+    }
+
+    /** The youngest transaction in a cycle of waits is aborted, here the one closing it. */
+    @Test public void deadlock() throws Exception {
+        TransactionId t1 = new TransactionId(), t2 = new TransactionId();
+        List<Object> log = new CopyOnWriteArrayList<Object>();
+        locks.acquire(t1, p0, Permissions.READ_WRITE);
+        locks.acquire(t2, p1, Permissions.READ_WRITE);
+        Thread w1 = grab(t1, p1, Permissions.READ_WRITE, log);
+        try {
+            locks.acquire(t2, p0, Permissions.READ_WRITE);
+            fail("expected a deadlock");
+        } catch (TransactionAbortedException e) {
+            // expected
+        }
+        locks.release(t2, p1);
+        locks.updateGraph(t2);
+        w1.join(1000);
+        assertEquals(Collections.singletonList(t1), log);
+    }
+
+    /**
+     * When the older transaction closes the cycle, the younger one, which
+     * is already waiting, is the one aborted.
+     */
+    @Test public void youngestVictim() throws Exception {
+        TransactionId t1 = new TransactionId(), t2 = new TransactionId();
+        List<Object> log = new CopyOnWriteArrayList<Object>();
+        locks.acquire(t1, p0, Permissions.READ_WRITE);
+        locks.acquire(t2, p1, Permissions.READ_WRITE);
+        Thread w2 = grab(t2, p0, Permissions.READ_WRITE, log);
+        Thread w1 = grab(t1, p1, Permissions.READ_WRITE, log);
+        w2.join(1000);
+        assertEquals(1, log.size());
+        assertTrue(log.get(0) instanceof TransactionAbortedException);
+        assertFalse(locks.holdsLock(t2, p0));
+
+        locks.release(t2, p1);
+        w1.join(1000);
+        assertEquals(t1, log.get(1));
+    }
+
+    /**
+     * When one wait closes two cycles, aborting one victim is not enough:
+     * both younger transactions are aborted and the upgrade goes through.
+     */
+    @Test public void twoCycles() throws Exception {
+        final TransactionId t1 = new TransactionId(), t2 = new TransactionId(), t3 = new TransactionId();
+        final List<Object> log = new CopyOnWriteArrayList<Object>();
+        locks.acquire(t1, p0, Permissions.READ_ONLY);
+        locks.acquire(t2, p0, Permissions.READ_ONLY);
+        locks.acquire(t3, p0, Permissions.READ_ONLY);
+        locks.acquire(t1, p1, Permissions.READ_WRITE);
+        for (final TransactionId tid : new TransactionId[] { t2, t3 }) {
+            new Thread() {
+                public void run() {
+                    try {
+                        locks.acquire(tid, p1, Permissions.READ_WRITE);
+                        log.add(tid);
+                    } catch (TransactionAbortedException e) {
+                        log.add(e);
+                        locks.release(tid, p0);
+                        locks.updateGraph(tid);
+                    }
+                }
+            }.start();
+        }
+        Thread.sleep(50);
+        locks.acquire(t1, p0, Permissions.READ_WRITE);
+        assertEquals(LockManager.Mode.X, locks.heldMode(t1, p0));
+        assertEquals(2, log.size());
+        for (Object o : log)
+            assertTrue(o instanceof TransactionAbortedException);
+    }
+
+    /** Under FEWEST_LOCKS the transaction holding the fewest locks is aborted. */
+    @Test public void fewestLocksVictim() throws Exception {
+        locks.setVictimPolicy(LockManager.VictimPolicy.FEWEST_LOCKS);
+        TransactionId t1 = new TransactionId(), t2 = new TransactionId();
+        List<Object> log = new CopyOnWriteArrayList<Object>();
+        locks.acquire(t1, p0, Permissions.READ_WRITE);
+        locks.acquire(t2, p1, Permissions.READ_WRITE);
+        locks.acquire(t2, new HeapPageId(1, 2), Permissions.READ_ONLY);
+        assertEquals(2, locks.locksHeld(t2));
+        assertEquals(1, locks.exclusiveLocksHeld(t2));
+
+        Thread w1 = grab(t1, p1, Permissions.READ_WRITE, log);
+        Thread w2 = grab(t2, p0, Permissions.READ_WRITE, log);
+        w1.join(1000);
+        assertEquals(1, log.size());
+        assertTrue(log.get(0) instanceof TransactionAbortedException);
+
+        locks.release(t1, p0);
+        w2.join(1000);
+        assertEquals(t2, log.get(1));
+    }
+
+    /** Intention locks share a table with each other but not with a table lock. */
+    @Test public void intentionModes() throws Exception {
+        TransactionId t1 = new TransactionId(), t2 = new TransactionId();
+        LockManager.TableId table = new LockManager.TableId(1);
+        locks.acquire(t1, table, LockManager.Mode.IX);
+        assertTrue(locks.tryAcquire(t2, table, LockManager.Mode.IS));
+        assertFalse(locks.tryAcquire(t2, table, LockManager.Mode.S));
+        assertEquals(LockManager.Mode.IS, locks.heldMode(t2, table));
+
+        locks.release(t2, table);
+        locks.acquire(t1, table, LockManager.Mode.S);
+        assertEquals(LockManager.Mode.X, locks.heldMode(t1, table));
+        assertFalse(locks.tryAcquire(t2, table, LockManager.Mode.IS));
+        assertEquals(1, locks.locksHeld(t1));
+    }
+
+    /** A request waiting longer than its transaction's timeout gives up, and the lock stays free. */
+    @Test public void timeout() throws Exception {
+        TransactionId t1 = new TransactionId(), t2 = new TransactionId();
+        locks.acquire(t1, p0, Permissions.READ_WRITE);
+        locks.setLockTimeout(t2, 100);
+        long start = System.nanoTime();
+        try {
+            locks.acquire(t2, p0, Permissions.READ_ONLY);
+            fail("expected a timeout");
+        } catch (TransactionAbortedException e) {
+            // expected
+        }
+        assertTrue((System.nanoTime() - start) / 1000000 >= 100);
+        assertFalse(locks.holdsLock(t2, p0));
+        assertEquals(1, stats.get(BufferPoolStats.Event.LOCK_TIMEOUT));
+
+        locks.updateGraph(t2);
+        assertEquals(0, locks.getLockTimeout(t2));
+        locks.release(t1, p0);
+        assertFalse(locks.isLocked(p0));
+    }
+
+    /** lockInfo shows holders, and waiters with whom they wait for. */
+    @Test public void lockInfo() throws Exception {
+        TransactionId t1 = new TransactionId(), t2 = new TransactionId();
+        List<Object> log = new CopyOnWriteArrayList<Object>();
+        locks.acquire(t1, p0, Permissions.READ_WRITE);
+        Thread w2 = grab(t2, p0, Permissions.READ_ONLY, log);
+
+        List<LockManager.LockInfo> info = locks.lockInfo();
+        assertEquals(2, info.size());
+        LockManager.LockInfo holder = info.get(0), waiter = info.get(1);
+        assertEquals(t1, holder.getTransactionId());
+        assertTrue(holder.isGranted());
+        assertEquals(LockManager.Mode.X, holder.getMode());
+        assertEquals(t2, waiter.getTransactionId());
+        assertFalse(waiter.isGranted());
+        assertEquals(p0, waiter.getKey());
+        assertEquals(Collections.singleton(t1), waiter.getBlockers());
+        assertTrue(waiter.getWaitNanos() > 0);
+
+        locks.release(t1, p0);
+        w2.join(1000);
+        locks.release(t2, p0);
+        assertTrue(locks.lockInfo().isEmpty());
+    }
+
+    /**
+     * JUnit suite target
+     */
+    public static junit.framework.Test suite() {
+        return new JUnit4TestAdapter(LockManagerTest.class);
+    }
+}
@@ -0,0 +1,82 @@
+package simpledb;
+
+import static org.junit.Assert.*;
+
+import java.util.ArrayList;
+import java.util.List;
+
+import junit.framework.JUnit4TestAdapter;
+
+import org.junit.Before;
+import org.junit.Test;
+
+public class LockTableFileTest extends TestUtil.CreateHeapFile {
+
+    @Before public void setUp() throws Exception {
+        super.setUp();
+    }
+
+    private List<Tuple> query(TransactionId tid, String sql) throws Exception {
+        LogicalPlan lp = new Parser().generateLogicalPlan(tid, sql);
+        OpIterator it = lp.physicalPlan(tid, TableStats.getStatsMap(), false);
+        List<Tuple> l = new ArrayList<Tuple>();
+        it.open();
+        while (it.hasNext())
+            l.add(it.next());
+        it.close();
+        return l;
+    }
+
+    /** sys_locks can be queried like any table, and shows who waits for whom. */
+    @Test public void selectWaiters() throws Exception {
+        final BufferPool bp = Database.getBufferPool();
+        final HeapPageId pid = new HeapPageId(empty.getId(), 0);
+        TransactionId t0 = new TransactionId();
+        bp.insertTuple(t0, empty.getId(), Utility.getHeapTuple(1, 2));
+        bp.transactionComplete(t0);
+        final TransactionId t1 = new TransactionId(), t2 = new TransactionId();
+        bp.getPage(t1, pid, Permissions.READ_WRITE);
+        Thread w = new Thread() {
+            public void run() {
+                try {
+                    bp.getPage(t2, pid, Permissions.READ_ONLY);
+                } catch (Exception e) {
+                    // the test fails on the lock table contents instead
+                }
+            }
+        };
+        w.start();
+        Thread.sleep(100);
+
+        List<Tuple> rows = query(new TransactionId(),
+                "select l.tid, l.lock_mode, l.page_no, l.blockers from sys_locks l where l.state = 'waiting';");
+        assertEquals(1, rows.size());
+        Tuple t = rows.get(0);
+        assertEquals(new IntField((int) t2.getId()), t.getField(0));
+        assertEquals(new StringField("S", Type.STRING_LEN), t.getField(1));
+        assertEquals(new IntField(0), t.getField(2));
+        assertEquals(new StringField(String.valueOf(t1.getId()), Type.STRING_LEN), t.getField(3));
+
+        bp.transactionComplete(t1);
+        w.join(1000);
+        bp.transactionComplete(t2);
+    }
+
+    /** The system table cannot be written. */
+    @Test public void readOnly() throws Exception {
+        DbFile f = Database.getCatalog().getDatabaseFile(Database.getCatalog().getTableId(LockTableFile.NAME));
+        try {
+            f.insertTuple(new TransactionId(), new Tuple(f.getTupleDesc()));
+            fail("expected DbException");
+        } catch (DbException e) {
+            // expected
+        }
+    }
+
+    /**
+     * JUnit suite target
+     */
+    public static junit.framework.Test suite() {
+        return new JUnit4TestAdapter(LockTableFileTest.class);
+    }
+}
@@ -0,0 +1,109 @@
+package simpledb;
+
+import static org.junit.Assert.*;
+
+import java.util.HashSet;
+import java.util.Set;
+
+import junit.framework.JUnit4TestAdapter;
+
+import org.junit.Test;
+
+import simpledb.systemtest.SimpleDbTestBase;
+
+public class ReplacementPolicyTest extends SimpleDbTestBase {
+
+    private static PageId pid(int pgNo) {
+        return new HeapPageId(1, pgNo);
+    }
+
+    /**
+     * Every policy must skip pages the buffer pool refuses to evict, and
+     * return null once nothing is evictable.
+     */
+    private void checkHonorsFilter(ReplacementPolicy policy) {
+        for (int i = 0; i < 4; i++)
+            policy.pageAdded(pid(i));
+
+        final Set<PageId> dirty = new HashSet<PageId>();
+        for (int i = 0; i < 3; i++)
+            dirty.add(pid(i));
+        assertEquals(pid(3), policy.chooseVictim(p -> !dirty.contains(p)));
+
+        dirty.add(pid(3));
+        assertNull(policy.chooseVictim(p -> !dirty.contains(p)));
+    }
+
+    @Test public void honorsFilter() {
+        checkHonorsFilter(new ClockPolicy(4));
+        checkHonorsFilter(new LRUKPolicy());
+        checkHonorsFilter(new TwoQPolicy(4));
+    }
+
+    /**
+     * CLOCK gives referenced pages a second chance.
+     */
+    @Test public void clockSecondChance() {
+        ClockPolicy policy = new ClockPolicy(3);
+        for (int i = 0; i < 3; i++)
+            policy.pageAdded(pid(i));
+
+        // the first sweep clears every bit, then page 0 is the victim
+        assertEquals(pid(0), policy.chooseVictim(p -> true));
+        policy.pageRemoved(pid(0));
+        policy.pageAdded(pid(3));
+
+        // page 1 was hit, so the hand passes over it
+        policy.pageAccessed(pid(1));
+        assertEquals(pid(2), policy.chooseVictim(p -> true));
+    }
+
+    /**
+     * LRU-K evicts a page referenced once before a page referenced K times,
+     * even if the single reference is more recent.
+     */
+    @Test public void lrukPrefersCorrelatedPages() {
+        LRUKPolicy policy = new LRUKPolicy(2);
+        policy.pageAdded(pid(0));
+        policy.pageAccessed(pid(0));
+        policy.pageAdded(pid(1));
+        assertEquals(pid(1), policy.chooseVictim(p -> true));
+
+        policy.pageAccessed(pid(1));
+        // both have two references now; page 0's second-to-last is oldest
+        assertEquals(pid(0), policy.chooseVictim(p -> true));
+
+        policy.pageRemoved(pid(0));
+        assertEquals(pid(1), policy.chooseVictim(p -> true));
+    }
+
+    /**
+     * 2Q evicts first-time pages from A1in and promotes re-read pages to Am,
+     * where a stream of new pages cannot displace them.
+     */
+    @Test public void twoQScanResistance() {
+        TwoQPolicy policy = new TwoQPolicy(4);
+        policy.pageAdded(pid(0));
+        policy.pageAdded(pid(1));
+        assertEquals(pid(0), policy.chooseVictim(p -> true));
+
+        // page 0 is evicted, then read again while still remembered
+        policy.pageRemoved(pid(0));
+        policy.pageAdded(pid(0));
+
+        // a scan streams through new pages; only those are victims
+        for (int i = 10; i < 20; i++) {
+            policy.pageAdded(pid(i));
+            PageId victim = policy.chooseVictim(p -> true);
+            assertFalse(pid(0).equals(victim));
+            policy.pageRemoved(victim);
+        }
+    }
+
+    /**
+     * JUnit suite target
+     */
+    public static junit.framework.Test suite() {
+        return new JUnit4TestAdapter(ReplacementPolicyTest.class);
+    }
+}
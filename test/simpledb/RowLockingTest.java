@@ -0,0 +1,174 @@
+package simpledb;
+
+import static org.junit.Assert.*;
+
+import java.util.ArrayList;
+import java.util.List;
+
+import junit.framework.JUnit4TestAdapter;
+
+import org.junit.Before;
+import org.junit.Test;
+
+public class RowLockingTest extends TestUtil.CreateHeapFile {
+
+    /** Time to wait before checking whether a thread is blocked, in ms */
+    private static final int TIMEOUT = 100;
+
+    private BufferPool bp;
+    private List<Tuple> rows;
+
+    @Before public void setUp() throws Exception {
+        super.setUp();
+        bp = Database.getBufferPool();
+        TransactionId tid = new TransactionId();
+        for (int i = 0; i < 20; ++i)
+            bp.insertTuple(tid, empty.getId(), Utility.getHeapTuple(i, 2));
+        bp.transactionComplete(tid);
+        bp = Database.resetBufferPool(BufferPool.DEFAULT_PAGES);
+        bp.setRowLocking(empty.getId(), true);
+        tid = new TransactionId();
+        rows = scan(tid);
+        bp.transactionComplete(tid);
+    }
+
+    private List<Tuple> scan(TransactionId tid) throws Exception {
+        List<Tuple> l = new ArrayList<Tuple>();
+        DbFileIterator it = empty.iterator(tid);
+        it.open();
+        while (it.hasNext())
+            l.add(it.next());
+        it.close();
+        return l;
+    }
+
+    /** @return the number of tuples on the first page on disk */
+    private int onDisk() throws Exception {
+        HeapPage p = (HeapPage) empty.readPage(new HeapPageId(empty.getId(), 0));
+        return p.numSlots - p.getNumEmptySlots();
+    }
+
+    /** Runs an action in a new thread, to see whether it blocks. */
+    private static class Runner extends Thread {
+        interface Action {
+            void run() throws Exception;
+        }
+
+        private final Action action;
+        volatile boolean done;
+        volatile Exception error;
+
+        Runner(Action action) {
+            this.action = action;
+            start();
+        }
+
+        public void run() {
+            try {
+                action.run();
+            } catch (Exception e) {
+                error = e;
+            }
+            done = true;
+        }
+    }
+
+    /**
+     * Two transactions change different rows of one page without waiting
+     * for each other, and aborting one keeps the other's change.
+     */
+    @Test public void differentRowsOfAPage() throws Exception {
+        final TransactionId t1 = new TransactionId(), t2 = new TransactionId();
+        bp.deleteTuple(t1, rows.get(0));
+        Runner r = new Runner(() -> bp.deleteTuple(t2, rows.get(1)));
+        r.join(TIMEOUT * 10);
+        assertTrue(r.done);
+        assertNull(r.error);
+
+        bp.transactionComplete(t1, false);
+        bp.transactionComplete(t2, true);
+        assertEquals(19, onDisk());
+        List<Tuple> left = scan(new TransactionId());
+        assertEquals(19, left.size());
+        assertEquals(rows.get(0).getField(0), left.get(0).getField(0));
+    }
+
+    /** A reader waits for the row a writer deleted, and then skips it. */
+    @Test public void readerWaitsForChangedRow() throws Exception {
+        TransactionId t1 = new TransactionId();
+        bp.deleteTuple(t1, rows.get(5));
+        final List<List<Tuple>> seen = new ArrayList<List<Tuple>>();
+        Runner r = new Runner(() -> seen.add(scan(new TransactionId())));
+        Thread.sleep(TIMEOUT);
+        assertFalse(r.done);
+
+        bp.transactionComplete(t1, true);
+        r.join(TIMEOUT * 10);
+        assertTrue(r.done);
+        assertEquals(19, seen.get(0).size());
+    }
+
+    /** An insert does not take the slot of a row whose deletion may be undone. */
+    @Test public void insertSkipsDeletedRow() throws Exception {
+        TransactionId t1 = new TransactionId(), t2 = new TransactionId();
+        bp.deleteTuple(t1, rows.get(0));
+        Tuple t = Utility.getHeapTuple(100, 2);
+        bp.insertTuple(t2, empty.getId(), t);
+        assertEquals(20, t.getRecordId().getTupleNumber());
+
+        bp.transactionComplete(t1, false);
+        bp.transactionComplete(t2, true);
+        assertEquals(21, onDisk());
+    }
+
+    /**
+     * Pages written while other transactions may have rows on them, at
+     * commit and when an abort is undone, are logged first.
+     */
+    @Test public void writesAreLogged() throws Exception {
+        LogFile log = Database.getLogFile();
+        TransactionId t1 = new TransactionId(), t2 = new TransactionId();
+        bp.deleteTuple(t1, rows.get(0));
+        bp.deleteTuple(t2, rows.get(1));
+
+        int records = log.getTotalRecords();
+        long forces = log.getForceCount();
+        bp.transactionComplete(t1, true);
+        assertEquals(records + 1, log.getTotalRecords());
+        assertTrue(log.getForceCount() > forces);
+
+        records = log.getTotalRecords();
+        forces = log.getForceCount();
+        bp.transactionComplete(t2, false);
+        assertEquals(records + 1, log.getTotalRecords());
+        assertTrue(log.getForceCount() > forces);
+        assertEquals(19, onDisk());
+    }
+
+    /** Past the threshold, a transaction's row locks become a table lock. */
+    @Test public void escalation() throws Exception {
+        bp.setEscalationThreshold(10);
+        TransactionId t1 = new TransactionId();
+        assertEquals(20, scan(t1).size());
+        LockManager locks = bp.getLockManager();
+        assertEquals(LockManager.Mode.S, locks.heldMode(t1, new LockManager.TableId(empty.getId())));
+        for (Object key : locks.locked(t1))
+            assertFalse(key instanceof RecordId);
+
+        final TransactionId t2 = new TransactionId();
+        Runner r = new Runner(() -> bp.deleteTuple(t2, rows.get(0)));
+        Thread.sleep(TIMEOUT);
+        assertFalse(r.done);
+        bp.transactionComplete(t1);
+        r.join(TIMEOUT * 10);
+        assertTrue(r.done);
+        bp.transactionComplete(t2);
+    }
+
+    /**
+     * JUnit suite target
+     */
+    public static junit.framework.Test suite() {
+        return new JUnit4TestAdapter(RowLockingTest.class);
+    }
+}
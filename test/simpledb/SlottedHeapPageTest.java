@@ -0,0 +1,202 @@
+package simpledb;
+
+import static org.junit.Assert.*;
+
+import java.io.File;
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.List;
+
+import junit.framework.JUnit4TestAdapter;
+
+import org.junit.Before;
+import org.junit.Test;
+
+import simpledb.TestUtil.SkeletonFile;
+import simpledb.systemtest.SimpleDbTestBase;
+import simpledb.systemtest.SystemTestUtil;
+
+public class SlottedHeapPageTest extends SimpleDbTestBase {
+
+    private TupleDesc td;
+    private HeapPageId pid;
+
+    @Before public void addTable() {
+        td = new TupleDesc(new Type[] { Type.INT_TYPE, Type.STRING_TYPE }, new String[] { "id", "name" });
+        pid = new HeapPageId(-1, 0);
+        Database.getCatalog().addTable(new SkeletonFile(-1, td), SystemTestUtil.getUUID());
+    }
+
+    private Tuple tuple(int id, String name) {
+        Tuple t = new Tuple(td);
+        t.setField(0, new IntField(id));
+        t.setField(1, new StringField(name, Type.STRING_LEN));
+        return t;
+    }
+
+    private List<Tuple> tuples(HeapPage page) {
+        List<Tuple> l = new ArrayList<Tuple>();
+        Iterator<Tuple> it = page.iterator();
+        while (it.hasNext())
+            l.add(it.next());
+        return l;
+    }
+
+    private static String name(int i) {
+        return "n" + i;
+    }
+
+    /** Short strings take only the bytes they need, so many more rows fit. */
+    @Test public void fitsMoreRows() throws Exception {
+        HeapPage fixed = new HeapPage(pid, HeapPage.createEmptyPageData());
+        HeapPage slotted = new SlottedHeapPage(pid, HeapPage.createEmptyPageData());
+        int n = 0;
+        try {
+            while (true)
+                slotted.insertTuple(tuple(n, name(n++)));
+        } catch (DbException e) {
+            // full
+        }
+        assertTrue(n > 5 * fixed.getNumEmptySlots());
+
+        HeapPage copy = new SlottedHeapPage(pid, slotted.getPageData());
+        List<Tuple> l = tuples(copy);
+        assertEquals(n - 1, l.size());
+        for (int i = 0; i < l.size(); i++) {
+            assertEquals(new IntField(i), l.get(i).getField(0));
+            assertEquals(new StringField(name(i), Type.STRING_LEN), l.get(i).getField(1));
+        }
+    }
+
+    /** An empty slot always takes the next tuple, however long. */
+    @Test public void emptySlotsFitAnyTuple() throws Exception {
+        HeapPage page = new SlottedHeapPage(pid, HeapPage.createEmptyPageData());
+        String longest = new String(new char[Type.STRING_LEN]).replace('\0', 'x');
+        while (page.getNumEmptySlots() > 0)
+            page.insertTuple(tuple(0, longest));
+        assertEquals(0, page.getNumEmptySlots());
+        assertTrue(page.iterator().hasNext());
+    }
+
+    /**
+     * Deleting rows leaves holes, which an insert that needs the room
+     * closes; the rows left keep their slots and values.
+     */
+    @Test public void compaction() throws Exception {
+        HeapPage page = new SlottedHeapPage(pid, HeapPage.createEmptyPageData());
+        int n = 0;
+        while (page.getNumEmptySlots() > 0)
+            page.insertTuple(tuple(n, name(n++)));
+        List<Tuple> all = tuples(page);
+        List<Tuple> kept = new ArrayList<Tuple>();
+        for (int i = 0; i < all.size(); i++) {
+            if (i % 2 == 0)
+                page.deleteTuple(all.get(i));
+            else
+                kept.add(all.get(i));
+        }
+
+        String longer = new String(new char[100]).replace('\0', 'y');
+        int added = 0;
+        while (page.getNumEmptySlots() > 0) {
+            page.insertTuple(tuple(-1, longer));
+            added++;
+        }
+        assertTrue(added > 1);
+        for (Tuple t : kept) {
+            Tuple now = page.getTuple(t.getRecordId().getTupleNumber());
+            assertEquals(t.getField(0), now.getField(0));
+            assertEquals(t.getField(1), now.getField(1));
+        }
+        assertEquals(kept.size() + added, tuples(page).size());
+    }
+
+    /** A field set longer than before moves its record, and the before image stays. */
+    @Test public void setFieldGrows() throws Exception {
+        HeapPage page = new SlottedHeapPage(pid, HeapPage.createEmptyPageData());
+        page.insertTuple(tuple(1, "a"));
+        page.insertTuple(tuple(2, "b"));
+        page.setBeforeImage();
+        Tuple t = page.getTuple(0);
+        t.setField(1, new StringField("a longer name", Type.STRING_LEN));
+
+        HeapPage copy = new SlottedHeapPage(pid, page.getPageData());
+        assertEquals(new StringField("a longer name", Type.STRING_LEN), copy.getTuple(0).getField(1));
+        assertEquals(new StringField("b", Type.STRING_LEN), copy.getTuple(1).getField(1));
+        HeapPage before = page.getBeforeImage();
+        assertTrue(before instanceof SlottedHeapPage);
+        assertEquals(new StringField("a", Type.STRING_LEN), before.getTuple(0).getField(1));
+    }
+
+    /**
+     * A field set longer than a full page has room for fails with a
+     * DbException and leaves the page as it was; the tuple read from the
+     * page keeps the new value, but no longer writes into the page.
+     */
+    @Test public void setFieldNoRoom() throws Exception {
+        HeapPage page = new SlottedHeapPage(pid, HeapPage.createEmptyPageData());
+        try {
+            for (int i = 0; ; i++)
+                page.insertTuple(tuple(i, "a"));
+        } catch (DbException e) {
+            // full
+        }
+        byte[] full = page.getPageData();
+        Tuple t = page.getTuple(0);
+        StringField longer = new StringField("a much longer name", Type.STRING_LEN);
+        try {
+            page.setField(t, 1, longer);
+            fail("expected a DbException");
+        } catch (DbException e) {
+            // expected
+        }
+        assertArrayEquals(full, page.getPageData());
+
+        t.setField(1, longer);
+        assertEquals(longer, t.getField(1));
+        assertArrayEquals(full, page.getPageData());
+        assertEquals(new StringField("a", Type.STRING_LEN), page.getTuple(0).getField(1));
+    }
+
+    /** Slotted pages address their bytes with two-byte offsets, so they are at most 64KB. */
+    @Test(expected = IllegalArgumentException.class) public void pageSizeLimit() throws Exception {
+        new HeapFile(File.createTempFile("slotted", ".dat"), td, 2 * SlottedHeapPage.MAX_PAGE_SIZE,
+                HeapFile.Format.SLOTTED);
+    }
+
+    /** A heap file in the slotted format reads and writes through the buffer pool. */
+    @Test public void heapFile() throws Exception {
+        File f = File.createTempFile("slotted", ".dat");
+        f.deleteOnExit();
+        HeapFile hf = new HeapFile(f, td, 0, HeapFile.Format.SLOTTED);
+        Database.getCatalog().addTable(hf, SystemTestUtil.getUUID());
+        BufferPool bp = Database.getBufferPool();
+        TransactionId tid = new TransactionId();
+        for (int i = 0; i < 1000; i++)
+            bp.insertTuple(tid, hf.getId(), tuple(i, name(i)));
+        bp.transactionComplete(tid);
+        assertTrue(hf.numPages() < 1000 / 30);
+
+        Database.resetBufferPool(BufferPool.DEFAULT_PAGES);
+        tid = new TransactionId();
+        DbFileIterator it = hf.iterator(tid);
+        it.open();
+        int n = 0;
+        while (it.hasNext()) {
+            Tuple t = it.next();
+            assertEquals(new StringField(name(((IntField) t.getField(0)).getValue()), Type.STRING_LEN),
+                    t.getField(1));
+            n++;
+        }
+        it.close();
+        Database.getBufferPool().transactionComplete(tid);
+        assertEquals(1000, n);
+    }
+
+    /**
+     * JUnit suite target
+     */
+    public static junit.framework.Test suite() {
+        return new JUnit4TestAdapter(SlottedHeapPageTest.class);
+    }
+}
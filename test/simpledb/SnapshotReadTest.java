@@ -0,0 +1,120 @@
+package simpledb;
+
+import static org.junit.Assert.*;
+
+import java.util.ArrayList;
+import java.util.List;
+
+import junit.framework.JUnit4TestAdapter;
+
+import org.junit.Before;
+import org.junit.Test;
+
+public class SnapshotReadTest extends TestUtil.CreateHeapFile {
+
+    private BufferPool bp;
+    private List<Tuple> rows;
+
+    @Before public void setUp() throws Exception {
+        super.setUp();
+        bp = Database.getBufferPool();
+        TransactionId tid = new TransactionId();
+        for (int i = 0; i < 20; ++i)
+            bp.insertTuple(tid, empty.getId(), Utility.getHeapTuple(i, 2));
+        bp.transactionComplete(tid);
+        bp = Database.resetBufferPool(BufferPool.DEFAULT_PAGES);
+        tid = new TransactionId();
+        rows = scan(tid);
+        bp.transactionComplete(tid);
+    }
+
+    private List<Tuple> scan(TransactionId tid) throws Exception {
+        List<Tuple> l = new ArrayList<Tuple>();
+        DbFileIterator it = empty.iterator(tid);
+        it.open();
+        while (it.hasNext())
+            l.add(it.next());
+        it.close();
+        return l;
+    }
+
+    /** Scan in another thread, failing rather than waiting for a lock. */
+    private List<Tuple> scanWithoutWaiting(final TransactionId tid) throws Exception {
+        final List<List<Tuple>> seen = new ArrayList<List<Tuple>>();
+        Thread t = new Thread() {
+            public void run() {
+                try {
+                    seen.add(scan(tid));
+                } catch (Exception e) {
+                    // seen stays empty
+                }
+            }
+        };
+        t.start();
+        t.join(1000);
+        assertFalse("the snapshot scan waited", t.isAlive());
+        assertEquals(1, seen.size());
+        return seen.get(0);
+    }
+
+    /**
+     * A snapshot reader neither waits for a writer nor sees its changes,
+     * committed or not, while a snapshot taken after the commit does.
+     */
+    @Test public void readsCommittedSnapshot() throws Exception {
+        TransactionId reader = new TransactionId();
+        bp.beginSnapshot(reader);
+        assertTrue(bp.isSnapshot(reader));
+
+        TransactionId writer = new TransactionId();
+        bp.deleteTuple(writer, rows.get(0));
+        bp.insertTuple(writer, empty.getId(), Utility.getHeapTuple(100, 2));
+        assertEquals(20, scanWithoutWaiting(reader).size());
+
+        bp.transactionComplete(writer, true);
+        List<Tuple> old = scanWithoutWaiting(reader);
+        assertEquals(20, old.size());
+        assertEquals(rows.get(0).getField(0), old.get(0).getField(0));
+
+        TransactionId later = new TransactionId();
+        bp.beginSnapshot(later);
+        List<Tuple> now = scanWithoutWaiting(later);
+        assertEquals(20, now.size());
+        assertFalse(rows.get(0).getField(0).equals(now.get(0).getField(0)));
+
+        assertTrue(bp.getVersionStore().size() > 0);
+        bp.transactionComplete(reader);
+        bp.transactionComplete(later);
+        assertEquals(0, bp.getVersionStore().size());
+        assertFalse(bp.isSnapshot(reader));
+    }
+
+    /** Without running snapshots, commits keep no versions. */
+    @Test public void noVersionsWithoutSnapshots() throws Exception {
+        TransactionId writer = new TransactionId();
+        bp.deleteTuple(writer, rows.get(0));
+        bp.transactionComplete(writer, true);
+        assertEquals(0, bp.getVersionStore().size());
+    }
+
+    /** Snapshot transactions are read-only. */
+    @Test public void cannotWrite() throws Exception {
+        TransactionId reader = new TransactionId();
+        bp.beginSnapshot(reader);
+        try {
+            bp.getPage(reader, rows.get(0).getRecordId().getPageId(), Permissions.READ_WRITE);
+            fail("expected DbException");
+        } catch (DbException e) {
+            // expected
+        }
+        assertFalse(bp.holdsLock(reader, rows.get(0).getRecordId().getPageId()));
+        bp.transactionComplete(reader);
+    }
+
+    /**
+     * JUnit suite target
+     */
+    public static junit.framework.Test suite() {
+        return new JUnit4TestAdapter(SnapshotReadTest.class);
+    }
+}
@@ -214,6 +214,10 @@ public class TestUtil {
             throw new RuntimeException("not implemented");
         }
 
+        public Page decodePage(PageId id, byte[] data) {
+            throw new RuntimeException("not implemented");
+        }
+
         public ArrayList<Page> insertTuple(TransactionId tid, Tuple t)
             throws DbException, IOException, TransactionAbortedException {
             throw new RuntimeException("not implemented");
@@ -0,0 +1,215 @@
+package simpledb;
+
+import static org.junit.Assert.*;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+
+import junit.framework.JUnit4TestAdapter;
+
+import org.junit.Before;
+import org.junit.Test;
+
+import simpledb.systemtest.SimpleDbTestBase;
+import simpledb.systemtest.SystemTestUtil;
+
+public class TupleBatchTest extends SimpleDbTestBase {
+
+    /** Builds a fresh plan, so it can be run both a row and a batch at a time. */
+    private interface Plan {
+        OpIterator build() throws Exception;
+    }
+
+    private TransactionId tid;
+    private HeapFile big;
+    private HeapFile small;
+
+    @Before public void setUp() throws Exception {
+        tid = new TransactionId();
+        big = SystemTestUtil.createRandomHeapFile(3, 3000, 50, new HashMap<Integer, Integer>(), null);
+        small = SystemTestUtil.createRandomHeapFile(2, 300, 50, new HashMap<Integer, Integer>(), null);
+    }
+
+    /** @return the rows of a plan as strings, in order, read with next or nextBatch */
+    private static List<String> rows(OpIterator op, boolean batched) throws Exception {
+        List<String> l = new ArrayList<String>();
+        op.open();
+        if (batched) {
+            TupleBatch b;
+            while ((b = op.nextBatch()) != null) {
+                assertTrue(b.size() > 0);
+                assertTrue(b.size() <= TupleBatch.MAX_ROWS);
+                for (int i = 0; i < b.size(); i++)
+                    l.add(values(b.getTuple(i)));
+            }
+        } else {
+            while (op.hasNext())
+                l.add(values(op.next()));
+        }
+        op.close();
+        return l;
+    }
+
+    private static List<String> sorted(List<String> l) {
+        Collections.sort(l);
+        return l;
+    }
+
+    private static String values(Tuple t) {
+        StringBuilder sb = new StringBuilder();
+        for (int j = 0; j < t.getTupleDesc().numFields(); j++)
+            sb.append(t.getField(j)).append('\t');
+        return sb.toString();
+    }
+
+    /** A plan returns the same tuples in the same order either way; returns how many. */
+    private static int same(Plan plan) throws Exception {
+        List<String> expected = rows(plan.build(), false);
+        assertEquals(expected, rows(plan.build(), true));
+        return expected.size();
+    }
+
+    /** A plan returns the same tuples either way, in any order; returns how many. */
+    private static int sameRows(Plan plan) throws Exception {
+        List<String> expected = sorted(rows(plan.build(), false));
+        assertEquals(expected, sorted(rows(plan.build(), true)));
+        return expected.size();
+    }
+
+    @Test public void seqScan() throws Exception {
+        assertEquals(3000, same(() -> new SeqScan(tid, big.getId())));
+    }
+
+    @Test public void filter() throws Exception {
+        int n = same(() -> new Filter(new Predicate(0, Predicate.Op.GREATER_THAN, new IntField(25)),
+                new SeqScan(tid, big.getId())));
+        assertTrue(n > 0 && n < 3000);
+    }
+
+    @Test public void project() throws Exception {
+        same(() -> new Project(new ArrayList<Integer>(Arrays.asList(2, 0)),
+                new Type[] { Type.INT_TYPE, Type.INT_TYPE }, new SeqScan(tid, big.getId())));
+    }
+
+    /**
+     * Enough matches to fill several batches, resuming in the middle of
+     * each. The batches come in block nested loops order.
+     */
+    @Test public void join() throws Exception {
+        int n = sameRows(() -> new Join(new JoinPredicate(0, Predicate.Op.EQUALS, 0),
+                new SeqScan(tid, big.getId()), new SeqScan(tid, small.getId())));
+        assertTrue(n > 2 * TupleBatch.MAX_ROWS);
+        sameRows(() -> new Join(new JoinPredicate(1, Predicate.Op.LESS_THAN, 1),
+                new SeqScan(tid, small.getId()), new SeqScan(tid, small.getId())));
+    }
+
+    @Test public void hashEquiJoin() throws Exception {
+        int n = same(() -> new HashEquiJoin(new JoinPredicate(0, Predicate.Op.EQUALS, 0),
+                new SeqScan(tid, big.getId()), new SeqScan(tid, small.getId())));
+        assertTrue(n > 2 * TupleBatch.MAX_ROWS);
+    }
+
+    /**
+     * Rewinding a hash join part way through, or at the end, starts it
+     * over, and the tuples come again once each either way.
+     */
+    @Test public void hashEquiJoinRewind() throws Exception {
+        HashEquiJoin j = new HashEquiJoin(new JoinPredicate(0, Predicate.Op.EQUALS, 0),
+                new SeqScan(tid, big.getId()), new SeqScan(tid, small.getId()));
+        List<String> expected = rows(j, false);
+        assertTrue(expected.size() > 0);
+        j.open();
+        j.next();
+        j.rewind();
+        List<String> again = new ArrayList<String>();
+        while (j.hasNext())
+            again.add(values(j.next()));
+        assertEquals(expected, again);
+        j.rewind();
+        j.nextBatch();
+        j.rewind();
+        again.clear();
+        TupleBatch b;
+        while ((b = j.nextBatch()) != null)
+            for (int i = 0; i < b.size(); i++)
+                again.add(values(b.getTuple(i)));
+        assertEquals(expected, again);
+        j.rewind();
+        again.clear();
+        while (j.hasNext())
+            again.add(values(j.next()));
+        j.close();
+        assertEquals(expected, again);
+    }
+
+    /**
+     * A plan of several joins, as Query runs, returns the same tuples read
+     * either way; the hash join is the inner child, so the join rewinds it.
+     */
+    @Test public void joinPlan() throws Exception {
+        int n = sameRows(() -> new Join(new JoinPredicate(0, Predicate.Op.EQUALS, 0),
+                new Filter(new Predicate(1, Predicate.Op.LESS_THAN, new IntField(5)), new SeqScan(tid, small.getId())),
+                new HashEquiJoin(new JoinPredicate(1, Predicate.Op.EQUALS, 0),
+                        new SeqScan(tid, small.getId()), new SeqScan(tid, big.getId()))));
+        assertTrue(n > 0);
+    }
+
+    /** The child is read a batch at a time, and the groups come out the same. */
+    @Test public void aggregate() throws Exception {
+        Aggregate agg = new Aggregate(new SeqScan(tid, big.getId()), 2, 1, Aggregator.Op.SUM);
+        List<String> batched = sorted(rows(agg, true));
+        List<String> expected = new ArrayList<String>();
+        Aggregator sums = new IntegerAggregator(1, Type.INT_TYPE, 2, Aggregator.Op.SUM);
+        DbFileIterator scan = big.iterator(tid);
+        scan.open();
+        while (scan.hasNext())
+            sums.mergeTupleIntoGroup(scan.next());
+        scan.close();
+        OpIterator result = sums.iterator();
+        result.open();
+        while (result.hasNext())
+            expected.add(values(result.next()));
+        Collections.sort(expected);
+        assertEquals(expected, batched);
+    }
+
+    /** Batch operators read row-at-a-time children, strings included. */
+    @Test public void rowChild() throws Exception {
+        final Object[] data = new Object[] { 1, "a", 2, "bb", 3, "a", 4, "ccc" };
+        int n = same(() -> new Filter(new Predicate(1, Predicate.Op.EQUALS, new StringField("a", Type.STRING_LEN)),
+                TestUtil.createTupleList(2, data)));
+        assertEquals(2, n);
+        same(() -> new Project(new ArrayList<Integer>(Arrays.asList(1)), new Type[] { Type.STRING_TYPE },
+                TestUtil.createTupleList(2, data)));
+    }
+
+    /** select keeps the chosen rows in order, with their record ids. */
+    @Test public void select() throws Exception {
+        TupleDesc td = new TupleDesc(new Type[] { Type.INT_TYPE, Type.STRING_TYPE });
+        TupleBatch b = new TupleBatch(td);
+        for (int i = 0; i < 5; i++) {
+            Tuple t = new Tuple(td);
+            t.setField(0, new IntField(i));
+            t.setField(1, new StringField("s" + i, Type.STRING_LEN));
+            t.setRecordId(new RecordId(new HeapPageId(0, 0), i));
+            b.add(t);
+        }
+        b.select(new int[] { 1, 4 }, 2);
+        assertEquals(2, b.size());
+        assertEquals(4, b.getInt(0, 1));
+        assertEquals("s1", b.getString(1, 0));
+        assertEquals(4, b.getRecordId(1).getTupleNumber());
+        TupleBatch p = b.project(new int[] { 1 }, new TupleDesc(new Type[] { Type.STRING_TYPE }));
+        assertEquals(new StringField("s4", Type.STRING_LEN), p.getTuple(1).getField(0));
+    }
+
+    /**
+     * JUnit suite target
+     */
+    public static junit.framework.Test suite() {
+        return new JUnit4TestAdapter(TupleBatchTest.class);
+    }
+}
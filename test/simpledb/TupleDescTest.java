@@ -165,6 +165,14 @@ public class TupleDescTest extends SimpleDbTestBase {
         assertFalse(singleInt2.equals(intString));
         assertFalse(intString.equals(singleInt));
         assertFalse(intString.equals(singleInt2));
+
+        // field names play no part
+        TupleDesc named = new TupleDesc(new Type[]{Type.INT_TYPE, Type.STRING_TYPE}, new String[]{"a", "b"});
+        TupleDesc aliased = new TupleDesc(new Type[]{Type.INT_TYPE, Type.STRING_TYPE}, new String[]{"t.a", "t.b"});
+        assertTrue(named.equals(intString));
+        assertTrue(named.equals(aliased));
+        assertEquals(named.hashCode(), aliased.hashCode());
+        assertEquals(named.hashCode(), intString.hashCode());
     }
 
     /**
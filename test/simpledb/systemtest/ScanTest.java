@@ -67,6 +67,18 @@ public class ScanTest extends SimpleDbTestBase {
         Database.getBufferPool().transactionComplete(tid);
     }
 
+    /** Field names carry the scan's alias, and the table name is the catalog's. */
+    @Test public void testAlias() throws IOException, DbException, TransactionAbortedException {
+        HeapFile f = SystemTestUtil.createRandomHeapFile(2, 10, null, null);
+        SeqScan scan = new SeqScan(new TransactionId(), f.getId(), "t");
+        assertEquals(Database.getCatalog().getTableName(f.getId()), scan.getTableName());
+        assertEquals("t", scan.getAlias());
+        TupleDesc td = scan.getTupleDesc();
+        assertEquals(f.getTupleDesc(), td);
+        for (int i = 0; i < td.numFields(); i++)
+            assertEquals("t." + f.getTupleDesc().getFieldName(i), td.getFieldName(i));
+    }
+
     /** Verifies that the buffer pool is actually caching data.
      * @throws TransactionAbortedException
      * @throws DbException */